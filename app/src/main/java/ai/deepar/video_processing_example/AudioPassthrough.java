@@ -0,0 +1,207 @@
+package ai.deepar.video_processing_example;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Copies the compressed audio tracks of the source into the output muxer without decoding them.
+ * <p>
+ * Samples are read by a dedicated thread with its own {@link MediaExtractor}, so the video path
+ * never waits for audio I/O. Timestamps are kept as in the source, like those of the video. The
+ * thread stays at most {@link #MAX_LEAD_US} ahead of the last muxed video frame, which keeps
+ * audio and video interleaved in the output and bounds how much audio is buffered by the muxer.
+ * Muxer writes are synchronized on the muxer instance.
+ */
+class AudioPassthrough {
+
+    private static final String TAG = AudioPassthrough.class.getSimpleName();
+
+    private static final long MAX_LEAD_US = 500_000L;
+    private static final long PARK_NANOS = 5_000_000L;
+    private static final int DEFAULT_MAX_SAMPLE_SIZE = 64 * 1024;
+
+    private final MediaExtractor extractor = new MediaExtractor();
+    private final long startUs;
+    private final long endUs;
+    private int[] muxerTrackIndices = new int[0];
+    private int trackCount;
+    private int maxSampleSize = DEFAULT_MAX_SAMPLE_SIZE;
+    private ByteBuffer buffer;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+    private volatile long videoTimeUs = Long.MIN_VALUE;
+    private volatile boolean videoFinished;
+    private volatile boolean cancelled;
+    private Thread thread;
+    private boolean released;
+    private long samplesWritten;
+    private long bytesWritten;
+
+    /**
+     * Opens the source and selects all of its audio tracks in [startUs, endUs).
+     */
+    AudioPassthrough(Context context, Uri sourceUri, long startUs, long endUs) throws IOException {
+        this.startUs = startUs;
+        this.endUs = endUs;
+        extractor.setDataSource(context, sourceUri, null);
+        muxerTrackIndices = new int[extractor.getTrackCount()];
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            muxerTrackIndices[i] = -1;
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                trackCount++;
+                if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                    maxSampleSize = Math.max(maxSampleSize, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+                }
+            }
+        }
+        if (startUs > 0) {
+            extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
+        buffer = ByteBuffer.allocateDirect(maxSampleSize);
+    }
+
+    boolean hasAudio() {
+        return trackCount > 0;
+    }
+
+    /**
+     * Adds the selected audio tracks to the muxer. Must be called before the muxer is started.
+     */
+    void addTracks(MediaMuxer muxer) {
+        for (int i = 0; i < muxerTrackIndices.length; i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                muxerTrackIndices[i] = muxer.addTrack(format);
+            }
+        }
+    }
+
+    /**
+     * Starts copying samples on a background thread. The muxer must already be started.
+     */
+    void start(MediaMuxer muxer) {
+        if (trackCount == 0) {
+            return;
+        }
+        thread = new Thread(() -> runCopyLoop(muxer), "audio-passthrough");
+        thread.start();
+    }
+
+    /**
+     * Lets the audio thread advance up to {@code timeUs} plus the allowed lead.
+     */
+    void onVideoTime(long timeUs) {
+        if (timeUs > videoTimeUs) {
+            videoTimeUs = timeUs;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    /**
+     * Copies the remaining samples, waits for the audio thread to finish and releases the
+     * extractor. Must be called before the muxer is stopped.
+     */
+    void finish() {
+        videoFinished = true;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        release();
+        Log.d(TAG, "finish: " + samplesWritten + " audio samples, " + bytesWritten + " bytes");
+    }
+
+    /**
+     * Stops the audio thread without copying the remaining samples, waits for it and releases the
+     * extractor. Used when the output is going to be deleted. Must be called before the muxer is
+     * released.
+     */
+    void cancel() {
+        cancelled = true;
+        finish();
+    }
+
+    /**
+     * Copies samples up to {@code timeUs} plus the allowed lead on the calling thread. Used when
+     * the video samples are written from the same thread, e.g. when stitching.
+     */
+    void copyUntil(MediaMuxer muxer, long timeUs) {
+        copySamples(muxer, timeUs + MAX_LEAD_US);
+    }
+
+    /**
+     * Copies the remaining samples on the calling thread and releases the extractor.
+     */
+    void copyRemaining(MediaMuxer muxer) {
+        copySamples(muxer, Long.MAX_VALUE);
+        release();
+    }
+
+    void release() {
+        if (!released) {
+            released = true;
+            extractor.release();
+        }
+    }
+
+    private void runCopyLoop(MediaMuxer muxer) {
+        while (true) {
+            boolean finished = videoFinished;
+            long limitUs = finished ? Long.MAX_VALUE : videoTimeUs + MAX_LEAD_US;
+            if (!copySamples(muxer, limitUs)) {
+                return;
+            }
+            if (!finished) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * @return true if samples after {@code limitUs} are left
+     */
+    private boolean copySamples(MediaMuxer muxer, long limitUs) {
+        while (true) {
+            long sampleTimeUs = extractor.getSampleTime();
+            if (cancelled || sampleTimeUs < 0 || sampleTimeUs >= endUs) {
+                return false;
+            }
+            if (sampleTimeUs > limitUs) {
+                return true;
+            }
+            int size = extractor.readSampleData(buffer, 0);
+            int trackIndex = muxerTrackIndices[extractor.getSampleTrackIndex()];
+            if (size >= 0 && trackIndex >= 0 && sampleTimeUs >= startUs) {
+                boolean sync = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+                info.set(0, size, sampleTimeUs, sync ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                synchronized (muxer) {
+                    muxer.writeSampleData(trackIndex, buffer, info);
+                }
+                samplesWritten++;
+                bytesWritten += size;
+            }
+            if (!extractor.advance()) {
+                return false;
+            }
+        }
+    }
+}
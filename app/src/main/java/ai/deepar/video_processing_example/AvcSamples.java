@@ -0,0 +1,46 @@
+package ai.deepar.video_processing_example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Inspects H.264 access units in Annex B byte stream format, as delivered by MediaExtractor.
+ */
+final class AvcSamples {
+
+    private static final int NAL_TYPE_SLICE = 1;
+    private static final int NAL_TYPE_IDR_SLICE = 5;
+
+    private AvcSamples() {
+    }
+
+    /**
+     * @return true if the access unit in {@code buffer} from its position on has slices and none
+     * of them is used for reference (nal_ref_idc 0), so no other frame depends on it. False for
+     * anything that is not in Annex B format.
+     */
+    static boolean isNonReference(ByteBuffer buffer, int size) {
+        int start = buffer.position();
+        int end = Math.min(buffer.limit(), start + size);
+        boolean hasSlice = false;
+        int zeros = 0;
+        for (int i = start; i < end - 1; i++) {
+            int b = buffer.get(i) & 0xff;
+            if (b == 0) {
+                zeros++;
+                continue;
+            }
+            if (b == 1 && zeros >= 2) {
+                int header = buffer.get(i + 1) & 0xff;
+                int type = header & 0x1f;
+                if (type >= NAL_TYPE_SLICE && type <= NAL_TYPE_IDR_SLICE) {
+                    if ((header & 0x60) != 0) {
+                        return false;
+                    }
+                    hasSlice = true;
+                }
+            }
+            zeros = 0;
+        }
+        return hasSlice;
+    }
+}
@@ -0,0 +1,128 @@
+package ai.deepar.video_processing_example;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Codec capabilities scanned once per process. Candidates for a MIME type are ordered hardware
+ * codecs first, keeping the platform's order otherwise.
+ */
+class CodecCapabilityCache {
+
+    private static final String TAG = CodecCapabilityCache.class.getSimpleName();
+
+    private static CodecCapabilityCache instance;
+
+    private final Map<String, List<MediaCodecInfo>> decoders = new HashMap<>();
+    private final Map<String, List<MediaCodecInfo>> encoders = new HashMap<>();
+
+    static synchronized CodecCapabilityCache getInstance() {
+        if (instance == null) {
+            instance = new CodecCapabilityCache();
+        }
+        return instance;
+    }
+
+    private CodecCapabilityCache() {
+        long startNanos = System.nanoTime();
+        List<MediaCodecInfo> hardware = new ArrayList<>();
+        List<MediaCodecInfo> software = new ArrayList<>();
+        for (MediaCodecInfo codecInfo : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            (isHardwareAccelerated(codecInfo) ? hardware : software).add(codecInfo);
+        }
+        hardware.addAll(software);
+        for (MediaCodecInfo codecInfo : hardware) {
+            Map<String, List<MediaCodecInfo>> codecs = codecInfo.isEncoder() ? encoders : decoders;
+            for (String type : codecInfo.getSupportedTypes()) {
+                String mime = type.toLowerCase();
+                List<MediaCodecInfo> candidates = codecs.get(mime);
+                if (candidates == null) {
+                    candidates = new ArrayList<>();
+                    codecs.put(mime, candidates);
+                }
+                candidates.add(codecInfo);
+            }
+        }
+        Log.d(TAG, "scanned " + hardware.size() + " codecs in " + (System.nanoTime() - startNanos) / 1_000_000 + " ms");
+    }
+
+    List<MediaCodecInfo> getDecoders(String mime) {
+        return candidates(decoders, mime);
+    }
+
+    List<MediaCodecInfo> getEncoders(String mime) {
+        return candidates(encoders, mime);
+    }
+
+    List<String> getDecoderNames(String mime) {
+        List<String> names = new ArrayList<>();
+        for (MediaCodecInfo codecInfo : getDecoders(mime)) {
+            names.add(codecInfo.getName());
+        }
+        return names;
+    }
+
+    /**
+     * @return name of the first decoder able to decode the format, or null if there is none
+     */
+    String findDecoder(MediaFormat format) {
+        return findCodec(getDecoders(format.getString(MediaFormat.KEY_MIME)), format);
+    }
+
+    /**
+     * @return name of the first encoder able to produce the format, or null if there is none
+     */
+    String findEncoder(MediaFormat format) {
+        return findCodec(getEncoders(format.getString(MediaFormat.KEY_MIME)), format);
+    }
+
+    /**
+     * @return number of concurrent instances supported by the codec that {@link #findDecoder} or
+     * {@link #findEncoder} picks for the format, or 0 if there is none
+     */
+    int getMaxSupportedInstances(MediaFormat format, boolean encoder) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        MediaCodecInfo codecInfo = findCodecInfo(encoder ? getEncoders(mime) : getDecoders(mime), format);
+        return codecInfo == null ? 0 : codecInfo.getCapabilitiesForType(mime).getMaxSupportedInstances();
+    }
+
+    /**
+     * Tells software codecs apart by name, as {@code MediaCodecInfo.isHardwareAccelerated()} is
+     * not available before API 29.
+     */
+    static boolean isHardwareAccelerated(MediaCodecInfo codecInfo) {
+        String name = codecInfo.getName().toLowerCase();
+        return !name.startsWith("omx.google.") && !name.startsWith("c2.android.") && !name.contains(".sw.");
+    }
+
+    private static List<MediaCodecInfo> candidates(Map<String, List<MediaCodecInfo>> codecs, String mime) {
+        List<MediaCodecInfo> candidates = codecs.get(mime.toLowerCase());
+        return candidates == null ? Collections.<MediaCodecInfo>emptyList() : candidates;
+    }
+
+    private static String findCodec(List<MediaCodecInfo> candidates, MediaFormat format) {
+        MediaCodecInfo codecInfo = findCodecInfo(candidates, format);
+        return codecInfo == null ? null : codecInfo.getName();
+    }
+
+    private static MediaCodecInfo findCodecInfo(List<MediaCodecInfo> candidates, MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        for (MediaCodecInfo codecInfo : candidates) {
+            MediaCodecInfo.VideoCapabilities videoCapabilities = codecInfo.getCapabilitiesForType(mime).getVideoCapabilities();
+            if (videoCapabilities == null || videoCapabilities.isSizeSupported(width, height)) {
+                return codecInfo;
+            }
+        }
+        return null;
+    }
+}
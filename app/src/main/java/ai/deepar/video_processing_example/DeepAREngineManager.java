@@ -0,0 +1,247 @@
+package ai.deepar.video_processing_example;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.Image;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import ai.deepar.ar.ARErrorType;
+import ai.deepar.ar.AREventListener;
+import ai.deepar.ar.DeepAR;
+
+/**
+ * Keeps initialized DeepAR engines alive between processing jobs, so engine start-up and effect
+ * loading are paid once rather than for every clip.
+ * <p>
+ * An engine handed back after a job is detached from its render surface and kept idle together
+ * with the effect it has loaded. The next job gets an idle engine that already has its effect
+ * loaded if there is one, so switching back and forth between recently used effects costs
+ * nothing. Idle engines are released once none has been used for the idle timeout.
+ */
+class DeepAREngineManager {
+
+    private static final String TAG = DeepAREngineManager.class.getSimpleName();
+
+    static final long DEFAULT_IDLE_TIMEOUT_MS = 30_000;
+    static final int DEFAULT_MAX_IDLE_ENGINES = 2;
+
+    private static final String EFFECT_SLOT = "mask";
+
+    private static DeepAREngineManager instance;
+
+    interface Callback {
+        /**
+         * @param warm true if the engine was reused, false if it has just been initialized
+         */
+        void onEngineReady(Engine engine, boolean warm);
+    }
+
+    private final Context context;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable releaseIdleEngines = this::releaseIdleEngines;
+
+    // Most recently used first.
+    private final ArrayDeque<Engine> idleEngines = new ArrayDeque<>();
+    private long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+    private int maxIdleEngines = DEFAULT_MAX_IDLE_ENGINES;
+
+    static synchronized DeepAREngineManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new DeepAREngineManager(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private DeepAREngineManager(Context context) {
+        this.context = context;
+    }
+
+    synchronized void setIdleTimeout(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Sets how many engines are kept once their jobs have finished. Each one holds its own GL
+     * context and loaded effect.
+     */
+    void setMaxIdleEngines(int maxIdleEngines) {
+        List<Engine> evicted = new ArrayList<>();
+        synchronized (this) {
+            this.maxIdleEngines = maxIdleEngines;
+            while (idleEngines.size() > maxIdleEngines) {
+                evicted.add(idleEngines.removeLast());
+            }
+        }
+        for (Engine engine : evicted) {
+            engine.release();
+        }
+    }
+
+    /**
+     * Hands out an initialized engine. An idle engine is passed to the callback right away on
+     * the calling thread; otherwise a new engine is created and passed on from DeepAR's
+     * {@code initialized()} callback.
+     *
+     * @param effectUri effect the job starts with, used to pick an idle engine that has it loaded
+     */
+    void acquire(String effectUri, Callback callback) {
+        Engine engine;
+        synchronized (this) {
+            engine = takeIdleEngine(effectUri);
+            if (idleEngines.isEmpty()) {
+                handler.removeCallbacks(releaseIdleEngines);
+            }
+        }
+        if (engine != null) {
+            Log.d(TAG, "acquire: reusing engine with effect " + engine.loadedEffectUri);
+            callback.onEngineReady(engine, true);
+            return;
+        }
+        Log.d(TAG, "acquire: initializing new engine");
+        new Engine().initialize(callback);
+    }
+
+    /**
+     * Takes back an engine once its job has finished. The engine is detached from its render
+     * surface before this method returns, so the surface may be released afterwards.
+     */
+    void recycle(Engine engine) {
+        engine.detach();
+        Engine evicted = null;
+        synchronized (this) {
+            idleEngines.addFirst(engine);
+            if (idleEngines.size() > maxIdleEngines) {
+                evicted = idleEngines.removeLast();
+            }
+            handler.removeCallbacks(releaseIdleEngines);
+            handler.postDelayed(releaseIdleEngines, idleTimeoutMs);
+        }
+        if (evicted != null) {
+            evicted.release();
+        }
+    }
+
+    void releaseIdleEngines() {
+        List<Engine> engines;
+        synchronized (this) {
+            handler.removeCallbacks(releaseIdleEngines);
+            engines = new ArrayList<>(idleEngines);
+            idleEngines.clear();
+        }
+        Log.d(TAG, "releaseIdleEngines: releasing " + engines.size() + " engines");
+        for (Engine engine : engines) {
+            engine.release();
+        }
+    }
+
+    private Engine takeIdleEngine(String effectUri) {
+        for (Iterator<Engine> iterator = idleEngines.iterator(); iterator.hasNext(); ) {
+            Engine engine = iterator.next();
+            if (effectUri != null && effectUri.equals(engine.loadedEffectUri)) {
+                iterator.remove();
+                return engine;
+            }
+        }
+        return idleEngines.pollFirst();
+    }
+
+    class Engine {
+
+        private final DeepAR deepAR = new DeepAR(context);
+        private String loadedEffectUri;
+
+        private void initialize(Callback callback) {
+            deepAR.setLicenseKey("your_license_key_goes_here");
+            deepAR.initialize(context, new AREventListener() {
+                @Override
+                public void screenshotTaken(Bitmap bitmap) {
+                }
+
+                @Override
+                public void videoRecordingStarted() {
+                }
+
+                @Override
+                public void videoRecordingFinished() {
+                }
+
+                @Override
+                public void videoRecordingFailed() {
+                }
+
+                @Override
+                public void videoRecordingPrepared() {
+                }
+
+                @Override
+                public void shutdownFinished() {
+                }
+
+                @Override
+                public void initialized() {
+                    deepAR.changeLiveMode(false);
+                    callback.onEngineReady(Engine.this, false);
+                }
+
+                @Override
+                public void faceVisibilityChanged(boolean b) {
+                }
+
+                @Override
+                public void imageVisibilityChanged(String s, boolean b) {
+                }
+
+                @Override
+                public void frameAvailable(Image image) {
+                }
+
+                @Override
+                public void error(ARErrorType arErrorType, String s) {
+                    Log.e(TAG, "error: " + arErrorType + " " + s);
+                }
+
+                @Override
+                public void effectSwitched(String s) {
+                }
+            });
+            deepAR.useSingleThreadedMode(false); // Calls to receiveFrame will be blocking.
+        }
+
+        DeepAR getDeepAR() {
+            return deepAR;
+        }
+
+        void attach(Surface surface, int width, int height) {
+            deepAR.setRenderSurface(surface, width, height);
+        }
+
+        /**
+         * Loads an effect, or unloads the current one if {@code effectUri} is null. Does nothing
+         * if the effect is already loaded.
+         */
+        void switchEffect(String effectUri) {
+            if (effectUri == null ? loadedEffectUri == null : effectUri.equals(loadedEffectUri)) {
+                return;
+            }
+            loadedEffectUri = effectUri;
+            deepAR.switchEffect(EFFECT_SLOT, effectUri);
+        }
+
+        private void detach() {
+            deepAR.setRenderSurface(null, 0, 0);
+        }
+
+        private void release() {
+            deepAR.setAREventListener(null);
+            deepAR.release();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package ai.deepar.video_processing_example;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Loads effect thumbnails from the assets into image views without blocking the main thread.
+ * <p>
+ * Thumbnails are decoded on a background thread, downsampled to about the size of a grid cell
+ * and kept in a memory cache bounded by bytes, so rebinding the grid only decodes what is not
+ * cached yet. A load is cancelled when its view is bound to another thumbnail, so a recycled
+ * view never shows a stale image. {@link #load} and {@link #release} must be called on the main
+ * thread.
+ */
+class EffectThumbnailLoader {
+
+    private static final String TAG = EffectThumbnailLoader.class.getSimpleName();
+
+    private final Context context;
+    private final int targetSize;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<String, Bitmap> cache;
+    private final Map<ImageView, LoadTask> pendingLoads = new HashMap<>();
+
+    /**
+     * @param targetSize size of a grid cell in pixels; thumbnails are decoded to at least this
+     *                   size in both dimensions
+     */
+    EffectThumbnailLoader(Context context, int targetSize) {
+        this.context = context.getApplicationContext();
+        this.targetSize = targetSize;
+        // An eighth of the heap, in KiB.
+        int maxCacheKb = (int) (Runtime.getRuntime().maxMemory() / 1024 / 8);
+        this.cache = new LruCache<String, Bitmap>(maxCacheKb) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount() / 1024;
+            }
+        };
+        this.thread = new HandlerThread("thumbnail-loading");
+        thread.start();
+        this.handler = new Handler(thread.getLooper());
+    }
+
+    void load(String assetPath, ImageView imageView) {
+        LoadTask pending = pendingLoads.remove(imageView);
+        if (pending != null) {
+            if (pending.assetPath.equals(assetPath)) {
+                pendingLoads.put(imageView, pending);
+                return;
+            }
+            pending.cancel();
+        }
+
+        Bitmap bitmap = cache.get(assetPath);
+        if (bitmap != null) {
+            imageView.setImageBitmap(bitmap);
+            return;
+        }
+        imageView.setImageDrawable(null);
+        LoadTask task = new LoadTask(assetPath, imageView);
+        pendingLoads.put(imageView, task);
+        handler.post(task);
+    }
+
+    void release() {
+        for (LoadTask task : pendingLoads.values()) {
+            task.cancel();
+        }
+        pendingLoads.clear();
+        thread.quitSafely();
+        cache.evictAll();
+    }
+
+    private Bitmap decode(String assetPath) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream is = context.getAssets().open(assetPath)) {
+            BitmapFactory.decodeStream(is, null, options);
+        }
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, targetSize);
+        options.inJustDecodeBounds = false;
+        try (InputStream is = context.getAssets().open(assetPath)) {
+            return BitmapFactory.decodeStream(is, null, options);
+        }
+    }
+
+    /**
+     * @return the largest power of two that keeps both dimensions at or above
+     * {@code targetSize}
+     */
+    static int calculateInSampleSize(int width, int height, int targetSize) {
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= targetSize && height / (inSampleSize * 2) >= targetSize) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    private class LoadTask implements Runnable {
+
+        private final String assetPath;
+        private final ImageView imageView;
+        private volatile boolean cancelled;
+
+        LoadTask(String assetPath, ImageView imageView) {
+            this.assetPath = assetPath;
+            this.imageView = imageView;
+        }
+
+        void cancel() {
+            cancelled = true;
+            handler.removeCallbacks(this);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            Bitmap decoded;
+            try {
+                decoded = decode(assetPath);
+            } catch (IOException e) {
+                Log.e(TAG, "could not load " + assetPath, e);
+                decoded = null;
+            }
+            Bitmap bitmap = decoded;
+            mainHandler.post(() -> {
+                if (bitmap != null) {
+                    cache.put(assetPath, bitmap);
+                }
+                if (pendingLoads.get(imageView) == this) {
+                    pendingLoads.remove(imageView);
+                    if (!cancelled && bitmap != null) {
+                        imageView.setImageBitmap(bitmap);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package ai.deepar.video_processing_example;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.view.Surface;
+
+/**
+ * An EGL display and GLES 2 context, current on the thread that created it. Not thread-safe;
+ * create, use and release it on one thread.
+ */
+class EglCore {
+
+    // EGLExt.EGL_RECORDABLE_ANDROID, which needs API 26.
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+
+    private EGLDisplay display = EGL14.EGL_NO_DISPLAY;
+    private EGLContext context = EGL14.EGL_NO_CONTEXT;
+    private EGLConfig config;
+    // The context needs a surface to be made current when no window surface is.
+    private EGLSurface pbufferSurface = EGL14.EGL_NO_SURFACE;
+
+    /**
+     * @param recordable true if window surfaces of encoder input surfaces will be created
+     * @throws IllegalStateException if no context could be created
+     */
+    EglCore(boolean recordable) {
+        display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        if (display == EGL14.EGL_NO_DISPLAY || !EGL14.eglInitialize(display, version, 0, version, 1)) {
+            display = EGL14.EGL_NO_DISPLAY;
+            throw new IllegalStateException("Could not initialize EGL: " + EGL14.eglGetError());
+        }
+        int[] configAttributes = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_SURFACE_TYPE, recordable ? EGL14.EGL_WINDOW_BIT | EGL14.EGL_PBUFFER_BIT : EGL14.EGL_PBUFFER_BIT,
+                recordable ? EGL_RECORDABLE_ANDROID : EGL14.EGL_NONE, 1,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] configCount = new int[1];
+        if (!EGL14.eglChooseConfig(display, configAttributes, 0, configs, 0, 1, configCount, 0) || configCount[0] == 0) {
+            release();
+            throw new IllegalStateException("No EGL config: " + EGL14.eglGetError());
+        }
+        config = configs[0];
+        context = EGL14.eglCreateContext(display, config, EGL14.EGL_NO_CONTEXT, new int[]{EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE}, 0);
+        pbufferSurface = EGL14.eglCreatePbufferSurface(display, config, new int[]{EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE}, 0);
+        if (context == EGL14.EGL_NO_CONTEXT || pbufferSurface == EGL14.EGL_NO_SURFACE) {
+            release();
+            throw new IllegalStateException("Could not create a GL context: " + EGL14.eglGetError());
+        }
+        makeCurrent(pbufferSurface);
+    }
+
+    EGLSurface createWindowSurface(Surface surface) {
+        EGLSurface windowSurface = EGL14.eglCreateWindowSurface(display, config, surface, new int[]{EGL14.EGL_NONE}, 0);
+        if (windowSurface == EGL14.EGL_NO_SURFACE) {
+            throw new IllegalStateException("Could not create a window surface: " + EGL14.eglGetError());
+        }
+        return windowSurface;
+    }
+
+    void makeCurrent(EGLSurface surface) {
+        if (!EGL14.eglMakeCurrent(display, surface, surface, context)) {
+            throw new IllegalStateException("eglMakeCurrent failed: " + EGL14.eglGetError());
+        }
+    }
+
+    /**
+     * Stamps the next frame swapped to {@code surface}, e.g. for an encoder input surface.
+     */
+    void setPresentationTime(EGLSurface surface, long timeNanos) {
+        EGLExt.eglPresentationTimeANDROID(display, surface, timeNanos);
+    }
+
+    boolean swapBuffers(EGLSurface surface) {
+        return EGL14.eglSwapBuffers(display, surface);
+    }
+
+    void releaseSurface(EGLSurface surface) {
+        makeCurrent(pbufferSurface);
+        EGL14.eglDestroySurface(display, surface);
+    }
+
+    /**
+     * @return a new {@code GL_TEXTURE_EXTERNAL_OES} texture, e.g. for a {@code SurfaceTexture}
+     */
+    static int createExternalTexture() {
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        return textures[0];
+    }
+
+    void release() {
+        if (display == EGL14.EGL_NO_DISPLAY) {
+            return;
+        }
+        EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        if (pbufferSurface != EGL14.EGL_NO_SURFACE) {
+            EGL14.eglDestroySurface(display, pbufferSurface);
+        }
+        if (context != EGL14.EGL_NO_CONTEXT) {
+            EGL14.eglDestroyContext(display, context);
+        }
+        EGL14.eglReleaseThread();
+        EGL14.eglTerminate(display);
+        display = EGL14.EGL_NO_DISPLAY;
+    }
+}
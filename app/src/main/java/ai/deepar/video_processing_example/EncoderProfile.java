@@ -0,0 +1,223 @@
+package ai.deepar.video_processing_example;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+/**
+ * Codec, rate control and bitrate choices for the encoded output.
+ * <p>
+ * {@link #LEGACY_AVC} encodes H.264 at a fixed 0.15 bits per pixel, as the app always did.
+ * {@link #CONTENT_ADAPTIVE} prefers HEVC, targets a quality (CQ) or a variable bitrate (VBR)
+ * where the encoder supports it, and derives the bitrate from the output resolution and frame
+ * rate, capped by the source's own bitrate: re-encoding cannot add detail the source does not
+ * have. The encoder's capabilities are checked before anything is configured; when no encoder
+ * accepts a format, the legacy AVC format is used.
+ */
+public class EncoderProfile {
+
+    private static final String TAG = EncoderProfile.class.getSimpleName();
+
+    private static final String AVC_MIME = "video/avc";
+    private static final String HEVC_MIME = "video/hevc";
+
+    private static final float BPP = 0.15f;
+    private static final int I_FRAME_INTERVAL = 5;
+
+    // Bits per pixel shrink with the fourth root of the pixel count, relative to 720p.
+    private static final double REFERENCE_PIXELS = 1280 * 720;
+    private static final float MIN_BPP = 0.03f;
+    // HEVC needs about this fraction of the AVC bitrate for the same quality.
+    private static final float HEVC_EFFICIENCY = 0.6f;
+    // Rendered effects add some detail on top of the source.
+    private static final float SOURCE_HEADROOM = 1.25f;
+    // Position within the encoder's quality range targeted in CQ mode.
+    private static final float CQ_QUALITY = 0.75f;
+
+    public static final EncoderProfile LEGACY_AVC = new EncoderProfile(false, false, false);
+    public static final EncoderProfile CONTENT_ADAPTIVE = new EncoderProfile(true, true, true);
+
+    private final boolean hevcAllowed;
+    private final boolean qualityTargeted;
+    private final boolean contentAdaptiveBitRate;
+
+    /**
+     * @param hevcAllowed            encode HEVC if an encoder supports the output size and rate
+     * @param qualityTargeted        use CQ, or else VBR, rate control where supported
+     * @param contentAdaptiveBitRate derive the bitrate from resolution and source bitrate instead
+     *                               of a fixed number of bits per pixel
+     */
+    public EncoderProfile(boolean hevcAllowed, boolean qualityTargeted, boolean contentAdaptiveBitRate) {
+        this.hevcAllowed = hevcAllowed;
+        this.qualityTargeted = qualityTargeted;
+        this.contentAdaptiveBitRate = contentAdaptiveBitRate;
+    }
+
+    /**
+     * Describes the settings that shape the output, e.g. to tell cached outputs apart.
+     */
+    public String describe() {
+        return (hevcAllowed ? HEVC_MIME + "|" : "") + AVC_MIME
+                + ";bpp=" + BPP
+                + ";iFrameInterval=" + I_FRAME_INTERVAL
+                + (qualityTargeted ? ";cq=" + CQ_QUALITY : "")
+                + (contentAdaptiveBitRate ? ";adaptive" : "");
+    }
+
+    /**
+     * @return true if the bitrate depends on the source's bitrate, see {@link #select}
+     */
+    boolean isContentAdaptive() {
+        return contentAdaptiveBitRate;
+    }
+
+    /**
+     * Picks the first encoder, in codec preference order, that accepts a format for the output,
+     * and the format it accepts.
+     *
+     * @param sourceBitsPerPixel bits per pixel and frame of the source video, or 0 if unknown
+     * @param avcOnly            true if the output can only hold H.264, e.g. fragmented output
+     * @return the chosen encoder and format; the codec name is null if no encoder supports the
+     * output at all
+     */
+    Selection select(CodecCapabilityCache capabilities, int width, int height, float frameRate, float sourceBitsPerPixel, boolean avcOnly) {
+        String[] mimes = hevcAllowed && !avcOnly ? new String[]{HEVC_MIME, AVC_MIME} : new String[]{AVC_MIME};
+        for (String mime : mimes) {
+            for (MediaCodecInfo codecInfo : capabilities.getEncoders(mime)) {
+                MediaFormat format = createFormat(codecInfo.getCapabilitiesForType(mime), mime, width, height, frameRate, sourceBitsPerPixel);
+                if (format != null) {
+                    Log.d(TAG, "select: " + codecInfo.getName() + " with " + format);
+                    return new Selection(codecInfo.getName(), format);
+                }
+            }
+        }
+        MediaFormat fallback = createFallbackFormat(width, height, frameRate);
+        return new Selection(capabilities.findEncoder(fallback), fallback);
+    }
+
+    /**
+     * @return the format encoded before profiles existed, accepted by practically every device
+     */
+    static MediaFormat createFallbackFormat(int width, int height, float frameRate) {
+        return createBaseFormat(AVC_MIME, width, height, frameRate, (int) (BPP * frameRate * width * height));
+    }
+
+    private static MediaFormat createBaseFormat(String mime, int width, int height, float frameRate, int bitRate) {
+        MediaFormat format = MediaFormat.createVideoFormat(mime, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, Math.max(1, Math.round(frameRate)));
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+        return format;
+    }
+
+    /**
+     * @return a format the encoder claims to support, or null if it supports none for the output
+     */
+    private MediaFormat createFormat(MediaCodecInfo.CodecCapabilities codecCapabilities, String mime, int width, int height, float frameRate, float sourceBitsPerPixel) {
+        MediaCodecInfo.VideoCapabilities videoCapabilities = codecCapabilities.getVideoCapabilities();
+        if (videoCapabilities == null || !videoCapabilities.areSizeAndRateSupported(width, height, frameRate)) {
+            return null;
+        }
+        int bitRate = getBitRate(HEVC_MIME.equals(mime), width, height, frameRate, sourceBitsPerPixel);
+        bitRate = videoCapabilities.getBitrateRange().clamp(bitRate);
+
+        // Optional keys are left out one after another until the encoder accepts the format.
+        for (int optionalKeys = 2; optionalKeys >= 0; optionalKeys--) {
+            MediaFormat format = createBaseFormat(mime, width, height, frameRate, bitRate);
+            if (optionalKeys >= 1) {
+                setRateControl(codecCapabilities.getEncoderCapabilities(), format);
+            }
+            if (optionalKeys >= 2) {
+                setProfileLevel(codecCapabilities, mime, format);
+            }
+            if (codecCapabilities.isFormatSupported(format)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    private void setRateControl(MediaCodecInfo.EncoderCapabilities encoderCapabilities, MediaFormat format) {
+        if (!qualityTargeted || encoderCapabilities == null) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P
+                && encoderCapabilities.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ)) {
+            Range<Integer> qualityRange = encoderCapabilities.getQualityRange();
+            if (qualityRange.getUpper() > qualityRange.getLower()) {
+                int quality = Math.round(qualityRange.getLower() + CQ_QUALITY * (qualityRange.getUpper() - qualityRange.getLower()));
+                format.setInteger(MediaFormat.KEY_BITRATE_MODE, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ);
+                format.setInteger(MediaFormat.KEY_QUALITY, quality);
+                return;
+            }
+        }
+        if (encoderCapabilities.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR)) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR);
+        }
+    }
+
+    /**
+     * Sets the most capable 8-bit profile the encoder advertises, at the highest level it
+     * advertises for that profile.
+     */
+    private static void setProfileLevel(MediaCodecInfo.CodecCapabilities codecCapabilities, String mime, MediaFormat format) {
+        int[] preferredProfiles = HEVC_MIME.equals(mime)
+                ? new int[]{MediaCodecInfo.CodecProfileLevel.HEVCProfileMain}
+                : new int[]{MediaCodecInfo.CodecProfileLevel.AVCProfileHigh, MediaCodecInfo.CodecProfileLevel.AVCProfileMain, MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline};
+        for (int profile : preferredProfiles) {
+            int level = 0;
+            for (MediaCodecInfo.CodecProfileLevel profileLevel : codecCapabilities.profileLevels) {
+                if (profileLevel.profile == profile) {
+                    level = Math.max(level, profileLevel.level);
+                }
+            }
+            if (level > 0) {
+                format.setInteger(MediaFormat.KEY_PROFILE, profile);
+                format.setInteger(MediaFormat.KEY_LEVEL, level);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param sourceBitsPerPixel bits per pixel and frame of the source video, or 0 if unknown
+     * @return the target bitrate in bits per second
+     */
+    int getBitRate(boolean hevc, int width, int height, float frameRate, float sourceBitsPerPixel) {
+        double pixels = (double) width * height;
+        if (!contentAdaptiveBitRate) {
+            return (int) (BPP * frameRate * pixels);
+        }
+        double bitsPerPixel = BPP * Math.pow(REFERENCE_PIXELS / pixels, 0.25);
+        if (sourceBitsPerPixel > 0) {
+            bitsPerPixel = Math.min(bitsPerPixel, sourceBitsPerPixel * SOURCE_HEADROOM);
+        }
+        bitsPerPixel = Math.max(bitsPerPixel, MIN_BPP);
+        if (hevc) {
+            bitsPerPixel *= HEVC_EFFICIENCY;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, bitsPerPixel * frameRate * pixels);
+    }
+
+    static final class Selection {
+
+        private final String codecName;
+        private final MediaFormat format;
+
+        Selection(String codecName, MediaFormat format) {
+            this.codecName = codecName;
+            this.format = format;
+        }
+
+        String getCodecName() {
+            return codecName;
+        }
+
+        MediaFormat getFormat() {
+            return format;
+        }
+    }
+}
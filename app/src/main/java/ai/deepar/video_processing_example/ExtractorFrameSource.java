@@ -0,0 +1,46 @@
+package ai.deepar.video_processing_example;
+
+import android.media.MediaExtractor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link FrameSource} reading the selected track of a {@link MediaExtractor}, optionally up to
+ * the first sync sample at or after an end time.
+ */
+class ExtractorFrameSource implements FrameSource {
+
+    private final MediaExtractor mediaExtractor;
+    private final long endUs;
+
+    ExtractorFrameSource(MediaExtractor mediaExtractor, long endUs) {
+        this.mediaExtractor = mediaExtractor;
+        this.endUs = endUs;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer) {
+        return mediaExtractor.readSampleData(buffer, 0);
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mediaExtractor.getSampleTime();
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return (mediaExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0 ? FramePipeline.FLAG_KEY_FRAME : 0;
+    }
+
+    @Override
+    public boolean advance() {
+        return mediaExtractor.advance() && !reachedEnd();
+    }
+
+    private boolean reachedEnd() {
+        return endUs != Long.MAX_VALUE
+                && mediaExtractor.getSampleTime() >= endUs
+                && (mediaExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+    }
+}
@@ -0,0 +1,524 @@
+package ai.deepar.video_processing_example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * {@link FrameSink} writing H.264 samples to a fragmented MP4 file (ISO/IEC 14496-12 movie
+ * fragments) with a single video track.
+ * <p>
+ * The file starts with an init segment ({@code ftyp} and an empty {@code moov}) as soon as the
+ * parameter sets are known. After that every fragment is a {@code moof} box followed by an
+ * {@code mdat} box and is written once at least the configured number of frames has been
+ * collected and the next sync sample arrives, so each fragment starts with a sync sample and can
+ * be played or uploaded as soon as it is on disk. A fragment is gathered in memory and written
+ * with a single gathering write, so the channel sees a few large writes rather than one per
+ * sample.
+ * <p>
+ * Samples are expected in decode order, in Annex B format as produced by MediaCodec, and are
+ * converted to 4-byte length prefixes. Decode times are the sorted presentation times of a
+ * fragment, so reordered (B-frame) output is stored with composition offsets. Timestamps are
+ * shifted so that the first sample starts at zero.
+ */
+class FragmentedMp4Writer implements FrameSink, Closeable {
+
+    static final int TIMESCALE = 90_000;
+    static final int DEFAULT_FRAGMENT_FRAMES = 30;
+
+    private static final int TRACK_ID = 1;
+    private static final int NAL_TYPE_SPS = 7;
+    private static final int NAL_TYPE_PPS = 8;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    // data-offset, sample-duration, sample-size, sample-flags, sample-composition-time-offset
+    private static final int TRUN_FLAGS = 0x000f01;
+
+    interface Listener {
+        /**
+         * Called on the writing thread once a fragment has been written; the file is playable up
+         * to {@code fileSize}.
+         */
+        void onFragmentWritten(int sequenceNumber, long fileSize);
+    }
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int fragmentFrames;
+    private Listener listener;
+
+    private byte[] sps;
+    private byte[] pps;
+    private boolean initSegmentWritten;
+    private long firstTimeUs = -1;
+    private long lastSampleDurationTicks = TIMESCALE / 30;
+    private int sequenceNumber;
+    private long bytesWritten;
+    private boolean closed;
+
+    // Samples of the fragment being collected.
+    private ByteBuffer sampleData = ByteBuffer.allocate(256 * 1024);
+    private int sampleCount;
+    private long[] sampleTimesUs = new long[DEFAULT_FRAGMENT_FRAMES * 2];
+    private int[] sampleSizes = new int[DEFAULT_FRAGMENT_FRAMES * 2];
+    private boolean[] sampleSync = new boolean[DEFAULT_FRAGMENT_FRAMES * 2];
+
+    private ByteBuffer boxes = ByteBuffer.allocate(4096);
+
+    /**
+     * @param channel        channel positioned where the file starts; closed by {@link #close()}
+     * @param fragmentFrames minimum number of frames per fragment
+     */
+    FragmentedMp4Writer(FileChannel channel, int width, int height, int fragmentFrames) {
+        if (fragmentFrames < 1) {
+            throw new IllegalArgumentException("Fragments need at least one frame");
+        }
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+        this.fragmentFrames = fragmentFrames;
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Takes the SPS and PPS from Annex B data, e.g. an encoder's codec config buffer or its
+     * csd-0 and csd-1. Must happen before the first sample is written.
+     */
+    void addParameterSets(ByteBuffer buffer, int size) {
+        int end = buffer.position() + size;
+        int startCode = findStartCode(buffer, buffer.position(), end);
+        while (startCode < end) {
+            int nalStart = startCode + startCodeLength(buffer, startCode, end);
+            startCode = findStartCode(buffer, nalStart, end);
+            byte[] nal = new byte[trimTrailingZeros(buffer, nalStart, startCode) - nalStart];
+            for (int i = 0; i < nal.length; i++) {
+                nal[i] = buffer.get(nalStart + i);
+            }
+            if (nal.length > 0 && (nal[0] & 0x1f) == NAL_TYPE_SPS) {
+                sps = nal;
+            } else if (nal.length > 0 && (nal[0] & 0x1f) == NAL_TYPE_PPS) {
+                pps = nal;
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if the writer is closed or a fragment could not be written,
+     *                               with the {@link IOException} as its cause
+     */
+    @Override
+    public void writeSampleData(ByteBuffer buffer, int size, long presentationTimeUs, int flags) {
+        if (closed) {
+            throw new IllegalStateException("Writer is closed");
+        }
+        if ((flags & FramePipeline.FLAG_CODEC_CONFIG) != 0) {
+            addParameterSets(buffer, size);
+            return;
+        }
+        if (size <= 0) {
+            return;
+        }
+        boolean sync = (flags & FramePipeline.FLAG_KEY_FRAME) != 0;
+        try {
+            if (!initSegmentWritten) {
+                writeInitSegment();
+            }
+            if (sync && sampleCount >= fragmentFrames) {
+                writeFragment(presentationTimeUs);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write fragment", e);
+        }
+        if (firstTimeUs < 0) {
+            firstTimeUs = presentationTimeUs;
+        }
+        addSample(buffer, size, presentationTimeUs, sync);
+    }
+
+    /**
+     * Writes the remaining samples as a last fragment and closes the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (sampleCount > 0) {
+                writeFragment(-1);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private void addSample(ByteBuffer buffer, int size, long presentationTimeUs, boolean sync) {
+        if (sampleCount == sampleTimesUs.length) {
+            sampleTimesUs = Arrays.copyOf(sampleTimesUs, sampleCount * 2);
+            sampleSizes = Arrays.copyOf(sampleSizes, sampleCount * 2);
+            sampleSync = Arrays.copyOf(sampleSync, sampleCount * 2);
+        }
+        // Start codes are replaced by lengths; a 3-byte start code grows by one byte.
+        ensureSampleDataCapacity(size + size / 3 + 4);
+        int sampleStart = sampleData.position();
+        int start = buffer.position();
+        int end = start + size;
+        int startCode = findStartCode(buffer, start, end);
+        if (startCode == end) {
+            // No start code at all: the sample is taken to be length-prefixed already.
+            for (int i = start; i < end; i++) {
+                sampleData.put(buffer.get(i));
+            }
+        }
+        while (startCode < end) {
+            int nalStart = startCode + startCodeLength(buffer, startCode, end);
+            startCode = findStartCode(buffer, nalStart, end);
+            int nalEnd = startCode < end ? trimTrailingZeros(buffer, nalStart, startCode) : end;
+            sampleData.putInt(nalEnd - nalStart);
+            for (int i = nalStart; i < nalEnd; i++) {
+                sampleData.put(buffer.get(i));
+            }
+        }
+        sampleTimesUs[sampleCount] = presentationTimeUs;
+        sampleSizes[sampleCount] = sampleData.position() - sampleStart;
+        sampleSync[sampleCount] = sync;
+        sampleCount++;
+    }
+
+    /**
+     * @param nextTimeUs presentation time of the first sample of the next fragment, or -1 if
+     *                   this is the last one
+     */
+    private void writeFragment(long nextTimeUs) throws IOException {
+        long[] decodeTimesUs = Arrays.copyOf(sampleTimesUs, sampleCount);
+        Arrays.sort(decodeTimesUs);
+
+        boxes.clear();
+        int moof = startBox("moof");
+        int mfhd = startFullBox("mfhd", 0, 0);
+        putInt(++sequenceNumber);
+        endBox(mfhd);
+        int traf = startBox("traf");
+        int tfhd = startFullBox("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+        putInt(TRACK_ID);
+        endBox(tfhd);
+        int tfdt = startFullBox("tfdt", 1, 0);
+        putLong(toTicks(decodeTimesUs[0]));
+        endBox(tfdt);
+        int trun = startFullBox("trun", 1, TRUN_FLAGS);
+        putInt(sampleCount);
+        int dataOffsetPosition = boxes.position();
+        putInt(0);
+        for (int i = 0; i < sampleCount; i++) {
+            long decodeTicks = toTicks(decodeTimesUs[i]);
+            long durationTicks;
+            if (i + 1 < sampleCount) {
+                durationTicks = toTicks(decodeTimesUs[i + 1]) - decodeTicks;
+            } else if (nextTimeUs >= 0) {
+                durationTicks = toTicks(nextTimeUs) - decodeTicks;
+            } else {
+                durationTicks = lastSampleDurationTicks;
+            }
+            lastSampleDurationTicks = durationTicks;
+            putInt((int) durationTicks);
+            putInt(sampleSizes[i]);
+            putInt(sampleSync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            putInt((int) (toTicks(sampleTimesUs[i]) - decodeTicks));
+        }
+        endBox(trun);
+        endBox(traf);
+        endBox(moof);
+        int mdatHeader = startBox("mdat");
+        boxes.putInt(dataOffsetPosition, boxes.position() - moof);
+        boxes.putInt(mdatHeader, 8 + sampleData.position());
+
+        boxes.flip();
+        sampleData.flip();
+        write(new ByteBuffer[]{boxes, sampleData});
+        sampleData.clear();
+        sampleCount = 0;
+        if (listener != null) {
+            listener.onFragmentWritten(sequenceNumber, bytesWritten);
+        }
+    }
+
+    private void writeInitSegment() throws IOException {
+        if (sps == null || pps == null) {
+            throw new IllegalStateException("No SPS and PPS before the first sample");
+        }
+        boxes.clear();
+        int ftyp = startBox("ftyp");
+        putFourCc("iso6");
+        putInt(0);
+        putFourCc("iso6");
+        putFourCc("isom");
+        putFourCc("avc1");
+        putFourCc("mp41");
+        endBox(ftyp);
+
+        int moov = startBox("moov");
+        int mvhd = startFullBox("mvhd", 0, 0);
+        putInt(0); // creation_time
+        putInt(0); // modification_time
+        putInt(TIMESCALE);
+        putInt(0); // duration, given by the fragments
+        putInt(0x00010000); // rate
+        putShort(0x0100); // volume
+        putZeros(10);
+        putMatrix();
+        putZeros(24);
+        putInt(TRACK_ID + 1); // next_track_ID
+        endBox(mvhd);
+
+        int trak = startBox("trak");
+        int tkhd = startFullBox("tkhd", 0, 0x000007);
+        putInt(0);
+        putInt(0);
+        putInt(TRACK_ID);
+        putInt(0);
+        putInt(0); // duration
+        putZeros(8);
+        putShort(0); // layer
+        putShort(0); // alternate_group
+        putShort(0); // volume
+        putShort(0);
+        putMatrix();
+        putInt(width << 16);
+        putInt(height << 16);
+        endBox(tkhd);
+
+        int mdia = startBox("mdia");
+        int mdhd = startFullBox("mdhd", 0, 0);
+        putInt(0);
+        putInt(0);
+        putInt(TIMESCALE);
+        putInt(0);
+        putShort(0x55c4); // "und"
+        putShort(0);
+        endBox(mdhd);
+        int hdlr = startFullBox("hdlr", 0, 0);
+        putInt(0);
+        putFourCc("vide");
+        putZeros(12);
+        putString("VideoHandler");
+        endBox(hdlr);
+
+        int minf = startBox("minf");
+        int vmhd = startFullBox("vmhd", 0, 1);
+        putZeros(8); // graphicsmode, opcolor
+        endBox(vmhd);
+        int dinf = startBox("dinf");
+        int dref = startFullBox("dref", 0, 0);
+        putInt(1);
+        int url = startFullBox("url ", 0, 1); // media is in this file
+        endBox(url);
+        endBox(dref);
+        endBox(dinf);
+
+        int stbl = startBox("stbl");
+        int stsd = startFullBox("stsd", 0, 0);
+        putInt(1);
+        putAvc1();
+        endBox(stsd);
+        for (String type : new String[]{"stts", "stsc", "stco"}) {
+            int box = startFullBox(type, 0, 0);
+            putInt(0);
+            endBox(box);
+        }
+        int stsz = startFullBox("stsz", 0, 0);
+        putInt(0);
+        putInt(0);
+        endBox(stsz);
+        endBox(stbl);
+        endBox(minf);
+        endBox(mdia);
+        endBox(trak);
+
+        int mvex = startBox("mvex");
+        int trex = startFullBox("trex", 0, 0);
+        putInt(TRACK_ID);
+        putInt(1); // default_sample_description_index
+        putInt(0);
+        putInt(0);
+        putInt(0);
+        endBox(trex);
+        endBox(mvex);
+        endBox(moov);
+
+        boxes.flip();
+        write(new ByteBuffer[]{boxes});
+        initSegmentWritten = true;
+    }
+
+    private void putAvc1() {
+        int avc1 = startBox("avc1");
+        putZeros(6);
+        putShort(1); // data_reference_index
+        putZeros(16);
+        putShort(width);
+        putShort(height);
+        putInt(0x00480000); // 72 dpi
+        putInt(0x00480000);
+        putInt(0);
+        putShort(1); // frame_count
+        putZeros(32); // compressorname
+        putShort(0x0018); // depth
+        putShort(0xffff); // pre_defined = -1
+
+        int avcC = startBox("avcC");
+        ensureBoxCapacity(11 + sps.length + pps.length);
+        boxes.put((byte) 1); // configurationVersion
+        boxes.put(sps[1]); // AVCProfileIndication
+        boxes.put(sps[2]); // profile_compatibility
+        boxes.put(sps[3]); // AVCLevelIndication
+        boxes.put((byte) 0xff); // 4-byte NAL unit lengths
+        boxes.put((byte) 0xe1); // one SPS
+        putShort(sps.length);
+        boxes.put(sps);
+        boxes.put((byte) 1); // one PPS
+        putShort(pps.length);
+        boxes.put(pps);
+        endBox(avcC);
+        endBox(avc1);
+    }
+
+    private void write(ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            long written = channel.write(buffers);
+            remaining -= written;
+            bytesWritten += written;
+        }
+    }
+
+    private long toTicks(long timeUs) {
+        return Math.round((timeUs - firstTimeUs) * (double) TIMESCALE / 1_000_000);
+    }
+
+    private int startBox(String type) {
+        ensureBoxCapacity(8);
+        int start = boxes.position();
+        boxes.putInt(0);
+        putFourCc(type);
+        return start;
+    }
+
+    private int startFullBox(String type, int version, int flags) {
+        int start = startBox(type);
+        putInt((version << 24) | flags);
+        return start;
+    }
+
+    private void endBox(int start) {
+        boxes.putInt(start, boxes.position() - start);
+    }
+
+    private void putFourCc(String fourCc) {
+        ensureBoxCapacity(4);
+        boxes.put(fourCc.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void putString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensureBoxCapacity(bytes.length + 1);
+        boxes.put(bytes);
+        boxes.put((byte) 0);
+    }
+
+    private void putMatrix() {
+        int[] unity = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+        for (int value : unity) {
+            putInt(value);
+        }
+    }
+
+    private void putZeros(int count) {
+        ensureBoxCapacity(count);
+        for (int i = 0; i < count; i++) {
+            boxes.put((byte) 0);
+        }
+    }
+
+    private void putShort(int value) {
+        ensureBoxCapacity(2);
+        boxes.putShort((short) value);
+    }
+
+    private void putInt(int value) {
+        ensureBoxCapacity(4);
+        boxes.putInt(value);
+    }
+
+    private void putLong(long value) {
+        ensureBoxCapacity(8);
+        boxes.putLong(value);
+    }
+
+    private void ensureBoxCapacity(int bytes) {
+        if (boxes.remaining() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(boxes.capacity() * 2, boxes.position() + bytes));
+            boxes.flip();
+            grown.put(boxes);
+            boxes = grown;
+        }
+    }
+
+    private void ensureSampleDataCapacity(int bytes) {
+        if (sampleData.remaining() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(sampleData.capacity() * 2, sampleData.position() + bytes));
+            sampleData.flip();
+            grown.put(sampleData);
+            sampleData = grown;
+        }
+    }
+
+    /**
+     * @return the position of the first start code at or after {@code from}, or {@code end}
+     */
+    private static int findStartCode(ByteBuffer buffer, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (startCodeLength(buffer, i, end) > 0) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * @return the length of the start code (00 00 01 or 00 00 00 01) at {@code i}, or 0
+     */
+    private static int startCodeLength(ByteBuffer buffer, int i, int end) {
+        if (i + 3 <= end && buffer.get(i) == 0 && buffer.get(i + 1) == 0) {
+            if (buffer.get(i + 2) == 1) {
+                return 3;
+            }
+            if (i + 4 <= end && buffer.get(i + 2) == 0 && buffer.get(i + 3) == 1) {
+                return 4;
+            }
+        }
+        return 0;
+    }
+
+    private static int trimTrailingZeros(ByteBuffer buffer, int start, int end) {
+        while (end > start && buffer.get(end - 1) == 0) {
+            end--;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,43 @@
+package ai.deepar.video_processing_example;
+
+/**
+ * Picks the source frames that make up a reduced frame rate. Time is cut into slots of the target
+ * frame interval and the first source frame of each slot is kept.
+ * <p>
+ * The decision depends only on the frame's own timestamp and the source frame duration, so it
+ * is the same in decode order and in presentation order. That lets the extractor drop samples
+ * before decoding using the same rule the pipeline applies to decoded frames.
+ */
+class FrameDecimator {
+
+    private final long originUs;
+    private final long targetIntervalUs;
+    private final long sourceFrameDurationUs;
+
+    /**
+     * @param originUs timestamp of the first frame, which is always kept
+     */
+    FrameDecimator(long originUs, long targetIntervalUs, long sourceFrameDurationUs) {
+        if (targetIntervalUs <= 0 || sourceFrameDurationUs <= 0) {
+            throw new IllegalArgumentException("Intervals must be positive");
+        }
+        this.originUs = originUs;
+        this.targetIntervalUs = targetIntervalUs;
+        this.sourceFrameDurationUs = sourceFrameDurationUs;
+    }
+
+    long getTargetIntervalUs() {
+        return targetIntervalUs;
+    }
+
+    boolean shouldKeep(long presentationTimeUs) {
+        if (presentationTimeUs <= originUs) {
+            return true;
+        }
+        return slot(presentationTimeUs) != slot(presentationTimeUs - sourceFrameDurationUs);
+    }
+
+    private long slot(long presentationTimeUs) {
+        return Math.floorDiv(presentationTimeUs - originUs, targetIntervalUs);
+    }
+}
@@ -0,0 +1,39 @@
+package ai.deepar.video_processing_example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Asynchronous video decoder, modelled on {@code MediaCodec} in asynchronous mode. Buffer flags
+ * use the {@code FramePipeline.FLAG_*} values.
+ */
+interface FrameDecoder {
+
+    /**
+     * Decoder callbacks. All of them must be delivered on the same thread.
+     */
+    interface Callback {
+        void onInputBufferAvailable(int index);
+
+        void onOutputBufferAvailable(int index, long presentationTimeUs, int flags, int size);
+    }
+
+    void setCallback(Callback callback);
+
+    void start();
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int size, long presentationTimeUs, int flags);
+
+    /**
+     * @return the decoded frame held by an output buffer, valid until the buffer is released, or
+     * null if the buffer does not hold an image
+     */
+    FramePlanes getOutputFrame(int index);
+
+    /**
+     * Releases an output buffer and the frame obtained from it. May be called from another thread
+     * than the one the callbacks are delivered on.
+     */
+    void releaseOutputBuffer(int index);
+}
@@ -0,0 +1,25 @@
+package ai.deepar.video_processing_example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Asynchronous video encoder fed by a {@link FrameRenderer}. Output timestamps are the monotonic
+ * time in microseconds at which a frame was submitted, as with {@code MediaCodec} input surfaces.
+ */
+interface FrameEncoder {
+
+    interface Callback {
+        void onOutputBufferAvailable(int index, long presentationTimeUs, int flags, int size);
+    }
+
+    void setCallback(Callback callback);
+
+    void signalEndOfInputStream();
+
+    /**
+     * @return the output buffer positioned at the start of the encoded data
+     */
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index);
+}
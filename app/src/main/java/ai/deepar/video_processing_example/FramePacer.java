@@ -0,0 +1,150 @@
+package ai.deepar.video_processing_example;
+
+import android.util.Log;
+
+/**
+ * Paces decoder output into a surface that holds a single frame, e.g. a {@code SurfaceTexture}.
+ * <p>
+ * A decoder rendering into a {@code SurfaceTexture} replaces the pending image whenever it
+ * releases the next buffer before the previous image has been latched, so frames are lost
+ * whenever rendering falls behind decoding. The pacer keeps decoded buffers queued and releases
+ * exactly one to the surface at a time: the next one only after the previous frame has become
+ * available and has been rendered.
+ * <p>
+ * Not thread-safe; all methods must be called on the thread that owns the surface.
+ */
+class FramePacer {
+
+    private static final String TAG = FramePacer.class.getSimpleName();
+
+    interface Target {
+        /**
+         * Releases a decoder output buffer to the surface. {@link #onFrameAvailable()} must follow
+         * once the frame has arrived.
+         */
+        void releaseToSurface(int index);
+
+        /**
+         * Releases a decoder output buffer that holds no frame to render.
+         */
+        void releaseWithoutRendering(int index);
+
+        /**
+         * Renders the frame that has just arrived. {@link #onFrameRendered()} must follow once the
+         * frame has been consumed, possibly before this method returns.
+         */
+        void renderFrame(long presentationTimeUs);
+
+        /**
+         * Called once, after the last frame has been rendered.
+         */
+        void onEndOfStream();
+    }
+
+    enum State {
+        /** No frame is on its way to the surface. */
+        IDLE,
+        /** A buffer has been released to the surface; its frame has not arrived yet. */
+        AWAITING_FRAME,
+        /** The frame has arrived and is being rendered. */
+        RENDERING,
+        /** The end of stream has been passed on. */
+        ENDED
+    }
+
+    private final Target target;
+    private final PendingOutputBuffers queuedBuffers = new PendingOutputBuffers();
+
+    private State state = State.IDLE;
+    private long currentPresentationTimeUs;
+    private boolean currentEndOfStream;
+    private int ignoredFrameCount;
+
+    FramePacer(Target target) {
+        this.target = target;
+    }
+
+    /**
+     * Queues a decoder output buffer, in the order the decoder delivered it.
+     *
+     * @param flags {@code FramePipeline.FLAG_*} values
+     * @param size  0 if the buffer holds no frame
+     */
+    void queue(int index, long presentationTimeUs, int flags, int size) {
+        if (state == State.ENDED) {
+            throw new IllegalStateException("Buffer queued after end of stream");
+        }
+        queuedBuffers.add(index, presentationTimeUs, flags, size);
+        releaseNext();
+    }
+
+    /**
+     * Called when the surface has received a frame.
+     */
+    void onFrameAvailable() {
+        if (state != State.AWAITING_FRAME) {
+            // E.g. a frame the decoder rendered before the pacer took over.
+            ignoredFrameCount++;
+            Log.w(TAG, "onFrameAvailable: unexpected frame while " + state);
+            return;
+        }
+        state = State.RENDERING;
+        target.renderFrame(currentPresentationTimeUs);
+    }
+
+    void onFrameRendered() {
+        if (state != State.RENDERING) {
+            throw new IllegalStateException("No frame is being rendered: " + state);
+        }
+        state = State.IDLE;
+        if (currentEndOfStream) {
+            endStream();
+            return;
+        }
+        releaseNext();
+    }
+
+    State getState() {
+        return state;
+    }
+
+    int getQueuedBufferCount() {
+        return queuedBuffers.size();
+    }
+
+    /**
+     * @return number of frames that arrived while the pacer was not waiting for one
+     */
+    int getIgnoredFrameCount() {
+        return ignoredFrameCount;
+    }
+
+    private void releaseNext() {
+        while (state == State.IDLE && !queuedBuffers.isEmpty()) {
+            int index = queuedBuffers.peekIndex();
+            long presentationTimeUs = queuedBuffers.peekPresentationTimeUs();
+            boolean endOfStream = (queuedBuffers.peekFlags() & FramePipeline.FLAG_END_OF_STREAM) != 0;
+            int size = queuedBuffers.peekSize();
+            queuedBuffers.remove();
+            if (size > 0) {
+                state = State.AWAITING_FRAME;
+                currentPresentationTimeUs = presentationTimeUs;
+                currentEndOfStream = endOfStream;
+                target.releaseToSurface(index);
+                return;
+            }
+            target.releaseWithoutRendering(index);
+            if (endOfStream) {
+                endStream();
+            }
+        }
+    }
+
+    private void endStream() {
+        state = State.ENDED;
+        if (!queuedBuffers.isEmpty()) {
+            Log.w(TAG, "endStream: " + queuedBuffers.size() + " buffers queued after end of stream");
+        }
+        target.onEndOfStream();
+    }
+}
@@ -0,0 +1,535 @@
+package ai.deepar.video_processing_example;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Moves frames from a {@link FrameSource} through a {@link FrameDecoder}, YUV packing and one
+ * {@link FrameRenderer}, {@link FrameEncoder} and {@link FrameSink} per output. Outputs may share
+ * a renderer that feeds several encoders, in which case each frame is rendered once for all of
+ * them. This is where scheduling, flow control and end of stream handling live; the stages
+ * themselves are interfaces, so the pipeline runs against {@code MediaCodec} and DeepAR on a
+ * device and against simulated stages on a JVM.
+ * <p>
+ * Decoder callbacks run on the decoder executor's thread. In pipeline mode packing and
+ * rendering run on their own stage threads, otherwise on the decoder thread. Encoder callbacks
+ * run wherever the encoders deliver them.
+ */
+class FramePipeline {
+
+    private static final String TAG = FramePipeline.class.getSimpleName();
+
+    // Same values as the MediaCodec.BUFFER_FLAG_* constants.
+    static final int FLAG_KEY_FRAME = 1;
+    static final int FLAG_CODEC_CONFIG = 2;
+    static final int FLAG_END_OF_STREAM = 4;
+
+    static final int DEFAULT_PACK_QUEUE_DEPTH = 2;
+    static final int DEFAULT_RENDER_QUEUE_DEPTH = 2;
+    static final int DEFAULT_MAX_FRAMES_IN_FLIGHT = 8;
+
+    private static final int TIMESTAMP_REORDER_WINDOW = 4;
+
+    interface Listener {
+        /**
+         * Called on an encoder thread with the progress of the slowest output, in percent.
+         */
+        void onProgress(double progress);
+
+        /**
+         * Called on an encoder thread once every output has emitted its end of stream.
+         */
+        void onFinished();
+
+        /**
+         * Called on the decoder thread if the source cannot be read. No further input is queued,
+         * so the pipeline does not finish.
+         */
+        void onError(Exception e);
+    }
+
+    private final FrameSource source;
+    private final FrameDecoder decoder;
+    private final Executor decoderExecutor;
+    private final ProcessingMetrics metrics;
+    private final Listener listener;
+    private final List<Output> outputs = new ArrayList<>();
+    private final List<FrameRenderer> renderers = new ArrayList<>();
+
+    private long frameDurationUs = 33_333;
+    private long progressStartUs;
+    private float progressDurationUs = 1;
+    private boolean inputEnded;
+    private int finishedOutputs;
+    private long windowReleasedFrames;
+
+    private YuvFramePacker framePacker;
+    private FrameDecimator frameDecimator;
+
+    private boolean pipelined;
+    private int packQueueDepth = DEFAULT_PACK_QUEUE_DEPTH;
+    private int renderQueueDepth = DEFAULT_RENDER_QUEUE_DEPTH;
+    private PipelineStage<PipelineFrame> packStage;
+    private PipelineStage<PipelineFrame> renderStage;
+    private SpscQueue<PipelineFrame> freeFrames;
+    private SpscQueue<ByteBuffer> freeBuffers;
+
+    // Flow control: frames between decoder output and encoder output are capped by the window.
+    // Decoder output buffers are held in `pendingOutputBuffers` while the window is full, which
+    // in turn stops the decoder from consuming input.
+    private FrameWindow frameWindow = new FrameWindow(DEFAULT_MAX_FRAMES_IN_FLIGHT);
+    private final PendingOutputBuffers pendingOutputBuffers = new PendingOutputBuffers();
+    private final Runnable drainDecoderOutputs = this::drainDecoderOutputs;
+
+    /**
+     * @param decoderExecutor executor running on the thread the decoder delivers its callbacks on
+     */
+    FramePipeline(FrameSource source, FrameDecoder decoder, Executor decoderExecutor, ProcessingMetrics metrics, Listener listener) {
+        this.source = source;
+        this.decoder = decoder;
+        this.decoderExecutor = decoderExecutor;
+        this.metrics = metrics;
+        this.listener = listener;
+    }
+
+    /**
+     * Runs packing and rendering on their own threads. Must be called before {@link #start()}.
+     */
+    void setPipelineMode(int packQueueDepth, int renderQueueDepth) {
+        if (packQueueDepth < 1 || renderQueueDepth < 1) {
+            throw new IllegalArgumentException("Queue depths must be positive");
+        }
+        this.pipelined = true;
+        this.packQueueDepth = packQueueDepth;
+        this.renderQueueDepth = renderQueueDepth;
+    }
+
+    /**
+     * Must be called before any output is added.
+     */
+    void setMaxFramesInFlight(int maxFramesInFlight) {
+        frameWindow = new FrameWindow(maxFramesInFlight);
+    }
+
+    /**
+     * Frame duration used to stamp encoder output that cannot be matched to a source frame.
+     */
+    void setFrameDurationUs(long frameDurationUs) {
+        this.frameDurationUs = frameDurationUs;
+    }
+
+    /**
+     * Processes only the frames picked by {@code frameDecimator}. Other decoded frames are
+     * released before they are packed, and source samples that are not used for reference are
+     * not even decoded. Must be called before {@link #start()}.
+     */
+    void setFrameDecimation(FrameDecimator frameDecimator) {
+        this.frameDecimator = frameDecimator;
+    }
+
+    void setProgressRange(long startUs, float durationUs) {
+        this.progressStartUs = startUs;
+        this.progressDurationUs = durationUs;
+    }
+
+    /**
+     * Adds an output. Outputs added with the same renderer share its rendering; it must hand
+     * every frame to all of their encoders.
+     */
+    void addOutput(FrameRenderer renderer, FrameEncoder encoder, FrameSink sink) {
+        Output output = new Output(renderer, encoder, sink);
+        encoder.setCallback(output);
+        outputs.add(output);
+        if (!renderers.contains(renderer)) {
+            renderers.add(renderer);
+        }
+    }
+
+    /**
+     * Starts decoding. The encoders must already be running.
+     */
+    void start() {
+        if (pipelined) {
+            setupPipeline();
+        } else {
+            framePacker = new YuvFramePacker(1);
+        }
+        decoder.setCallback(new DecoderCallback());
+        decoder.start();
+    }
+
+    /**
+     * Stops the stage threads. The stages themselves are released by their owner.
+     */
+    void release() {
+        if (pipelined && packStage != null) {
+            packStage.quit();
+            renderStage.quit();
+        }
+        pendingOutputBuffers.clear();
+    }
+
+    int getFramesInFlight() {
+        return frameWindow.getOccupancy();
+    }
+
+    int getPeakFramesInFlight() {
+        return frameWindow.getPeakOccupancy();
+    }
+
+    int getMaxFramesInFlight() {
+        return frameWindow.getCapacity();
+    }
+
+    int getDroppedFrameCount() {
+        int droppedFrames = 0;
+        for (Output output : outputs) {
+            droppedFrames += output.timestampTracker.getDroppedFrameCount();
+        }
+        return droppedFrames;
+    }
+
+    private void setupPipeline() {
+        // Frame buffers can be queued for rendering, being packed and being rendered at once.
+        int bufferCount = renderQueueDepth + 2;
+        int frameCount = packQueueDepth + renderQueueDepth + 2;
+        framePacker = new YuvFramePacker(bufferCount);
+        freeBuffers = new SpscQueue<>(bufferCount);
+        freeFrames = new SpscQueue<>(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+            freeFrames.offer(new PipelineFrame());
+        }
+
+        packStage = new PipelineStage<>("video-packing", packQueueDepth, this::packFrame);
+        renderStage = new PipelineStage<>("video-rendering", renderQueueDepth, this::renderFrame);
+        packStage.start();
+        renderStage.start();
+    }
+
+    private void processFrame(FramePlanes planes, long presentationTimeUs) {
+        ByteBuffer buffer = pack(planes);
+        renderToOutputs(buffer, planes.getWidth(), planes.getHeight(), framePacker.getOutputPixelStride(), presentationTimeUs);
+        framePacker.recycle(buffer);
+    }
+
+    private void drainDecoderOutputs() {
+        while (!pendingOutputBuffers.isEmpty()) {
+            int index = pendingOutputBuffers.peekIndex();
+            long presentationTimeUs = pendingOutputBuffers.peekPresentationTimeUs();
+            int flags = pendingOutputBuffers.peekFlags();
+            int size = pendingOutputBuffers.peekSize();
+            if (size > 0 && frameDecimator != null && !frameDecimator.shouldKeep(presentationTimeUs)) {
+                // Skipped frames never enter the window or the timestamp trackers.
+                metrics.onFrameSkipped();
+                if ((flags & FLAG_END_OF_STREAM) == 0) {
+                    pendingOutputBuffers.remove();
+                    decoder.releaseOutputBuffer(index);
+                    continue;
+                }
+                size = 0;
+            }
+            if (size > 0 && !frameWindow.tryAcquire()) {
+                // Resumed from the encoder callback once a frame leaves the window.
+                return;
+            }
+            pendingOutputBuffers.remove();
+            handleDecodedFrame(index, presentationTimeUs, flags, size);
+        }
+    }
+
+    private void handleDecodedFrame(int index, long presentationTimeUs, int flags, int size) {
+        boolean endOfStream = (flags & FLAG_END_OF_STREAM) != 0;
+        if (pipelined) {
+            PipelineFrame frame = takeFreeFrame();
+            frame.bufferIndex = index;
+            frame.planes = getOutputFrame(index, size);
+            frame.presentationTimeUs = presentationTimeUs;
+            frame.endOfStream = endOfStream;
+            if (size > 0 && frame.planes == null) {
+                frameWindow.release();
+            }
+            packStage.put(frame);
+            metrics.recordQueueDepth(ProcessingMetrics.QUEUE_PACK, packStage.getQueueSize());
+            return;
+        }
+
+        FramePlanes planes = getOutputFrame(index, size);
+        if (planes != null) {
+            processFrame(planes, presentationTimeUs);
+        } else if (size > 0) {
+            frameWindow.release();
+        }
+        decoder.releaseOutputBuffer(index);
+
+        // Only after the last frame has been rendered, as in pipeline mode.
+        if (endOfStream) {
+            Log.d(TAG, "handleDecodedFrame: end of decoder stream; signalling end of stream to encoders");
+            signalEndOfInputStream();
+        }
+    }
+
+    private FramePlanes getOutputFrame(int index, int size) {
+        if (size <= 0) {
+            return null;
+        }
+        long startNanos = System.nanoTime();
+        FramePlanes planes = decoder.getOutputFrame(index);
+        metrics.recordLatency(ProcessingMetrics.STAGE_DECODER_OUTPUT, System.nanoTime() - startNanos);
+        if (planes != null) {
+            metrics.onFrameDecoded();
+        }
+        return planes;
+    }
+
+    private ByteBuffer pack(FramePlanes planes) {
+        int frameSize = framePacker.getFrameSize();
+        long startNanos = System.nanoTime();
+        ByteBuffer buffer = framePacker.pack(planes);
+        metrics.recordLatency(ProcessingMetrics.STAGE_PACK, System.nanoTime() - startNanos);
+        if (framePacker.getFrameSize() != frameSize) {
+            Log.d(TAG, framePacker.describeLayout());
+        }
+        return buffer;
+    }
+
+    private void renderToOutputs(ByteBuffer buffer, int width, int height, int pixelStride, long presentationTimeUs) {
+        for (FrameRenderer renderer : renderers) {
+            submitFrame(renderer, presentationTimeUs);
+            long startNanos = System.nanoTime();
+            renderer.render(buffer, width, height, pixelStride, presentationTimeUs);
+            metrics.recordLatency(ProcessingMetrics.STAGE_RENDER, System.nanoTime() - startNanos);
+        }
+        metrics.onFrameRendered();
+    }
+
+    /**
+     * Records the frame with every output the renderer feeds. Must happen before rendering, as
+     * an encoder may emit the frame before the renderer returns.
+     */
+    private void submitFrame(FrameRenderer renderer, long presentationTimeUs) {
+        long submitTimeUs = System.nanoTime() / 1000;
+        for (Output output : outputs) {
+            if (output.renderer == renderer) {
+                output.timestampTracker.onFrameSubmitted(presentationTimeUs, submitTimeUs);
+            }
+        }
+    }
+
+    private void signalEndOfInputStream() {
+        for (Output output : outputs) {
+            output.encoder.signalEndOfInputStream();
+        }
+    }
+
+    private void packFrame(PipelineFrame frame) {
+        ByteBuffer recycled;
+        while ((recycled = freeBuffers.poll()) != null) {
+            framePacker.recycle(recycled);
+        }
+        if (frame.planes != null) {
+            frame.buffer = pack(frame.planes);
+            frame.width = frame.planes.getWidth();
+            frame.height = frame.planes.getHeight();
+            frame.pixelStride = framePacker.getOutputPixelStride();
+            frame.planes = null;
+        }
+        decoder.releaseOutputBuffer(frame.bufferIndex);
+        renderStage.put(frame);
+        metrics.recordQueueDepth(ProcessingMetrics.QUEUE_RENDER, renderStage.getQueueSize());
+    }
+
+    private void renderFrame(PipelineFrame frame) {
+        if (frame.buffer != null) {
+            renderToOutputs(frame.buffer, frame.width, frame.height, frame.pixelStride, frame.presentationTimeUs);
+            freeBuffers.offer(frame.buffer);
+        }
+        if (frame.endOfStream) {
+            Log.d(TAG, "renderFrame: last frame rendered; signalling end of stream to encoders");
+            signalEndOfInputStream();
+        }
+        frame.reset();
+        freeFrames.offer(frame);
+    }
+
+    private PipelineFrame takeFreeFrame() {
+        PipelineFrame frame;
+        while ((frame = freeFrames.poll()) == null) {
+            Thread.yield();
+        }
+        return frame;
+    }
+
+    /**
+     * Called on an encoder thread whenever an output has emitted frames. A frame leaves the
+     * in-flight window once every output has emitted it.
+     */
+    private synchronized void onFramesEncoded() {
+        long encodedByAll = Long.MAX_VALUE;
+        for (Output output : outputs) {
+            encodedByAll = Math.min(encodedByAll, output.encodedFrames);
+        }
+        boolean resumeDecoder = false;
+        long releasedBefore = windowReleasedFrames;
+        while (windowReleasedFrames < encodedByAll) {
+            windowReleasedFrames++;
+            resumeDecoder |= frameWindow.release();
+        }
+        metrics.onFramesEncoded((int) (windowReleasedFrames - releasedBefore));
+        if (resumeDecoder) {
+            decoderExecutor.execute(drainDecoderOutputs);
+        }
+    }
+
+    private void onProgress() {
+        double progress = 100;
+        for (Output output : outputs) {
+            progress = Math.min(progress, output.progress);
+        }
+        listener.onProgress(progress);
+    }
+
+    private void onOutputFinished() {
+        boolean finished;
+        synchronized (this) {
+            finishedOutputs++;
+            finished = finishedOutputs == outputs.size();
+        }
+        if (finished) {
+            listener.onFinished();
+        }
+    }
+
+    private class DecoderCallback implements FrameDecoder.Callback {
+
+        @Override
+        public void onInputBufferAvailable(int index) {
+            ByteBuffer inputBuffer = decoder.getInputBuffer(index);
+            if (inputBuffer == null || inputEnded) {
+                return;
+            }
+
+            long startNanos = System.nanoTime();
+            int size;
+            long presentationTime;
+            int flags;
+            boolean endOfStream;
+            try {
+                size = readSampleData(inputBuffer);
+                if (size < 0) {
+                    inputEnded = true;
+                    decoder.queueInputBuffer(index, 0, 0, FLAG_END_OF_STREAM);
+                    return;
+                }
+                presentationTime = source.getSampleTime();
+                flags = source.getSampleFlags();
+                endOfStream = !source.advance();
+            } catch (RuntimeException e) {
+                // A truncated input must not end up as a successful output.
+                Log.e(TAG, "onInputBufferAvailable: could not read the source", e);
+                inputEnded = true;
+                listener.onError(e);
+                return;
+            }
+            metrics.recordLatency(ProcessingMetrics.STAGE_EXTRACT, System.nanoTime() - startNanos);
+            inputEnded = endOfStream;
+            decoder.queueInputBuffer(index, size, presentationTime, endOfStream ? flags | FLAG_END_OF_STREAM : flags);
+        }
+
+        /**
+         * Reads the next sample the decoder needs, passing over samples that would only decode
+         * to skipped frames.
+         */
+        private int readSampleData(ByteBuffer inputBuffer) {
+            while (true) {
+                int size = source.readSampleData(inputBuffer);
+                if (size < 0 || frameDecimator == null
+                        || frameDecimator.shouldKeep(source.getSampleTime())
+                        || !AvcSamples.isNonReference(inputBuffer, size)) {
+                    return size;
+                }
+                metrics.onFrameSkipped();
+                if (!source.advance()) {
+                    return -1;
+                }
+                inputBuffer.clear();
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(int index, long presentationTimeUs, int flags, int size) {
+            pendingOutputBuffers.add(index, presentationTimeUs, flags, size);
+            metrics.recordQueueDepth(ProcessingMetrics.QUEUE_PENDING_DECODER_OUTPUT, pendingOutputBuffers.size());
+            drainDecoderOutputs();
+        }
+    }
+
+    private class Output implements FrameEncoder.Callback {
+
+        private final FrameRenderer renderer;
+        private final FrameEncoder encoder;
+        private final FrameSink sink;
+
+        private final TimestampTracker timestampTracker = new TimestampTracker(2 * frameWindow.getCapacity() + TIMESTAMP_REORDER_WINDOW, TIMESTAMP_REORDER_WINDOW);
+        private long lastEncodedTimestampUs = -1;
+        private volatile long encodedFrames;
+        private volatile double progress;
+
+        Output(FrameRenderer renderer, FrameEncoder encoder, FrameSink sink) {
+            this.renderer = renderer;
+            this.encoder = encoder;
+            this.sink = sink;
+        }
+
+        @Override
+        public void onOutputBufferAvailable(int index, long presentationTimeUs, int flags, int size) {
+            long drainStartNanos = System.nanoTime();
+            ByteBuffer outputBuffer = encoder.getOutputBuffer(index);
+            if (outputBuffer == null) {
+                return;
+            }
+
+            boolean endOfStream = (flags & FLAG_END_OF_STREAM) != 0;
+            long timestamp = presentationTimeUs;
+            int releasedFrames = 0;
+            if (size > 0 && (flags & FLAG_CODEC_CONFIG) == 0) {
+                int droppedBefore = timestampTracker.getDroppedFrameCount();
+                timestamp = timestampTracker.resolve(presentationTimeUs);
+                if (timestamp == TimestampTracker.UNKNOWN) {
+                    timestamp = lastEncodedTimestampUs < 0 ? 0 : lastEncodedTimestampUs + frameDurationUs;
+                    Log.w(TAG, "onOutputBufferAvailable: no source frame for encoder timestamp " + presentationTimeUs + ", using " + timestamp);
+                }
+                lastEncodedTimestampUs = timestamp;
+                releasedFrames = 1 + timestampTracker.getDroppedFrameCount() - droppedBefore;
+            } else if (endOfStream) {
+                timestamp = Math.max(0, lastEncodedTimestampUs);
+            }
+
+            if (size > 0) {
+                long muxStartNanos = System.nanoTime();
+                sink.writeSampleData(outputBuffer, size, timestamp, flags);
+                metrics.recordLatency(ProcessingMetrics.STAGE_MUX, System.nanoTime() - muxStartNanos);
+                metrics.onBytesMuxed(size);
+            }
+            encoder.releaseOutputBuffer(index);
+            metrics.recordLatency(ProcessingMetrics.STAGE_ENCODER_DRAIN, System.nanoTime() - drainStartNanos);
+
+            if (releasedFrames > 0) {
+                encodedFrames += releasedFrames;
+                onFramesEncoded();
+            }
+
+            progress = ProcessingProgress.percent(timestamp, progressStartUs, progressDurationUs);
+            onProgress();
+
+            if (endOfStream) {
+                timestampTracker.finish();
+                Log.d(TAG, "onOutputBufferAvailable: end of encoder stream, " + timestampTracker.getDroppedFrameCount() + " frames dropped");
+                onOutputFinished();
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package ai.deepar.video_processing_example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only view of the three planes of a YUV 4:2:0 frame. Lets the frame packing code run
+ * without an {@code android.media.Image}, e.g. in JVM benchmarks.
+ */
+interface FramePlanes {
+
+    int getWidth();
+
+    int getHeight();
+
+    ByteBuffer getBuffer(int plane);
+
+    int getRowStride(int plane);
+
+    int getPixelStride(int plane);
+}
@@ -0,0 +1,15 @@
+package ai.deepar.video_processing_example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Renders packed YUV frames into the input of a {@link FrameEncoder}.
+ */
+interface FrameRenderer {
+
+    /**
+     * Blocks until the frame has been handed to the encoder. The buffer must not be used after
+     * this method returns.
+     */
+    void render(ByteBuffer buffer, int width, int height, int pixelStride, long presentationTimeUs);
+}
@@ -0,0 +1,14 @@
+package ai.deepar.video_processing_example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives encoded samples stamped with source presentation times.
+ */
+interface FrameSink {
+
+    /**
+     * @param buffer buffer positioned at the start of the sample
+     */
+    void writeSampleData(ByteBuffer buffer, int size, long presentationTimeUs, int flags);
+}
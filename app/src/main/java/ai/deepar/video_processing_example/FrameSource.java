@@ -0,0 +1,31 @@
+package ai.deepar.video_processing_example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compressed video samples in decoding order.
+ */
+interface FrameSource {
+
+    /**
+     * Reads the current sample into the buffer, starting at position 0.
+     *
+     * @return sample size in bytes, or -1 if no samples are left
+     */
+    int readSampleData(ByteBuffer buffer);
+
+    long getSampleTime();
+
+    /**
+     * @return {@link FramePipeline#FLAG_KEY_FRAME} if the current sample is a sync sample,
+     * otherwise 0
+     */
+    int getSampleFlags();
+
+    /**
+     * Moves on to the next sample.
+     *
+     * @return false if there are no more samples to read
+     */
+    boolean advance();
+}
@@ -0,0 +1,70 @@
+package ai.deepar.video_processing_example;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts frames that have been handed to the renderer but not yet emitted by the encoder and
+ * caps them at a fixed capacity. Safe to use from the decoder and encoder threads at once.
+ */
+class FrameWindow {
+
+    private final int capacity;
+    private final AtomicInteger occupancy = new AtomicInteger();
+    private final AtomicInteger peakOccupancy = new AtomicInteger();
+
+    FrameWindow(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    boolean tryAcquire() {
+        while (true) {
+            int current = occupancy.get();
+            if (current >= capacity) {
+                return false;
+            }
+            if (occupancy.compareAndSet(current, current + 1)) {
+                int peak = peakOccupancy.get();
+                while (current + 1 > peak && !peakOccupancy.compareAndSet(peak, current + 1)) {
+                    peak = peakOccupancy.get();
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return true if the window was full before this release, i.e. a waiting producer may now
+     * continue
+     */
+    boolean release() {
+        while (true) {
+            int current = occupancy.get();
+            if (current == 0) {
+                return false;
+            }
+            if (occupancy.compareAndSet(current, current - 1)) {
+                return current >= capacity;
+            }
+        }
+    }
+
+    void reset() {
+        occupancy.set(0);
+        peakOccupancy.set(0);
+    }
+
+    int getOccupancy() {
+        return occupancy.get();
+    }
+
+    int getPeakOccupancy() {
+        return peakOccupancy.get();
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,53 @@
+package ai.deepar.video_processing_example;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable {@link FramePlanes} adapter for YUV_420_888 images.
+ */
+class ImageFramePlanes implements FramePlanes {
+
+    private Image image;
+    private Image.Plane[] planes;
+
+    FramePlanes wrap(Image image) {
+        this.image = image;
+        this.planes = image.getPlanes();
+        return this;
+    }
+
+    void close() {
+        if (image != null) {
+            image.close();
+            image = null;
+            planes = null;
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    @Override
+    public ByteBuffer getBuffer(int plane) {
+        return planes[plane].getBuffer();
+    }
+
+    @Override
+    public int getRowStride(int plane) {
+        return planes[plane].getRowStride();
+    }
+
+    @Override
+    public int getPixelStride(int plane) {
+        return planes[plane].getPixelStride();
+    }
+}
@@ -0,0 +1,69 @@
+package ai.deepar.video_processing_example;
+
+/**
+ * Log2-bucketed latency histogram. Recording does not allocate. Each histogram is expected to
+ * have a single writing thread; readers may observe a slightly stale state.
+ */
+class LatencyHistogram {
+
+    private static final int BUCKET_COUNT = 64;
+
+    // Bucket i counts samples in [2^(i-1), 2^i) nanoseconds; bucket 0 counts zero.
+    private final long[] buckets = new long[BUCKET_COUNT];
+    private volatile long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets[BUCKET_COUNT - Long.numberOfLeadingZeros(nanos)]++;
+        totalNanos += nanos;
+        if (nanos > maxNanos) {
+            maxNanos = nanos;
+        }
+        count++;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getMeanNanos() {
+        long samples = count;
+        return samples == 0 ? 0 : totalNanos / samples;
+    }
+
+    long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * @return upper bound of the bucket containing the given percentile, in nanoseconds
+     */
+    long getPercentileNanos(double percentile) {
+        long samples = count;
+        if (samples == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(samples * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i];
+            if (seen >= threshold) {
+                return i == 0 ? 0 : Math.min(maxNanos, (1L << i) - 1);
+            }
+        }
+        return maxNanos;
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = 0;
+        }
+        totalNanos = 0;
+        maxNanos = 0;
+        count = 0;
+    }
+}
@@ -5,13 +5,8 @@ import android.annotation.SuppressLint;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Environment;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -30,9 +25,6 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -40,11 +32,10 @@ public class MainActivity extends AppCompatActivity {
 
     private static final String TAG = MainActivity.class.getSimpleName();
 
-    private static final String OUTPUT_NAME = "output.mp4";
-
     private final int RESULT_LOAD_VIDEO = 123;
 
-    private Handler handler;
+    private ProcessingJobScheduler jobScheduler;
+    private EffectThumbnailLoader thumbnailLoader;
 
     private List<Effect> effects;
     private int selectedEffectIndex;
@@ -78,9 +69,9 @@ public class MainActivity extends AppCompatActivity {
 
     private void initialize() {
         setContentView(R.layout.activity_main);
-        initializeHandler();
         initializeEffects();
         initializeViews();
+        initializeJobScheduler();
     }
 
     private void initializeEffects() {
@@ -101,13 +92,16 @@ public class MainActivity extends AppCompatActivity {
 
     private void initializeViews() {
         GridView gridView = findViewById(R.id.gridView);
+        if (thumbnailLoader == null) {
+            thumbnailLoader = new EffectThumbnailLoader(this, getResources().getDisplayMetrics().widthPixels / gridView.getNumColumns());
+        }
         gridView.setAdapter(new ArrayAdapter<Effect>(this, R.layout.effect_thumbnail, effects) {
             @NonNull
             @Override
             public View getView(int position, @Nullable View convertView, @NonNull ViewGroup parent) {
                 View resultView = convertView;
                 if (resultView == null) {
-                    resultView = LayoutInflater.from(MainActivity.this).inflate(R.layout.effect_thumbnail, null);
+                    resultView = LayoutInflater.from(MainActivity.this).inflate(R.layout.effect_thumbnail, parent, false);
                 }
                 Effect item = getItem(position);
                 if (item != null) {
@@ -118,14 +112,7 @@ public class MainActivity extends AppCompatActivity {
                         notifyDataSetChanged();
                         Log.d(TAG, "Picked '" + effects.get(selectedEffectIndex).getName() + "' effect");
                     });
-                    try (InputStream is = getAssets().open(item.getThumbnailPath())) {
-                        Bitmap bitmap = BitmapFactory.decodeStream(is);
-                        if (bitmap != null) {
-                            imageView.setImageBitmap(bitmap);
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                    thumbnailLoader.load(item.getThumbnailPath(), imageView);
                 }
                 return resultView;
             }
@@ -139,10 +126,49 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
-    private void initializeHandler() {
-        HandlerThread handlerThread = new HandlerThread("video-processing");
-        handlerThread.start();
-        handler = new Handler(handlerThread.getLooper());
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (thumbnailLoader != null) {
+            thumbnailLoader.release();
+            thumbnailLoader = null;
+        }
+        if (jobScheduler != null) {
+            // The scheduler outlives the activity; jobs keep running without a listener.
+            jobScheduler.setDefaultListener(null);
+        }
+    }
+
+    private void initializeJobScheduler() {
+        jobScheduler = ProcessingJobScheduler.getInstance(this);
+        jobScheduler.setDefaultListener(new ProcessingJobScheduler.JobListener() {
+            @SuppressLint("DefaultLocale")
+            @Override
+            public void onProgress(ProcessingJob job, ProgressReporter.Snapshot progress) {
+                findViewById(R.id.progressLayout).setVisibility(View.VISIBLE);
+                StringBuilder text = new StringBuilder(String.format("%.1f%%", progress.getPercent()));
+                if (progress.getEtaMs() >= 0) {
+                    long etaSeconds = progress.getEtaMs() / 1000;
+                    text.append(String.format(" · %.0f fps · %d:%02d left", progress.getFramesPerSecond(), etaSeconds / 60, etaSeconds % 60));
+                }
+                int queued = jobScheduler.getPendingJobs().size();
+                if (queued > 0) {
+                    text.append(String.format(" (%d queued)", queued));
+                }
+                ((TextView) findViewById(R.id.progressText)).setText(text);
+            }
+
+            @Override
+            public void onFinished(ProcessingJob job, boolean success) {
+                if (jobScheduler.getRunningJobCount() == 0 && jobScheduler.getPendingJobs().isEmpty()) {
+                    findViewById(R.id.progressLayout).setVisibility(View.INVISIBLE);
+                }
+                String message = success ? "Video saved: " + job.getOutputFile().getAbsolutePath() : "Failed to process video";
+                Log.d(TAG, message);
+                Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show();
+            }
+        });
+        jobScheduler.start();
     }
 
     public String getPath(Uri uri) {
@@ -174,19 +200,8 @@ public class MainActivity extends AppCompatActivity {
         }
 
         findViewById(R.id.progressLayout).setVisibility(View.VISIBLE);
-        findViewById(R.id.pickVideoButton).setEnabled(false);
-
-        File outputFile = new File(getExternalFilesDir(Environment.DIRECTORY_MOVIES), OUTPUT_NAME);
-        Log.d(TAG, "onActivityResult: processing video...");
-        new VideoProcessor(this, handler, (progress) -> {
-            @SuppressLint("DefaultLocale") String text = String.format("%.1f%%", progress);
-            ((TextView) findViewById(R.id.progressText)).setText(text);
-        }, () -> {
-            findViewById(R.id.progressLayout).setVisibility(View.INVISIBLE);
-            findViewById(R.id.pickVideoButton).setEnabled(true);
-
-            Log.d(TAG, "Video saved: " + outputFile.getAbsolutePath());
-            Toast.makeText(MainActivity.this, "Video saved: " + outputFile.getAbsolutePath(), Toast.LENGTH_LONG).show();
-        }).processVideo(videoUri, outputFile, effects.get(selectedEffectIndex).getPath());
+
+        ProcessingJob job = jobScheduler.submit(videoUri, effects.get(selectedEffectIndex).getPath(), ProcessingJobScheduler.PRIORITY_NORMAL, null);
+        Log.d(TAG, "onActivityResult: queued job " + job.getId());
     }
 }
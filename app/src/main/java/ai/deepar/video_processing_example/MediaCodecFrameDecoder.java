@@ -0,0 +1,105 @@
+package ai.deepar.video_processing_example;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.core.util.Consumer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * {@link FrameDecoder} backed by a configured {@link MediaCodec} decoder producing
+ * YUV_420_888 images.
+ */
+class MediaCodecFrameDecoder implements FrameDecoder {
+
+    private static final String TAG = MediaCodecFrameDecoder.class.getSimpleName();
+
+    private final MediaCodec mediaCodec;
+    private final Consumer<Exception> onError;
+    private FrameDecoder.Callback callback;
+    // Frame views of the images currently held, indexed by output buffer index.
+    private ImageFramePlanes[] outputFrames = new ImageFramePlanes[8];
+
+    /**
+     * @param handler handler on whose thread the callbacks are delivered
+     * @param onError called on the handler's thread if the codec fails
+     */
+    MediaCodecFrameDecoder(MediaCodec mediaCodec, Handler handler, Consumer<Exception> onError) {
+        this.mediaCodec = mediaCodec;
+        this.onError = onError;
+        mediaCodec.setCallback(new MediaDecoderCallback(), handler);
+    }
+
+    @Override
+    public void setCallback(FrameDecoder.Callback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public void start() {
+        mediaCodec.start();
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mediaCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int size, long presentationTimeUs, int flags) {
+        mediaCodec.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public synchronized FramePlanes getOutputFrame(int index) {
+        Image image = mediaCodec.getOutputImage(index);
+        if (image == null) {
+            return null;
+        }
+        if (index >= outputFrames.length) {
+            outputFrames = Arrays.copyOf(outputFrames, Math.max(index + 1, 2 * outputFrames.length));
+        }
+        if (outputFrames[index] == null) {
+            outputFrames[index] = new ImageFramePlanes();
+        }
+        return outputFrames[index].wrap(image);
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index) {
+        if (index < outputFrames.length && outputFrames[index] != null) {
+            outputFrames[index].close();
+        }
+        mediaCodec.releaseOutputBuffer(index, true);
+    }
+
+    private class MediaDecoderCallback extends MediaCodec.Callback {
+
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            callback.onInputBufferAvailable(index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            callback.onOutputBufferAvailable(index, info.presentationTimeUs, info.flags, info.size);
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, "onError", e);
+            onError.accept(e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            // Do nothing.
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package ai.deepar.video_processing_example;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Reuses {@link MediaCodec} instances across jobs. A recycled codec is reset to the
+ * uninitialized state and handed out again to the next job that picks the same codec, which only
+ * has to configure it. Codecs are picked with {@link CodecCapabilityCache}, hardware codecs first.
+ * <p>
+ * Acquired codecs are unconfigured; callbacks must be set before configuring them.
+ */
+class MediaCodecPool {
+
+    private static final String TAG = MediaCodecPool.class.getSimpleName();
+
+    static final long DEFAULT_IDLE_TIMEOUT_MS = 30_000;
+    private static final int MAX_IDLE_CODECS = 4;
+
+    private static MediaCodecPool instance;
+
+    private final CodecCapabilityCache capabilities = CodecCapabilityCache.getInstance();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable releaseIdleCodecs = this::releaseIdleCodecs;
+
+    // Most recently used first.
+    private final LinkedList<MediaCodec> idleCodecs = new LinkedList<>();
+    private long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+
+    static synchronized MediaCodecPool getInstance() {
+        if (instance == null) {
+            instance = new MediaCodecPool();
+        }
+        return instance;
+    }
+
+    private MediaCodecPool() {
+    }
+
+    synchronized void setIdleTimeout(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    CodecCapabilityCache getCapabilities() {
+        return capabilities;
+    }
+
+    MediaCodec acquireDecoder(MediaFormat format) throws IOException {
+        String name = capabilities.findDecoder(format);
+        if (name == null) {
+            throw new IOException("No decoder for " + format);
+        }
+        return acquire(name);
+    }
+
+    MediaCodec acquireEncoder(MediaFormat format) throws IOException {
+        String name = capabilities.findEncoder(format);
+        if (name == null) {
+            throw new IOException("No encoder for " + format);
+        }
+        return acquire(name);
+    }
+
+    /**
+     * @param name encoder picked beforehand, e.g. by {@link EncoderProfile}
+     */
+    MediaCodec acquireEncoder(String name) throws IOException {
+        return acquire(name);
+    }
+
+    /**
+     * Resets a codec that is no longer used and keeps it for the next job. Codecs that cannot be
+     * reset are released.
+     */
+    void recycle(MediaCodec codec) {
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            // Not started or in the error state; reset() recovers from both.
+        }
+        try {
+            codec.reset();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "recycle: failed to reset " + codec.getName(), e);
+            codec.release();
+            return;
+        }
+        MediaCodec evicted = null;
+        synchronized (this) {
+            idleCodecs.addFirst(codec);
+            if (idleCodecs.size() > MAX_IDLE_CODECS) {
+                evicted = idleCodecs.removeLast();
+            }
+            handler.removeCallbacks(releaseIdleCodecs);
+            handler.postDelayed(releaseIdleCodecs, idleTimeoutMs);
+        }
+        if (evicted != null) {
+            evicted.release();
+        }
+    }
+
+    void releaseIdleCodecs() {
+        List<MediaCodec> codecs;
+        synchronized (this) {
+            handler.removeCallbacks(releaseIdleCodecs);
+            codecs = new ArrayList<>(idleCodecs);
+            idleCodecs.clear();
+        }
+        Log.d(TAG, "releaseIdleCodecs: releasing " + codecs.size() + " codecs");
+        for (MediaCodec codec : codecs) {
+            codec.release();
+        }
+    }
+
+    private MediaCodec acquire(String name) throws IOException {
+        synchronized (this) {
+            for (Iterator<MediaCodec> iterator = idleCodecs.iterator(); iterator.hasNext(); ) {
+                MediaCodec codec = iterator.next();
+                if (codec.getName().equals(name)) {
+                    iterator.remove();
+                    if (idleCodecs.isEmpty()) {
+                        handler.removeCallbacks(releaseIdleCodecs);
+                    }
+                    Log.d(TAG, "acquire: reusing " + name);
+                    return codec;
+                }
+            }
+        }
+        Log.d(TAG, "acquire: creating " + name);
+        return MediaCodec.createByCodecName(name);
+    }
+}
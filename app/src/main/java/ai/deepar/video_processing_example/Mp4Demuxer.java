@@ -0,0 +1,530 @@
+package ai.deepar.video_processing_example;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the H.264 track of an MP4 file without MediaExtractor. The file is memory-mapped and its
+ * sample table ({@code stsz}, {@code stsc}, {@code stco}/{@code co64}, {@code stss},
+ * {@code stts}, {@code ctts} and the first {@code elst} entry) is parsed once into a
+ * {@link Mp4SampleIndex}. Samples are then served as slices of the mapping, in any order and
+ * without copying.
+ * <p>
+ * Parsed tracks are cached by file, so opening the same file again only maps it and checks that
+ * its {@code moov} box is unchanged. Fragmented files and files over 2 GiB are not supported.
+ */
+class Mp4Demuxer {
+
+    private static final String TAG = Mp4Demuxer.class.getSimpleName();
+
+    private static final int MAX_CACHED_TRACKS = 8;
+
+    private static final Map<String, Track> trackCache = new LinkedHashMap<String, Track>(MAX_CACHED_TRACKS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Track> eldest) {
+            return size() > MAX_CACHED_TRACKS;
+        }
+    };
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private final ByteBuffer file;
+    private final Track track;
+
+    private Mp4Demuxer(ByteBuffer file, Track track) {
+        this.file = file;
+        this.track = track;
+    }
+
+    /**
+     * Maps the file behind {@code videoUri}. The mapping stays valid after the file descriptor
+     * has been closed, so nothing needs to be released.
+     */
+    static Mp4Demuxer open(Context context, Uri videoUri) throws IOException {
+        ParcelFileDescriptor fd = context.getContentResolver().openFileDescriptor(videoUri, "r");
+        if (fd == null) {
+            throw new IOException("Could not open " + videoUri);
+        }
+        try (FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(fd)) {
+            return open(in.getChannel(), getCacheKey(videoUri, fd));
+        }
+    }
+
+    /**
+     * @return a key that changes when the file is replaced or modified, or null if the provider
+     * does not expose the file's attributes
+     */
+    private static String getCacheKey(Uri videoUri, ParcelFileDescriptor fd) {
+        if (fd.getStatSize() < 0) {
+            return null;
+        }
+        try {
+            StructStat stat = Os.fstat(fd.getFileDescriptor());
+            return videoUri + ":" + stat.st_dev + ":" + stat.st_ino + ":" + stat.st_size + ":" + stat.st_mtime;
+        } catch (ErrnoException e) {
+            Log.d(TAG, "getCacheKey: not caching " + videoUri + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param cacheKey identifies the file and its version, e.g. its path and modification time,
+     *                 or null to not cache the parsed track. A cached track is only used while
+     *                 the file's {@code moov} box is unchanged.
+     * @throws IOException if the file is not an MP4 file with an H.264 track, or is malformed
+     */
+    static Mp4Demuxer open(FileChannel channel, String cacheKey) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Files over 2 GiB are not supported");
+        }
+        MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        Track track;
+        synchronized (trackCache) {
+            track = cacheKey == null ? null : trackCache.get(cacheKey);
+        }
+        if (track != null && !track.isParsedFrom(file)) {
+            Log.d(TAG, "open: " + cacheKey + " has changed, parsing it again");
+            track = null;
+        }
+        if (track == null) {
+            try {
+                track = parse(file);
+            } catch (RuntimeException e) {
+                // E.g. BufferUnderflowException, IndexOutOfBoundsException or
+                // NegativeArraySizeException for box sizes and counts that do not add up.
+                throw new IOException("Malformed MP4 file", e);
+            }
+            if (cacheKey != null) {
+                synchronized (trackCache) {
+                    trackCache.put(cacheKey, track);
+                }
+            }
+        }
+        return new Mp4Demuxer(file, track);
+    }
+
+    static void clearCache() {
+        synchronized (trackCache) {
+            trackCache.clear();
+        }
+    }
+
+    Mp4SampleIndex getSampleIndex() {
+        return track.index;
+    }
+
+    int getWidth() {
+        return track.width;
+    }
+
+    int getHeight() {
+        return track.height;
+    }
+
+    /**
+     * @return clockwise rotation in degrees from the track matrix, as MediaExtractor reports it
+     */
+    int getRotation() {
+        return track.rotation;
+    }
+
+    long getDurationUs() {
+        return track.durationUs;
+    }
+
+    float getFrameRate() {
+        return track.durationUs > 0 ? track.index.size() * 1e6f / track.durationUs : 30;
+    }
+
+    /**
+     * @return the sequence parameter set, without start code
+     */
+    byte[] getSps() {
+        return track.sps.clone();
+    }
+
+    /**
+     * @return the picture parameter set, without start code
+     */
+    byte[] getPps() {
+        return track.pps.clone();
+    }
+
+    /**
+     * @return a read-only slice of the mapped file holding the sample, with NAL units prefixed by
+     * their length as stored in the file
+     */
+    ByteBuffer getSample(int sample) {
+        ByteBuffer slice = file.duplicate();
+        int offset = (int) track.index.getOffset(sample);
+        slice.limit(offset + track.index.getSize(sample)).position(offset);
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the number of bytes {@link #readSampleAnnexB} writes for the sample at most
+     */
+    int getMaxAnnexBSampleSize() {
+        // Each length prefix is replaced by a 4-byte start code.
+        return track.index.getMaxSampleSize() * (track.nalLengthSize < 4 ? 5 - track.nalLengthSize : 1);
+    }
+
+    /**
+     * Copies a sample to {@code buffer} from its position on, replacing the NAL unit lengths by
+     * start codes as MediaCodec expects them.
+     *
+     * @return the number of bytes written
+     */
+    int readSampleAnnexB(int sample, ByteBuffer buffer) {
+        int start = buffer.position();
+        int position = (int) track.index.getOffset(sample);
+        int end = position + track.index.getSize(sample);
+        ByteBuffer source = file.duplicate();
+        while (position + track.nalLengthSize <= end) {
+            int nalLength = readNalLength(position);
+            position += track.nalLengthSize;
+            nalLength = Math.min(nalLength, end - position);
+            buffer.put(START_CODE);
+            source.limit(position + nalLength).position(position);
+            buffer.put(source);
+            position += nalLength;
+        }
+        return buffer.position() - start;
+    }
+
+    private int readNalLength(int position) {
+        int length = 0;
+        for (int i = 0; i < track.nalLengthSize; i++) {
+            length = (length << 8) | (file.get(position + i) & 0xff);
+        }
+        return length;
+    }
+
+    private static Track parse(ByteBuffer file) throws IOException {
+        Box moov = Box.find(file, 0, file.limit(), "moov");
+        if (moov == null) {
+            throw new IOException("No moov box");
+        }
+        long moovChecksum = checksum(file, moov.payload, moov.end);
+        for (Box trak : Box.findAll(file, moov.payload, moov.end, "trak")) {
+            Box mdia = trak.child(file, "mdia");
+            Box hdlr = mdia == null ? null : mdia.child(file, "hdlr");
+            if (hdlr == null || !"vide".equals(fourCc(file, hdlr.payload + 8))) {
+                continue;
+            }
+            Box stbl = mdia.require(file, "minf").require(file, "stbl");
+            Box stsd = stbl.require(file, "stsd");
+            Box avc1 = Box.find(file, stsd.payload + 8, stsd.end, "avc1");
+            if (avc1 == null) {
+                continue;
+            }
+            Track track = new Track();
+            track.width = file.getShort(avc1.payload + 24) & 0xffff;
+            track.height = file.getShort(avc1.payload + 26) & 0xffff;
+            parseAvcC(file, Box.find(file, avc1.payload + 78, avc1.end, "avcC"), track);
+            track.rotation = parseRotation(file, trak.child(file, "tkhd"));
+
+            Box mdhd = mdia.require(file, "mdhd");
+            boolean version1 = file.get(mdhd.payload) == 1;
+            long timescale = (file.getInt(mdhd.payload + (version1 ? 20 : 12)) & 0xffffffffL);
+            long duration = version1 ? file.getLong(mdhd.payload + 24) : file.getInt(mdhd.payload + 16) & 0xffffffffL;
+            long mediaTimeOffset = parseEditMediaTime(file, trak.child(file, "edts"));
+
+            if (timescale == 0) {
+                throw new IOException("No media timescale");
+            }
+            track.index = parseSampleTable(file, stbl, timescale, mediaTimeOffset);
+            track.durationUs = duration * 1_000_000 / timescale;
+            track.fileSize = file.limit();
+            track.moovPayload = moov.payload;
+            track.moovEnd = moov.end;
+            track.moovChecksum = moovChecksum;
+            return track;
+        }
+        throw new IOException("No H.264 video track");
+    }
+
+    private static void parseAvcC(ByteBuffer file, Box avcC, Track track) throws IOException {
+        if (avcC == null) {
+            throw new IOException("No avcC box");
+        }
+        int position = avcC.payload;
+        track.nalLengthSize = (file.get(position + 4) & 0x3) + 1;
+        int spsCount = file.get(position + 5) & 0x1f;
+        position += 6;
+        for (int i = 0; i < spsCount; i++) {
+            int length = file.getShort(position) & 0xffff;
+            if (track.sps == null) {
+                track.sps = bytes(file, position + 2, length);
+            }
+            position += 2 + length;
+        }
+        int ppsCount = file.get(position) & 0xff;
+        position++;
+        for (int i = 0; i < ppsCount; i++) {
+            int length = file.getShort(position) & 0xffff;
+            if (track.pps == null) {
+                track.pps = bytes(file, position + 2, length);
+            }
+            position += 2 + length;
+        }
+        if (track.sps == null || track.pps == null) {
+            throw new IOException("No SPS or PPS in avcC");
+        }
+    }
+
+    private static int parseRotation(ByteBuffer file, Box tkhd) {
+        if (tkhd == null) {
+            return 0;
+        }
+        int matrix = tkhd.payload + (file.get(tkhd.payload) == 1 ? 52 : 40);
+        int a = file.getInt(matrix);
+        int b = file.getInt(matrix + 4);
+        int c = file.getInt(matrix + 12);
+        int d = file.getInt(matrix + 16);
+        int one = 0x00010000;
+        if (a == 0 && b == one && c == -one && d == 0) {
+            return 90;
+        }
+        if (a == -one && b == 0 && c == 0 && d == -one) {
+            return 180;
+        }
+        if (a == 0 && b == -one && c == one && d == 0) {
+            return 270;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the media time the presentation starts at, from the first non-empty edit, in
+     * media timescale units
+     */
+    private static long parseEditMediaTime(ByteBuffer file, Box edts) {
+        Box elst = edts == null ? null : edts.child(file, "elst");
+        if (elst == null) {
+            return 0;
+        }
+        boolean version1 = file.get(elst.payload) == 1;
+        int entryCount = file.getInt(elst.payload + 4);
+        int position = elst.payload + 8;
+        for (int i = 0; i < entryCount; i++) {
+            long mediaTime = version1 ? file.getLong(position + 8) : file.getInt(position + 4);
+            if (mediaTime >= 0) {
+                return mediaTime;
+            }
+            position += version1 ? 20 : 12;
+        }
+        return 0;
+    }
+
+    private static Mp4SampleIndex parseSampleTable(ByteBuffer file, Box stbl, long timescale, long mediaTimeOffset) throws IOException {
+        Box stsz = stbl.child(file, "stsz");
+        Box stsc = stbl.child(file, "stsc");
+        Box stts = stbl.child(file, "stts");
+        Box stco = stbl.child(file, "stco");
+        Box co64 = stbl.child(file, "co64");
+        if (stsz == null || stsc == null || stts == null || (stco == null && co64 == null)) {
+            throw new IOException("Incomplete sample table");
+        }
+
+        int defaultSize = file.getInt(stsz.payload + 4);
+        int sampleCount = file.getInt(stsz.payload + 8);
+        if (sampleCount <= 0) {
+            throw new IOException("No samples; fragmented files are not supported");
+        }
+        if (defaultSize == 0 ? sampleCount > (stsz.end - stsz.payload - 12) / 4 : (long) sampleCount * defaultSize > file.limit()) {
+            throw new IOException("Sample count " + sampleCount + " exceeds the sample table");
+        }
+        int[] sizes = new int[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            sizes[i] = defaultSize != 0 ? defaultSize : file.getInt(stsz.payload + 12 + 4 * i);
+        }
+
+        // Chunk offsets, then each sample's offset within its chunk.
+        Box chunkBox = co64 != null ? co64 : stco;
+        int chunkCount = file.getInt(chunkBox.payload + 4);
+        long[] offsets = new long[sampleCount];
+        int stscEntries = file.getInt(stsc.payload + 4);
+        int sample = 0;
+        for (int entry = 0; entry < stscEntries && sample < sampleCount; entry++) {
+            int entryPosition = stsc.payload + 8 + 12 * entry;
+            int firstChunk = file.getInt(entryPosition) - 1;
+            int samplesPerChunk = file.getInt(entryPosition + 4);
+            int lastChunk = entry + 1 < stscEntries ? file.getInt(entryPosition + 12) - 1 : chunkCount;
+            for (int chunk = firstChunk; chunk < lastChunk && sample < sampleCount; chunk++) {
+                long offset = co64 != null ? file.getLong(chunkBox.payload + 8 + 8 * chunk) : file.getInt(chunkBox.payload + 8 + 4 * chunk) & 0xffffffffL;
+                for (int i = 0; i < samplesPerChunk && sample < sampleCount; i++) {
+                    offsets[sample] = offset;
+                    offset += sizes[sample];
+                    sample++;
+                }
+            }
+        }
+        if (sample < sampleCount) {
+            throw new IOException("Sample table covers " + sample + " of " + sampleCount + " samples");
+        }
+        for (int i = 0; i < sampleCount; i++) {
+            if (offsets[i] + sizes[i] > file.limit()) {
+                throw new IOException("Sample " + i + " lies outside the file");
+            }
+        }
+
+        // Decode times from stts plus composition offsets from ctts.
+        long[] times = new long[sampleCount];
+        int sttsEntries = file.getInt(stts.payload + 4);
+        long decodeTime = 0;
+        sample = 0;
+        for (int entry = 0; entry < sttsEntries && sample < sampleCount; entry++) {
+            int count = file.getInt(stts.payload + 8 + 8 * entry);
+            int delta = file.getInt(stts.payload + 12 + 8 * entry);
+            for (int i = 0; i < count && sample < sampleCount; i++) {
+                times[sample++] = decodeTime;
+                decodeTime += delta;
+            }
+        }
+        Box ctts = stbl.child(file, "ctts");
+        if (ctts != null) {
+            int cttsEntries = file.getInt(ctts.payload + 4);
+            sample = 0;
+            for (int entry = 0; entry < cttsEntries && sample < sampleCount; entry++) {
+                int count = file.getInt(ctts.payload + 8 + 8 * entry);
+                // Signed in version 1 and in practice in version 0 too.
+                int offset = file.getInt(ctts.payload + 12 + 8 * entry);
+                for (int i = 0; i < count && sample < sampleCount; i++) {
+                    times[sample++] += offset;
+                }
+            }
+        }
+        for (int i = 0; i < sampleCount; i++) {
+            times[i] = (times[i] - mediaTimeOffset) * 1_000_000 / timescale;
+        }
+
+        int[] syncSamples = null;
+        Box stss = stbl.child(file, "stss");
+        if (stss != null) {
+            syncSamples = new int[file.getInt(stss.payload + 4)];
+            for (int i = 0; i < syncSamples.length; i++) {
+                syncSamples[i] = file.getInt(stss.payload + 8 + 4 * i) - 1;
+            }
+        }
+        return new Mp4SampleIndex(offsets, sizes, times, syncSamples);
+    }
+
+    private static String fourCc(ByteBuffer file, int position) {
+        return new String(bytes(file, position, 4), StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] bytes(ByteBuffer file, int position, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = file.get(position + i);
+        }
+        return bytes;
+    }
+
+    private static long checksum(ByteBuffer file, int start, int end) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        ByteBuffer source = file.duplicate();
+        source.limit(end).position(start);
+        while (source.hasRemaining()) {
+            int length = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Parsed track, shared by all demuxers of the same file.
+     */
+    private static class Track {
+        int width;
+        int height;
+        int rotation;
+        long durationUs;
+        int nalLengthSize;
+        byte[] sps;
+        byte[] pps;
+        Mp4SampleIndex index;
+        // Size of the file, where its moov box was and what it held, to tell whether a new mapping
+        // still matches.
+        int fileSize;
+        int moovPayload;
+        int moovEnd;
+        long moovChecksum;
+
+        boolean isParsedFrom(ByteBuffer file) {
+            return file.limit() == fileSize && checksum(file, moovPayload, moovEnd) == moovChecksum;
+        }
+    }
+
+    private static class Box {
+
+        final int payload;
+        final int end;
+
+        private Box(int payload, int end) {
+            this.payload = payload;
+            this.end = end;
+        }
+
+        Box child(ByteBuffer file, String type) {
+            return find(file, payload, end, type);
+        }
+
+        Box require(ByteBuffer file, String type) throws IOException {
+            Box child = child(file, type);
+            if (child == null) {
+                throw new IOException("No " + type + " box");
+            }
+            return child;
+        }
+
+        static Box find(ByteBuffer file, int start, int end, String type) {
+            List<Box> boxes = findAll(file, start, end, type);
+            return boxes.isEmpty() ? null : boxes.get(0);
+        }
+
+        static List<Box> findAll(ByteBuffer file, int start, int end, String type) {
+            List<Box> boxes = new ArrayList<>();
+            int position = start;
+            while (position + 8 <= end) {
+                long size = file.getInt(position) & 0xffffffffL;
+                int headerSize = 8;
+                if (size == 1) {
+                    size = file.getLong(position + 8);
+                    headerSize = 16;
+                } else if (size == 0) {
+                    size = end - position;
+                }
+                if (size < headerSize || position + size > end) {
+                    break;
+                }
+                if (type.equals(fourCc(file, position + 4))) {
+                    boxes.add(new Box(position + headerSize, (int) (position + size)));
+                }
+                position += (int) size;
+            }
+            return boxes;
+        }
+    }
+}
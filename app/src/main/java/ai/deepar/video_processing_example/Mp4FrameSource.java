@@ -0,0 +1,55 @@
+package ai.deepar.video_processing_example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link FrameSource} reading samples from an {@link Mp4Demuxer} in decode order, from the sync
+ * sample at or before a start time up to the first sync sample at or after an end time.
+ */
+class Mp4FrameSource implements FrameSource {
+
+    private final Mp4Demuxer demuxer;
+    private final Mp4SampleIndex index;
+    private final long endUs;
+    private int sample;
+
+    Mp4FrameSource(Mp4Demuxer demuxer, long startUs, long endUs) {
+        this.demuxer = demuxer;
+        this.index = demuxer.getSampleIndex();
+        this.endUs = endUs;
+        this.sample = startUs > 0 ? index.findSyncSample(startUs) : 0;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer) {
+        if (sample >= index.size()) {
+            return -1;
+        }
+        buffer.clear();
+        int size = demuxer.readSampleAnnexB(sample, buffer);
+        buffer.flip();
+        return size;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return sample < index.size() ? index.getPresentationTimeUs(sample) : -1;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return sample < index.size() && index.isSync(sample) ? FramePipeline.FLAG_KEY_FRAME : 0;
+    }
+
+    @Override
+    public boolean advance() {
+        sample++;
+        return sample < index.size() && !reachedEnd();
+    }
+
+    private boolean reachedEnd() {
+        return endUs != Long.MAX_VALUE
+                && index.getPresentationTimeUs(sample) >= endUs
+                && index.isSync(sample);
+    }
+}
@@ -0,0 +1,89 @@
+package ai.deepar.video_processing_example;
+
+import java.util.Arrays;
+
+/**
+ * Byte ranges, presentation times and sync flags of all samples of an MP4 track, in decode
+ * order, kept in primitive arrays so that an index of a long video stays small and can be
+ * cached.
+ */
+class Mp4SampleIndex {
+
+    private final long[] offsets;
+    private final int[] sizes;
+    private final long[] presentationTimesUs;
+    // Sorted sample indices, or null if every sample is a sync sample.
+    private final int[] syncSamples;
+    private final int maxSampleSize;
+
+    Mp4SampleIndex(long[] offsets, int[] sizes, long[] presentationTimesUs, int[] syncSamples) {
+        if (offsets.length != sizes.length || sizes.length != presentationTimesUs.length) {
+            throw new IllegalArgumentException("Sample tables differ in length");
+        }
+        this.offsets = offsets;
+        this.sizes = sizes;
+        this.presentationTimesUs = presentationTimesUs;
+        this.syncSamples = syncSamples;
+        int max = 0;
+        for (int size : sizes) {
+            max = Math.max(max, size);
+        }
+        this.maxSampleSize = max;
+    }
+
+    int size() {
+        return sizes.length;
+    }
+
+    long getOffset(int sample) {
+        return offsets[sample];
+    }
+
+    int getSize(int sample) {
+        return sizes[sample];
+    }
+
+    long getPresentationTimeUs(int sample) {
+        return presentationTimesUs[sample];
+    }
+
+    boolean isSync(int sample) {
+        return syncSamples == null || Arrays.binarySearch(syncSamples, sample) >= 0;
+    }
+
+    int getMaxSampleSize() {
+        return maxSampleSize;
+    }
+
+    int getSyncSampleCount() {
+        return syncSamples == null ? sizes.length : syncSamples.length;
+    }
+
+    /**
+     * @return the sample index of the {@code n}th sync sample
+     */
+    int getSyncSample(int n) {
+        return syncSamples == null ? n : syncSamples[n];
+    }
+
+    /**
+     * @return the last sync sample presented at or before {@code timeUs}, or the first sync sample
+     * if there is none
+     */
+    int findSyncSample(long timeUs) {
+        // Sync samples are presented in decode order.
+        int low = 0;
+        int high = getSyncSampleCount() - 1;
+        int result = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (presentationTimesUs[getSyncSample(middle)] <= timeUs) {
+                result = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return getSyncSampleCount() > 0 ? getSyncSample(result) : 0;
+    }
+}
@@ -0,0 +1,85 @@
+package ai.deepar.video_processing_example;
+
+/**
+ * FIFO of decoder output buffers that have been received from the codec but not yet processed,
+ * stored in primitive arrays. Not thread-safe; only used from the decoder callback thread.
+ */
+class PendingOutputBuffers {
+
+    private int[] indices = new int[8];
+    private long[] presentationTimesUs = new long[8];
+    private int[] flags = new int[8];
+    private int[] sizes = new int[8];
+    private int head;
+    private int count;
+
+    void add(int index, long presentationTimeUs, int flags, int size) {
+        if (count == indices.length) {
+            grow();
+        }
+        int slot = (head + count) % indices.length;
+        this.indices[slot] = index;
+        this.presentationTimesUs[slot] = presentationTimeUs;
+        this.flags[slot] = flags;
+        this.sizes[slot] = size;
+        count++;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    int peekIndex() {
+        return indices[head];
+    }
+
+    long peekPresentationTimeUs() {
+        return presentationTimesUs[head];
+    }
+
+    int peekFlags() {
+        return flags[head];
+    }
+
+    int peekSize() {
+        return sizes[head];
+    }
+
+    void remove() {
+        if (count == 0) {
+            throw new IllegalStateException("No pending output buffers");
+        }
+        head = (head + 1) % indices.length;
+        count--;
+    }
+
+    void clear() {
+        head = 0;
+        count = 0;
+    }
+
+    private void grow() {
+        int capacity = indices.length * 2;
+        indices = unwrap(indices, capacity);
+        flags = unwrap(flags, capacity);
+        sizes = unwrap(sizes, capacity);
+        long[] times = new long[capacity];
+        for (int i = 0; i < count; i++) {
+            times[i] = presentationTimesUs[(head + i) % presentationTimesUs.length];
+        }
+        presentationTimesUs = times;
+        head = 0;
+    }
+
+    private int[] unwrap(int[] values, int capacity) {
+        int[] result = new int[capacity];
+        for (int i = 0; i < count; i++) {
+            result[i] = values[(head + i) % values.length];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,27 @@
+package ai.deepar.video_processing_example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Mutable frame holder passed between pipeline stages. Instances are pooled and reused, so a
+ * stage must not keep a reference after handing the frame on.
+ */
+class PipelineFrame {
+
+    int bufferIndex;
+    FramePlanes planes;
+    ByteBuffer buffer;
+    int width;
+    int height;
+    int pixelStride;
+    long presentationTimeUs;
+    boolean endOfStream;
+
+    void reset() {
+        bufferIndex = -1;
+        planes = null;
+        buffer = null;
+        presentationTimeUs = 0;
+        endOfStream = false;
+    }
+}
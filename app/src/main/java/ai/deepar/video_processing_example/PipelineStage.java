@@ -0,0 +1,77 @@
+package ai.deepar.video_processing_example;
+
+import android.util.Log;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A pipeline stage running on its own thread. Items are handed over through a bounded
+ * {@link SpscQueue}, so {@link #put(Object)} must only ever be called from a single upstream
+ * thread. When the queue is full the upstream thread waits, which throttles earlier stages to
+ * the speed of this one.
+ */
+class PipelineStage<T> {
+
+    private static final String TAG = PipelineStage.class.getSimpleName();
+
+    private static final long IDLE_PARK_NANOS = 1_000_000L;
+    private static final long FULL_PARK_NANOS = 100_000L;
+
+    interface Worker<T> {
+        void process(T item);
+    }
+
+    private final String name;
+    private final SpscQueue<T> queue;
+    private final Worker<T> worker;
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    PipelineStage(String name, int queueDepth, Worker<T> worker) {
+        this.name = name;
+        this.queue = new SpscQueue<>(queueDepth);
+        this.worker = worker;
+        this.thread = new Thread(this::loop, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void put(T item) {
+        while (!queue.offer(item)) {
+            LockSupport.unpark(thread);
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+        }
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Stops the stage once all queued items have been processed.
+     */
+    void quit() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    int getQueueSize() {
+        return queue.size();
+    }
+
+    private void loop() {
+        while (running || !queue.isEmpty()) {
+            T item = queue.poll();
+            if (item == null) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            try {
+                worker.process(item);
+            } catch (RuntimeException e) {
+                Log.e(TAG, name + ": failed to process item", e);
+            }
+        }
+        Log.d(TAG, name + ": stopped");
+    }
+}
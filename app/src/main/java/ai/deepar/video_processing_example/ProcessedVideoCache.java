@@ -0,0 +1,269 @@
+package ai.deepar.video_processing_example;
+
+import android.content.Context;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * On-disk cache of processed videos, keyed by a fingerprint of the source, the effect and the
+ * encoder settings, so re-exporting a clip with the same effect copies the earlier result.
+ * <p>
+ * Entries are written to a temp file and renamed into place, so a crash never leaves a partial
+ * entry behind. The total size is kept within a budget by evicting the least recently used
+ * entries; the modification time of an entry is its last use, so the order survives restarts.
+ * The cache directory is created and cleaned up on first use, on the thread of that call, which
+ * should be a worker thread.
+ */
+class ProcessedVideoCache {
+
+    private static final String TAG = ProcessedVideoCache.class.getSimpleName();
+
+    static final long DEFAULT_MAX_SIZE_BYTES = 512L * 1024 * 1024;
+
+    private static final String DIRECTORY_NAME = "processed-videos";
+    private static final String ENTRY_SUFFIX = ".mp4";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int SAMPLED_PACKETS = 8;
+    private static final int MAX_HASHED_PACKET_BYTES = 64 * 1024;
+
+    private static ProcessedVideoCache instance;
+
+    private final Context context;
+    // Set up on first use.
+    private File directory;
+    private long maxSizeBytes = DEFAULT_MAX_SIZE_BYTES;
+
+    static synchronized ProcessedVideoCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ProcessedVideoCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ProcessedVideoCache(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Sets the size budget. Entries over it are evicted with the next {@link #put}.
+     */
+    synchronized void setMaxSizeBytes(long maxSizeBytes) {
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Computes the cache key of processing {@code videoUri} with {@code effectPath} and
+     * {@code encoderSettings}. Reads the file size, the track formats and a few compressed
+     * packets spread over the video track, rather than the whole file.
+     */
+    String getKey(Uri videoUri, String effectPath, String encoderSettings) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (ParcelFileDescriptor fd = context.getContentResolver().openFileDescriptor(videoUri, "r")) {
+            if (fd != null) {
+                update(digest, "size=" + fd.getStatSize());
+            }
+        }
+        update(digest, "effect=" + effectPath);
+        update(digest, "encoder=" + encoderSettings);
+
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(context, videoUri, null);
+            int videoTrackIndex = -1;
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                update(digest, "track=" + format.getString(MediaFormat.KEY_MIME) + ":" + getLong(format, MediaFormat.KEY_DURATION)
+                        + ":" + getInteger(format, MediaFormat.KEY_WIDTH) + "x" + getInteger(format, MediaFormat.KEY_HEIGHT)
+                        + ":" + getInteger(format, MediaFormat.KEY_SAMPLE_RATE));
+                ByteBuffer csd = format.getByteBuffer("csd-0");
+                if (csd != null) {
+                    digest.update(csd.duplicate());
+                }
+                if (videoTrackIndex < 0 && format.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
+                    videoTrackIndex = i;
+                }
+            }
+            if (videoTrackIndex >= 0) {
+                hashSampledPackets(extractor, videoTrackIndex, digest);
+            }
+        } finally {
+            extractor.release();
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the cached output for {@code key}, or null on a miss. A hit counts as a use.
+     */
+    synchronized File get(String key) {
+        File entry = getEntryFile(key);
+        if (!entry.isFile()) {
+            return null;
+        }
+        if (!entry.setLastModified(System.currentTimeMillis())) {
+            Log.w(TAG, "get: could not update last use of " + entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Copies {@code outputFile} into the cache and evicts entries over the budget.
+     */
+    void put(String key, File outputFile) throws IOException {
+        File tempFile = new File(getDirectory(), key + "." + System.nanoTime() + TEMP_SUFFIX);
+        try {
+            copy(outputFile, tempFile);
+        } catch (IOException e) {
+            delete(tempFile);
+            throw e;
+        }
+        synchronized (this) {
+            if (!tempFile.renameTo(getEntryFile(key))) {
+                delete(tempFile);
+                throw new IOException("Could not move " + tempFile + " into the cache");
+            }
+            trim();
+        }
+    }
+
+    /**
+     * Copies a cached output to {@code outputFile}, replacing it atomically.
+     */
+    static void copyTo(File entry, File outputFile) throws IOException {
+        File tempFile = new File(outputFile.getPath() + TEMP_SUFFIX);
+        try {
+            copy(entry, tempFile);
+        } catch (IOException e) {
+            delete(tempFile);
+            throw e;
+        }
+        if (!tempFile.renameTo(outputFile)) {
+            delete(tempFile);
+            throw new IOException("Could not move " + tempFile + " to " + outputFile);
+        }
+    }
+
+    private void trim() {
+        File[] entries = getDirectory().listFiles((dir, name) -> name.endsWith(ENTRY_SUFFIX));
+        if (entries == null) {
+            return;
+        }
+        long totalBytes = 0;
+        for (File entry : entries) {
+            totalBytes += entry.length();
+        }
+        if (totalBytes <= maxSizeBytes) {
+            return;
+        }
+        Arrays.sort(entries, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File entry : entries) {
+            if (totalBytes <= maxSizeBytes) {
+                break;
+            }
+            long length = entry.length();
+            if (delete(entry)) {
+                totalBytes -= length;
+                Log.d(TAG, "trim: evicted " + entry.getName());
+            }
+        }
+    }
+
+    private File getEntryFile(String key) {
+        return new File(getDirectory(), key + ENTRY_SUFFIX);
+    }
+
+    private synchronized File getDirectory() {
+        if (directory != null) {
+            return directory;
+        }
+        directory = new File(context.getCacheDir(), DIRECTORY_NAME);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "could not create " + directory);
+        }
+        // Left over from writes interrupted by process death.
+        File[] tempFiles = directory.listFiles((dir, name) -> name.endsWith(TEMP_SUFFIX));
+        if (tempFiles != null) {
+            for (File tempFile : tempFiles) {
+                delete(tempFile);
+            }
+        }
+        return directory;
+    }
+
+    private static void hashSampledPackets(MediaExtractor extractor, int trackIndex, MessageDigest digest) {
+        extractor.selectTrack(trackIndex);
+        MediaFormat format = extractor.getTrackFormat(trackIndex);
+        long durationUs = getLong(format, MediaFormat.KEY_DURATION);
+        int capacity = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE)
+                : getInteger(format, MediaFormat.KEY_WIDTH) * getInteger(format, MediaFormat.KEY_HEIGHT);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(capacity, 1));
+        for (int i = 0; i < SAMPLED_PACKETS; i++) {
+            extractor.seekTo(Math.max(durationUs, 0) * i / SAMPLED_PACKETS, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            buffer.clear();
+            int size = extractor.readSampleData(buffer, 0);
+            if (size < 0) {
+                continue;
+            }
+            update(digest, "packet=" + extractor.getSampleTime() + ":" + size);
+            buffer.position(0).limit(Math.min(size, MAX_HASHED_PACKET_BYTES));
+            digest.update(buffer);
+        }
+    }
+
+    private static void update(MessageDigest digest, String field) {
+        digest.update(field.getBytes());
+        digest.update((byte) 0);
+    }
+
+    private static long getLong(MediaFormat format, String key) {
+        return format.containsKey(key) ? format.getLong(key) : -1;
+    }
+
+    private static int getInteger(MediaFormat format, String key) {
+        return format.containsKey(key) ? format.getInteger(key) : -1;
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        try (FileChannel in = new FileInputStream(from).getChannel();
+             FileChannel out = new FileOutputStream(to).getChannel()) {
+            long position = 0;
+            long size = in.size();
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            out.force(false);
+        }
+    }
+
+    private static boolean delete(File file) {
+        if (file.delete()) {
+            return true;
+        }
+        Log.w(TAG, "could not delete " + file);
+        return false;
+    }
+}
@@ -0,0 +1,58 @@
+package ai.deepar.video_processing_example;
+
+import android.net.Uri;
+
+import java.io.File;
+
+/**
+ * A video queued with {@link ProcessingJobScheduler}.
+ */
+public class ProcessingJob {
+
+    private final long id;
+    private final Uri videoUri;
+    private final String effectPath;
+    private final File outputFile;
+    private final int priority;
+    ProcessingJobScheduler.JobListener listener;
+
+    ProcessingJob(long id, Uri videoUri, String effectPath, File outputFile, int priority) {
+        this.id = id;
+        this.videoUri = videoUri;
+        this.effectPath = effectPath;
+        this.outputFile = outputFile;
+        this.priority = priority;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Uri getVideoUri() {
+        return videoUri;
+    }
+
+    public String getEffectPath() {
+        return effectPath;
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    String serialize() {
+        return id + "\t" + priority + "\t" + effectPath + "\t" + outputFile.getAbsolutePath() + "\t" + videoUri;
+    }
+
+    static ProcessingJob deserialize(String line) {
+        String[] fields = line.split("\t", 5);
+        if (fields.length != 5) {
+            throw new IllegalArgumentException("Malformed job: " + line);
+        }
+        return new ProcessingJob(Long.parseLong(fields[0]), Uri.parse(fields[4]), fields[2], new File(fields[3]), Integer.parseInt(fields[1]));
+    }
+}
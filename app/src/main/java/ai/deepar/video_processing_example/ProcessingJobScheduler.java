@@ -0,0 +1,319 @@
+package ai.deepar.video_processing_example;
+
+import android.content.Context;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Processes queued videos, several at a time. The queue is persisted, so jobs that were pending
+ * or running when the process died are run again by the next scheduler instance. Jobs are
+ * processed by {@link ResumableVideoProcessor}, so a job that was running continues from its
+ * last checkpoint. Outputs are kept in {@link ProcessedVideoCache}, so a job that repeats an
+ * earlier one copies its result instead of processing the video again.
+ * <p>
+ * Jobs run highest priority first and in submission order within a priority. A job is started
+ * as soon as a slot is free. The number of slots is limited by the number of concurrent
+ * instances supported by the H.264 decoder and encoder {@link MediaCodecPool} picks for 1080p
+ * video. All methods must be called on the main thread; listeners are called on the main
+ * thread. There is one scheduler per process, so a recreated activity sees the jobs started by
+ * its predecessor.
+ */
+public class ProcessingJobScheduler {
+
+    private static final String TAG = ProcessingJobScheduler.class.getSimpleName();
+
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
+    public static final int DEFAULT_MAX_CONCURRENT_JOBS = 2;
+
+    private static final String VIDEO_MIME = "video/avc";
+    // Size the codec instance limit is looked up for; most gallery videos are 1080p or smaller.
+    private static final int TYPICAL_WIDTH = 1920;
+    private static final int TYPICAL_HEIGHT = 1080;
+    private static final String QUEUE_FILE_NAME = "processing_jobs";
+
+    private static ProcessingJobScheduler instance;
+
+    public interface JobListener {
+        /**
+         * Called on the main thread at most every {@link ProgressReporter#DEFAULT_INTERVAL_MS}
+         * while the job is running.
+         */
+        void onProgress(ProcessingJob job, ProgressReporter.Snapshot progress);
+
+        void onFinished(ProcessingJob job, boolean success);
+    }
+
+    private final Context context;
+    private final File outputDirectory;
+    private final File queueFile;
+    private final int maxCodecSessions;
+    private final ProcessedVideoCache cache;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final List<ProcessingJob> pendingJobs = new ArrayList<>();
+    private final List<ProcessingJob> runningJobs = new ArrayList<>();
+    private int maxConcurrentJobs;
+    private EncoderProfile encoderProfile = EncoderProfile.CONTENT_ADAPTIVE;
+    private JobListener defaultListener;
+    private long lastJobId;
+
+    public static synchronized ProcessingJobScheduler getInstance(Context context) {
+        if (instance == null) {
+            instance = new ProcessingJobScheduler(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ProcessingJobScheduler(Context context) {
+        this.context = context;
+        this.outputDirectory = context.getExternalFilesDir(Environment.DIRECTORY_MOVIES);
+        this.queueFile = new File(context.getFilesDir(), QUEUE_FILE_NAME);
+        this.cache = ProcessedVideoCache.getInstance(context);
+        CodecCapabilityCache capabilities = MediaCodecPool.getInstance().getCapabilities();
+        MediaFormat format = MediaFormat.createVideoFormat(VIDEO_MIME, TYPICAL_WIDTH, TYPICAL_HEIGHT);
+        this.maxCodecSessions = Math.max(1, Math.min(capabilities.getMaxSupportedInstances(format, false), capabilities.getMaxSupportedInstances(format, true)));
+        this.maxConcurrentJobs = Math.min(DEFAULT_MAX_CONCURRENT_JOBS, maxCodecSessions);
+        load();
+    }
+
+    /**
+     * Limits the number of jobs running at once. Capped by the number of concurrent codec
+     * instances supported by the codecs jobs run on.
+     */
+    public void setMaxConcurrentJobs(int maxConcurrentJobs) {
+        this.maxConcurrentJobs = Math.max(1, Math.min(maxConcurrentJobs, maxCodecSessions));
+        startPendingJobs();
+    }
+
+    /**
+     * Sets the encoder profile of jobs started from now on. Defaults to
+     * {@link EncoderProfile#CONTENT_ADAPTIVE}, which keeps outputs small for sharing.
+     */
+    public void setEncoderProfile(EncoderProfile encoderProfile) {
+        this.encoderProfile = encoderProfile;
+    }
+
+    /**
+     * Sets the listener of jobs submitted without one, including jobs restored from a previous
+     * process. The scheduler lives as long as the process, so a listener tied to an activity must
+     * be cleared with {@code null} when the activity is destroyed.
+     */
+    public void setDefaultListener(JobListener listener) {
+        this.defaultListener = listener;
+    }
+
+    /**
+     * Starts the jobs restored from the persisted queue. Does nothing once they have started.
+     */
+    public void start() {
+        startPendingJobs();
+    }
+
+    /**
+     * Queues a video. The output is written to a new file in the output directory.
+     *
+     * @param listener listener of this job, or null to use the default listener
+     */
+    public ProcessingJob submit(Uri videoUri, String effectPath, int priority, JobListener listener) {
+        long id = Math.max(System.currentTimeMillis(), lastJobId + 1);
+        File outputFile = new File(outputDirectory, "processed_" + id + ".mp4");
+        while (outputFile.exists()) {
+            id++;
+            outputFile = new File(outputDirectory, "processed_" + id + ".mp4");
+        }
+        lastJobId = id;
+        ProcessingJob job = new ProcessingJob(id, videoUri, effectPath, outputFile, priority);
+        job.listener = listener;
+        pendingJobs.add(job);
+        Log.d(TAG, "submit: job " + id + " with priority " + priority + ", " + pendingJobs.size() + " pending");
+        startPendingJobs();
+        return job;
+    }
+
+    /**
+     * Removes a job that has not started yet.
+     *
+     * @return false if the job is not pending
+     */
+    public boolean cancel(long jobId) {
+        for (ProcessingJob job : pendingJobs) {
+            if (job.getId() == jobId) {
+                pendingJobs.remove(job);
+                save();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public List<ProcessingJob> getPendingJobs() {
+        return Collections.unmodifiableList(new ArrayList<>(pendingJobs));
+    }
+
+    public int getRunningJobCount() {
+        return runningJobs.size();
+    }
+
+    private void startPendingJobs() {
+        while (runningJobs.size() < maxConcurrentJobs && !pendingJobs.isEmpty()) {
+            ProcessingJob job = takeNextJob();
+            runningJobs.add(job);
+            run(job);
+        }
+        save();
+    }
+
+    private ProcessingJob takeNextJob() {
+        ProcessingJob next = pendingJobs.get(0);
+        for (ProcessingJob job : pendingJobs) {
+            if (job.getPriority() > next.getPriority()) {
+                next = job;
+            }
+        }
+        pendingJobs.remove(next);
+        return next;
+    }
+
+    private void run(ProcessingJob job) {
+        Log.d(TAG, "run: starting job " + job.getId() + ", " + runningJobs.size() + " running");
+        HandlerThread handlerThread = new HandlerThread("video-processing-" + job.getId());
+        handlerThread.start();
+        Handler handler = new Handler(handlerThread.getLooper());
+        EncoderProfile profile = encoderProfile;
+        handler.post(() -> {
+            String cacheKey = null;
+            try {
+                cacheKey = cache.getKey(job.getVideoUri(), job.getEffectPath(), profile.describe());
+                File cachedOutput = cache.get(cacheKey);
+                if (cachedOutput != null) {
+                    ProcessedVideoCache.copyTo(cachedOutput, job.getOutputFile());
+                    Log.d(TAG, "run: job " + job.getId() + " served from cache");
+                    handlerThread.quitSafely();
+                    mainHandler.post(() -> onJobFinished(job, true));
+                    return;
+                }
+            } catch (IOException | RuntimeException e) {
+                // An unreadable source, e.g. a restored content:// URI whose permission has
+                // expired, fails the job once processing opens it.
+                Log.w(TAG, "run: cache lookup failed for job " + job.getId(), e);
+            }
+            String key = cacheKey;
+            mainHandler.post(() -> process(job, handlerThread, handler, profile, key));
+        });
+    }
+
+    /**
+     * @param cacheKey key the output is cached under, or null to not cache it
+     */
+    private void process(ProcessingJob job, HandlerThread handlerThread, Handler handler, EncoderProfile profile, String cacheKey) {
+        ResumableVideoProcessor videoProcessor = new ResumableVideoProcessor(context, handler, (progress) -> {
+        }, () -> handler.post(() -> {
+            if (cacheKey != null) {
+                try {
+                    cache.put(cacheKey, job.getOutputFile());
+                } catch (IOException | RuntimeException e) {
+                    Log.w(TAG, "process: could not cache output of job " + job.getId(), e);
+                }
+            }
+            handlerThread.quitSafely();
+            mainHandler.post(() -> onJobFinished(job, true));
+        }));
+        videoProcessor.setOnFailure((e) -> {
+            handlerThread.quitSafely();
+            onJobFinished(job, false);
+        });
+        videoProcessor.setProgressListener((progress) -> {
+            JobListener listener = getListener(job);
+            if (listener != null) {
+                listener.onProgress(job, progress);
+            }
+        }, ProgressReporter.DEFAULT_INTERVAL_MS);
+        videoProcessor.setPipelineMode(true);
+        // Jobs usually read content:// URIs from the gallery.
+        videoProcessor.setReadAheadDepth(VideoProcessor.DEFAULT_READ_AHEAD_DEPTH);
+        videoProcessor.setEncoderProfile(profile);
+        videoProcessor.processVideo(job.getVideoUri(), job.getOutputFile(), job.getEffectPath());
+    }
+
+    private void onJobFinished(ProcessingJob job, boolean success) {
+        Log.d(TAG, "onJobFinished: job " + job.getId() + (success ? " finished" : " failed"));
+        // Failed jobs leave the persisted queue as well, so a source that cannot be read is not
+        // retried on every launch.
+        runningJobs.remove(job);
+        JobListener listener = getListener(job);
+        if (listener != null) {
+            listener.onFinished(job, success);
+        }
+        startPendingJobs();
+    }
+
+    private JobListener getListener(ProcessingJob job) {
+        return job.listener != null ? job.listener : defaultListener;
+    }
+
+    private void load() {
+        if (!queueFile.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(queueFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    ProcessingJob job = ProcessingJob.deserialize(line);
+                    pendingJobs.add(job);
+                    lastJobId = Math.max(lastJobId, job.getId());
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "load: skipping job", e);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "load: failed to read " + queueFile, e);
+        }
+        Collections.sort(pendingJobs, (a, b) -> Long.compare(a.getId(), b.getId()));
+        Log.d(TAG, "load: restored " + pendingJobs.size() + " jobs");
+    }
+
+    /**
+     * Writes running and pending jobs, replacing the previous queue file atomically.
+     */
+    private void save() {
+        File tempFile = new File(queueFile.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile))) {
+            for (ProcessingJob job : runningJobs) {
+                writer.write(job.serialize());
+                writer.newLine();
+            }
+            for (ProcessingJob job : pendingJobs) {
+                writer.write(job.serialize());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "save: failed to write " + tempFile, e);
+            return;
+        }
+        if (!tempFile.renameTo(queueFile)) {
+            Log.e(TAG, "save: failed to replace " + queueFile);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package ai.deepar.video_processing_example;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-stage latency histograms and counters of a processing job. Recording is allocation-free;
+ * only {@link #snapshot()} allocates.
+ */
+public class ProcessingMetrics {
+
+    public static final int STAGE_EXTRACT = 0;
+    public static final int STAGE_DECODER_OUTPUT = 1;
+    public static final int STAGE_PACK = 2;
+    public static final int STAGE_RENDER = 3;
+    public static final int STAGE_ENCODER_DRAIN = 4;
+    public static final int STAGE_MUX = 5;
+    public static final int STAGE_READ = 6;
+    static final String[] STAGE_NAMES = {"extract", "decoderOutput", "pack", "render", "encoderDrain", "mux", "read"};
+
+    public static final int QUEUE_PACK = 0;
+    public static final int QUEUE_RENDER = 1;
+    public static final int QUEUE_FRAMES_IN_FLIGHT = 2;
+    public static final int QUEUE_PENDING_DECODER_OUTPUT = 3;
+    public static final int QUEUE_READ_AHEAD = 4;
+    static final String[] QUEUE_NAMES = {"pack", "render", "framesInFlight", "pendingDecoderOutput", "readAhead"};
+
+    public interface Listener {
+        /**
+         * Called on the main thread with a live snapshot while the job is running.
+         */
+        void onSnapshot(Snapshot snapshot);
+
+        /**
+         * Called on the main thread once the job has finished.
+         */
+        void onReport(Snapshot snapshot);
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[STAGE_NAMES.length];
+    private final AtomicLong[] peakQueueDepths = new AtomicLong[QUEUE_NAMES.length];
+    private final AtomicLong framesDecoded = new AtomicLong();
+    private final AtomicLong framesRendered = new AtomicLong();
+    private final AtomicLong framesEncoded = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong framesSkipped = new AtomicLong();
+    private final AtomicLong bytesMuxed = new AtomicLong();
+    private final AtomicLong warmEngines = new AtomicLong();
+    private final AtomicLong coldEngines = new AtomicLong();
+    private final AtomicLong readAheadUnderruns = new AtomicLong();
+    private final AtomicLong readAheadFullStalls = new AtomicLong();
+    private volatile long startNanos;
+    private volatile long firstFrameNanos;
+    private volatile long endNanos;
+
+    ProcessingMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < peakQueueDepths.length; i++) {
+            peakQueueDepths[i] = new AtomicLong();
+        }
+    }
+
+    void start() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        for (AtomicLong peak : peakQueueDepths) {
+            peak.set(0);
+        }
+        framesDecoded.set(0);
+        framesRendered.set(0);
+        framesEncoded.set(0);
+        framesDropped.set(0);
+        framesSkipped.set(0);
+        bytesMuxed.set(0);
+        warmEngines.set(0);
+        coldEngines.set(0);
+        readAheadUnderruns.set(0);
+        readAheadFullStalls.set(0);
+        firstFrameNanos = 0;
+        endNanos = 0;
+        startNanos = System.nanoTime();
+    }
+
+    void finish() {
+        endNanos = System.nanoTime();
+    }
+
+    void recordLatency(int stage, long nanos) {
+        histograms[stage].record(nanos);
+    }
+
+    void recordQueueDepth(int queue, long depth) {
+        AtomicLong peak = peakQueueDepths[queue];
+        long current = peak.get();
+        while (depth > current && !peak.compareAndSet(current, depth)) {
+            current = peak.get();
+        }
+    }
+
+    void onFrameDecoded() {
+        framesDecoded.incrementAndGet();
+    }
+
+    void onFrameRendered() {
+        if (framesRendered.incrementAndGet() == 1) {
+            firstFrameNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * @param warm true if an already initialized renderer was reused
+     */
+    void onEngineAcquired(boolean warm) {
+        (warm ? warmEngines : coldEngines).incrementAndGet();
+    }
+
+    void onFramesEncoded(int frames) {
+        framesEncoded.addAndGet(frames);
+    }
+
+    void setFramesDropped(long frames) {
+        framesDropped.set(frames);
+    }
+
+    /**
+     * Counts a source frame left out on purpose, e.g. to reduce the frame rate of a preview.
+     */
+    void onFrameSkipped() {
+        framesSkipped.incrementAndGet();
+    }
+
+    /**
+     * Counts a wait of the decoder for a sample that had not been read ahead yet.
+     */
+    void onReadAheadUnderrun() {
+        readAheadUnderruns.incrementAndGet();
+    }
+
+    /**
+     * Counts a wait of the read-ahead thread for the decoder to free a buffer.
+     */
+    void onReadAheadFullStall() {
+        readAheadFullStalls.incrementAndGet();
+    }
+
+    void onBytesMuxed(long bytes) {
+        bytesMuxed.addAndGet(bytes);
+    }
+
+    /**
+     * @return number of frames emitted by every encoder so far; unlike {@link #snapshot()}, this
+     * does not allocate
+     */
+    long getFramesEncoded() {
+        return framesEncoded.get();
+    }
+
+    public Snapshot snapshot() {
+        long end = endNanos != 0 ? endNanos : System.nanoTime();
+        long elapsedNanos = startNanos == 0 ? 0 : end - startNanos;
+        Snapshot snapshot = new Snapshot(STAGE_NAMES.length, QUEUE_NAMES.length);
+        for (int i = 0; i < histograms.length; i++) {
+            LatencyHistogram histogram = histograms[i];
+            snapshot.stageCounts[i] = histogram.getCount();
+            snapshot.stageMeanNanos[i] = histogram.getMeanNanos();
+            snapshot.stageP50Nanos[i] = histogram.getPercentileNanos(50);
+            snapshot.stageP99Nanos[i] = histogram.getPercentileNanos(99);
+            snapshot.stageMaxNanos[i] = histogram.getMaxNanos();
+        }
+        for (int i = 0; i < peakQueueDepths.length; i++) {
+            snapshot.peakQueueDepths[i] = peakQueueDepths[i].get();
+        }
+        snapshot.elapsedNanos = elapsedNanos;
+        snapshot.framesDecoded = framesDecoded.get();
+        snapshot.framesRendered = framesRendered.get();
+        snapshot.framesEncoded = framesEncoded.get();
+        snapshot.framesDropped = framesDropped.get();
+        snapshot.framesSkipped = framesSkipped.get();
+        snapshot.bytesMuxed = bytesMuxed.get();
+        snapshot.timeToFirstFrameNanos = firstFrameNanos == 0 ? -1 : firstFrameNanos - startNanos;
+        snapshot.warmEngines = warmEngines.get();
+        snapshot.coldEngines = coldEngines.get();
+        snapshot.readAheadUnderruns = readAheadUnderruns.get();
+        snapshot.readAheadFullStalls = readAheadFullStalls.get();
+        snapshot.finished = endNanos != 0;
+        return snapshot;
+    }
+
+    public static class Snapshot {
+
+        final long[] stageCounts;
+        final long[] stageMeanNanos;
+        final long[] stageP50Nanos;
+        final long[] stageP99Nanos;
+        final long[] stageMaxNanos;
+        final long[] peakQueueDepths;
+        long elapsedNanos;
+        long framesDecoded;
+        long framesRendered;
+        long framesEncoded;
+        long framesDropped;
+        long framesSkipped;
+        long bytesMuxed;
+        long timeToFirstFrameNanos;
+        long warmEngines;
+        long coldEngines;
+        long readAheadUnderruns;
+        long readAheadFullStalls;
+        boolean finished;
+
+        Snapshot(int stageCount, int queueCount) {
+            stageCounts = new long[stageCount];
+            stageMeanNanos = new long[stageCount];
+            stageP50Nanos = new long[stageCount];
+            stageP99Nanos = new long[stageCount];
+            stageMaxNanos = new long[stageCount];
+            peakQueueDepths = new long[queueCount];
+        }
+
+        public long getFramesEncoded() {
+            return framesEncoded;
+        }
+
+        public long getFramesDropped() {
+            return framesDropped;
+        }
+
+        public long getFramesSkipped() {
+            return framesSkipped;
+        }
+
+        /**
+         * @return number of times decoding waited for a sample to be read, see
+         * {@code VideoProcessor#setReadAheadDepth}
+         */
+        public long getReadAheadUnderruns() {
+            return readAheadUnderruns;
+        }
+
+        /**
+         * @return number of times reading ahead waited for the decoder; frequent stalls mean the
+         * read-ahead is deeper than it needs to be
+         */
+        public long getReadAheadFullStalls() {
+            return readAheadFullStalls;
+        }
+
+        public long getBytesMuxed() {
+            return bytesMuxed;
+        }
+
+        /**
+         * @return time from the start of the job until the first frame was rendered, or -1 if
+         * no frame has been rendered yet
+         */
+        public long getTimeToFirstFrameMs() {
+            return timeToFirstFrameNanos < 0 ? -1 : timeToFirstFrameNanos / 1_000_000;
+        }
+
+        public double getFps() {
+            return elapsedNanos == 0 ? 0 : framesEncoded * 1e9 / elapsedNanos;
+        }
+
+        public long getStageMeanNanos(int stage) {
+            return stageMeanNanos[stage];
+        }
+
+        public long getStageP99Nanos(int stage) {
+            return stageP99Nanos[stage];
+        }
+
+        public long getPeakQueueDepth(int queue) {
+            return peakQueueDepths[queue];
+        }
+
+        public String toJson() {
+            StringBuilder json = new StringBuilder(1024);
+            json.append('{');
+            json.append("\"finished\":").append(finished);
+            json.append(",\"elapsedMs\":").append(elapsedNanos / 1_000_000);
+            json.append(",\"framesDecoded\":").append(framesDecoded);
+            json.append(",\"framesRendered\":").append(framesRendered);
+            json.append(",\"framesEncoded\":").append(framesEncoded);
+            json.append(",\"framesDropped\":").append(framesDropped);
+            json.append(",\"framesSkipped\":").append(framesSkipped);
+            json.append(",\"bytesMuxed\":").append(bytesMuxed);
+            json.append(",\"timeToFirstFrameMs\":").append(getTimeToFirstFrameMs());
+            json.append(",\"warmEngines\":").append(warmEngines);
+            json.append(",\"coldEngines\":").append(coldEngines);
+            json.append(",\"readAheadUnderruns\":").append(readAheadUnderruns);
+            json.append(",\"readAheadFullStalls\":").append(readAheadFullStalls);
+            json.append(",\"fps\":").append(String.format(Locale.US, "%.2f", getFps()));
+            json.append(",\"stages\":{");
+            for (int i = 0; i < STAGE_NAMES.length; i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append('"').append(STAGE_NAMES[i]).append("\":{")
+                        .append("\"count\":").append(stageCounts[i])
+                        .append(",\"meanUs\":").append(stageMeanNanos[i] / 1000)
+                        .append(",\"p50Us\":").append(stageP50Nanos[i] / 1000)
+                        .append(",\"p99Us\":").append(stageP99Nanos[i] / 1000)
+                        .append(",\"maxUs\":").append(stageMaxNanos[i] / 1000)
+                        .append('}');
+            }
+            json.append("},\"peakQueueDepths\":{");
+            for (int i = 0; i < QUEUE_NAMES.length; i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append('"').append(QUEUE_NAMES[i]).append("\":").append(peakQueueDepths[i]);
+            }
+            json.append("}}");
+            return json.toString();
+        }
+    }
+}
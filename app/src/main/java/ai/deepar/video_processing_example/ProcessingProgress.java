@@ -0,0 +1,15 @@
+package ai.deepar.video_processing_example;
+
+final class ProcessingProgress {
+
+    private ProcessingProgress() {
+    }
+
+    /**
+     * @return progress in percent of a frame at {@code timeUs} within a range starting at
+     * {@code startUs} and lasting {@code durationUs}
+     */
+    static double percent(long timeUs, long startUs, float durationUs) {
+        return (double) ((timeUs - startUs) * 1000L / durationUs) / 10.0;
+    }
+}
@@ -0,0 +1,150 @@
+package ai.deepar.video_processing_example;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Turns per-frame progress updates into a steady stream of {@link Snapshot}s.
+ * <p>
+ * Updates may come from any thread and as often as frames are encoded. Progress is sampled at
+ * most once per interval, and the throughput and remaining time are estimated from
+ * exponentially weighted rates between samples. At most one delivery is pending on the
+ * listener's executor at a time; a delivery always reports the latest sample. The listener's
+ * load therefore depends only on the interval, not on the frame rate.
+ */
+public class ProgressReporter {
+
+    public static final long DEFAULT_INTERVAL_MS = 100;
+
+    // A rate measured this long ago weighs 1/e as much as the current one.
+    private static final double SMOOTHING_TIME_CONSTANT_NANOS = 2e9;
+
+    public interface Listener {
+        void onProgress(Snapshot snapshot);
+    }
+
+    private final Executor executor;
+    private final long intervalNanos;
+    private final Listener listener;
+    private final AtomicBoolean deliveryPending = new AtomicBoolean();
+    private final Runnable deliver = this::deliver;
+    private volatile Snapshot latest;
+
+    private double percent;
+    private long framesDone;
+    private boolean sampled;
+    private long lastSampleNanos;
+    private double lastSamplePercent;
+    private long lastSampleFrames;
+    private boolean rateKnown;
+    private double framesPerSecond;
+    private double percentPerSecond;
+
+    /**
+     * @param executor   executor the listener is called on, e.g. {@code mainHandler::post}
+     * @param intervalMs minimum time between two samples
+     */
+    ProgressReporter(Executor executor, long intervalMs, Listener listener) {
+        this.executor = executor;
+        this.intervalNanos = intervalMs * 1_000_000L;
+        this.listener = listener;
+    }
+
+    void update(double percent, long framesDone) {
+        update(percent, framesDone, System.nanoTime());
+    }
+
+    synchronized void update(double percent, long framesDone, long nowNanos) {
+        this.percent = percent;
+        this.framesDone = framesDone;
+        if (sampled && nowNanos - lastSampleNanos < intervalNanos) {
+            return;
+        }
+        sample(nowNanos);
+    }
+
+    /**
+     * Publishes the latest update without waiting for the interval, e.g. once a job has finished.
+     */
+    void flush() {
+        flush(System.nanoTime());
+    }
+
+    synchronized void flush(long nowNanos) {
+        if (sampled && (percent != lastSamplePercent || framesDone != lastSampleFrames)) {
+            sample(nowNanos);
+        }
+    }
+
+    private void sample(long nowNanos) {
+        long elapsedNanos = nowNanos - lastSampleNanos;
+        if (sampled && elapsedNanos > 0) {
+            double currentFramesPerSecond = (framesDone - lastSampleFrames) * 1e9 / elapsedNanos;
+            double currentPercentPerSecond = (percent - lastSamplePercent) * 1e9 / elapsedNanos;
+            if (rateKnown) {
+                // Weighted by the time the current rate was measured over, so irregular samples
+                // do not skew the estimate.
+                double weight = 1 - Math.exp(-elapsedNanos / SMOOTHING_TIME_CONSTANT_NANOS);
+                framesPerSecond += weight * (currentFramesPerSecond - framesPerSecond);
+                percentPerSecond += weight * (currentPercentPerSecond - percentPerSecond);
+            } else {
+                framesPerSecond = currentFramesPerSecond;
+                percentPerSecond = currentPercentPerSecond;
+                rateKnown = true;
+            }
+        }
+        sampled = true;
+        lastSampleNanos = nowNanos;
+        lastSamplePercent = percent;
+        lastSampleFrames = framesDone;
+
+        long etaMs = rateKnown && percentPerSecond > 0 ? (long) (Math.max(0, 100 - percent) / percentPerSecond * 1000) : -1;
+        latest = new Snapshot(percent, framesDone, framesPerSecond, etaMs);
+        if (deliveryPending.compareAndSet(false, true)) {
+            executor.execute(deliver);
+        }
+    }
+
+    private void deliver() {
+        // Cleared first, so an update after reading the snapshot schedules another delivery.
+        deliveryPending.set(false);
+        listener.onProgress(latest);
+    }
+
+    public static final class Snapshot {
+
+        private final double percent;
+        private final long framesDone;
+        private final double framesPerSecond;
+        private final long etaMs;
+
+        Snapshot(double percent, long framesDone, double framesPerSecond, long etaMs) {
+            this.percent = percent;
+            this.framesDone = framesDone;
+            this.framesPerSecond = framesPerSecond;
+            this.etaMs = etaMs;
+        }
+
+        public double getPercent() {
+            return percent;
+        }
+
+        public long getFramesDone() {
+            return framesDone;
+        }
+
+        /**
+         * @return smoothed number of frames encoded per second, or 0 before the first estimate
+         */
+        public double getFramesPerSecond() {
+            return framesPerSecond;
+        }
+
+        /**
+         * @return estimated time until the job is done, or -1 if it cannot be estimated yet
+         */
+        public long getEtaMs() {
+            return etaMs;
+        }
+    }
+}
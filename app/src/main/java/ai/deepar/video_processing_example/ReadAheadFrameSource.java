@@ -0,0 +1,247 @@
+package ai.deepar.video_processing_example;
+
+import android.util.Log;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link FrameSource} reading the samples of another source ahead on an I/O thread, into a ring
+ * of reusable direct buffers. Slow storage or content provider reads then only hold up the
+ * decoder when the ring has run dry; otherwise filling an input buffer is a copy.
+ * <p>
+ * Once {@link #start()} has been called the wrapped source belongs to the I/O thread until
+ * {@link #release()} returns. The {@link FrameSource} methods must be called from a single
+ * consumer thread. If the wrapped source fails, reading stops and the consumer gets the exception
+ * once it reaches the sample that could not be read.
+ */
+class ReadAheadFrameSource implements FrameSource {
+
+    private static final String TAG = ReadAheadFrameSource.class.getSimpleName();
+
+    private static final long IDLE_PARK_NANOS = 1_000_000L;
+    private static final long EMPTY_PARK_NANOS = 100_000L;
+    private static final int MAX_BUFFER_CAPACITY = 64 << 20;
+
+    private final FrameSource source;
+    private final ProcessingMetrics metrics;
+    private final SpscQueue<Sample> filledSamples;
+    private final SpscQueue<Sample> freeSamples;
+    private final Thread thread = new Thread(this::readAhead, "video-read-ahead");
+
+    private volatile boolean running = true;
+    private volatile Thread consumerThread;
+    private final AtomicLong underruns = new AtomicLong();
+    private final AtomicLong fullStalls = new AtomicLong();
+
+    // Consumer side.
+    private Sample current;
+    private boolean ended;
+
+    /**
+     * @param depth          number of samples read ahead
+     * @param bufferCapacity initial capacity of each buffer; buffers grow when a sample does not
+     *                       fit
+     */
+    ReadAheadFrameSource(FrameSource source, int depth, int bufferCapacity, ProcessingMetrics metrics) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be positive");
+        }
+        this.source = source;
+        this.metrics = metrics;
+        this.filledSamples = new SpscQueue<>(depth);
+        this.freeSamples = new SpscQueue<>(depth);
+        for (int i = 0; i < depth; i++) {
+            freeSamples.offer(new Sample(bufferCapacity));
+        }
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops reading ahead and waits for a read in progress, so the wrapped source can be
+     * released afterwards.
+     */
+    void release() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return number of times the consumer had to wait for a sample to be read
+     */
+    long getUnderrunCount() {
+        return underruns.get();
+    }
+
+    /**
+     * @return number of times the I/O thread had to wait for the consumer to free a buffer
+     */
+    long getFullStallCount() {
+        return fullStalls.get();
+    }
+
+    /**
+     * @throws RuntimeException the exception the wrapped source threw reading this sample
+     */
+    @Override
+    public int readSampleData(ByteBuffer buffer) {
+        Sample sample = head();
+        if (sample == null || sample.size < 0) {
+            return -1;
+        }
+        ByteBuffer data = sample.buffer.duplicate();
+        data.limit(sample.size).position(0);
+        buffer.clear();
+        buffer.put(data);
+        buffer.flip();
+        return sample.size;
+    }
+
+    @Override
+    public long getSampleTime() {
+        Sample sample = head();
+        return sample == null || sample.size < 0 ? -1 : sample.presentationTimeUs;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        Sample sample = head();
+        return sample == null || sample.size < 0 ? 0 : sample.flags & ~FramePipeline.FLAG_END_OF_STREAM;
+    }
+
+    @Override
+    public boolean advance() {
+        Sample sample = head();
+        if (sample == null) {
+            return false;
+        }
+        ended = (sample.flags & FramePipeline.FLAG_END_OF_STREAM) != 0;
+        current = null;
+        freeSamples.offer(sample);
+        LockSupport.unpark(thread);
+        return !ended;
+    }
+
+    /**
+     * @return the current sample, waiting for the I/O thread if it has not been read yet, or null
+     * once the last sample has been passed
+     * @throws RuntimeException the exception the wrapped source threw reading the sample
+     */
+    private Sample head() {
+        Sample sample = nextSample();
+        if (sample != null && sample.error != null) {
+            throw sample.error;
+        }
+        return sample;
+    }
+
+    private Sample nextSample() {
+        if (current != null || ended) {
+            return current;
+        }
+        current = filledSamples.poll();
+        if (current == null) {
+            underruns.incrementAndGet();
+            metrics.onReadAheadUnderrun();
+            consumerThread = Thread.currentThread();
+            while ((current = filledSamples.poll()) == null) {
+                if (!thread.isAlive() && (current = filledSamples.poll()) == null) {
+                    // Released while the consumer was still reading.
+                    ended = true;
+                    return null;
+                }
+                LockSupport.parkNanos(this, EMPTY_PARK_NANOS);
+            }
+        }
+        return current;
+    }
+
+    private void readAhead() {
+        boolean more = true;
+        while (more) {
+            Sample sample = freeSamples.poll();
+            if (sample == null) {
+                fullStalls.incrementAndGet();
+                metrics.onReadAheadFullStall();
+                while (running && (sample = freeSamples.poll()) == null) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+            }
+            if (!running) {
+                break;
+            }
+
+            long startNanos = System.nanoTime();
+            sample.error = null;
+            sample.flags = 0;
+            try {
+                sample.size = read(sample);
+                if (sample.size < 0) {
+                    more = false;
+                } else {
+                    sample.presentationTimeUs = source.getSampleTime();
+                    sample.flags = source.getSampleFlags();
+                    more = source.advance();
+                }
+            } catch (RuntimeException e) {
+                // Handed to the consumer, so the job fails instead of ending early.
+                Log.e(TAG, "readAhead: failed to read sample", e);
+                sample.error = e;
+                sample.size = -1;
+                more = false;
+            }
+            if (!more) {
+                sample.flags |= FramePipeline.FLAG_END_OF_STREAM;
+            }
+            metrics.recordLatency(ProcessingMetrics.STAGE_READ, System.nanoTime() - startNanos);
+
+            filledSamples.offer(sample);
+            metrics.recordQueueDepth(ProcessingMetrics.QUEUE_READ_AHEAD, filledSamples.size());
+            Thread consumer = consumerThread;
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+            }
+        }
+        Log.d(TAG, "readAhead: stopped after " + underruns.get() + " underruns and " + fullStalls.get() + " full stalls");
+    }
+
+    private int read(Sample sample) {
+        while (true) {
+            sample.buffer.clear();
+            try {
+                return source.readSampleData(sample.buffer);
+            } catch (IllegalArgumentException | BufferOverflowException e) {
+                // MediaExtractor throws the former, Mp4Demuxer the latter.
+                int capacity = 2 * sample.buffer.capacity();
+                if (capacity > MAX_BUFFER_CAPACITY) {
+                    throw e;
+                }
+                Log.d(TAG, "read: sample does not fit in " + sample.buffer.capacity() + " bytes, growing to " + capacity);
+                sample.buffer = ByteBuffer.allocateDirect(capacity);
+            }
+        }
+    }
+
+    private static final class Sample {
+
+        ByteBuffer buffer;
+        int size;
+        long presentationTimeUs;
+        int flags;
+        RuntimeException error;
+
+        Sample(int capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+    }
+}
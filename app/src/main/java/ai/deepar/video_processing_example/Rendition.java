@@ -0,0 +1,54 @@
+package ai.deepar.video_processing_example;
+
+import java.io.File;
+
+/**
+ * One output of a resolution ladder, e.g. the 720p version of an upload.
+ */
+public class Rendition {
+
+    private final int shortSide;
+    private final File outputFile;
+
+    /**
+     * @param shortSide  length of the shorter side of the output in pixels, e.g. 720 for 720p in
+     *                   either orientation, or 0 for the full output resolution. Outputs are
+     *                   never scaled up.
+     * @param outputFile file the rendition is written to
+     */
+    public Rendition(int shortSide, File outputFile) {
+        if (shortSide < 0) {
+            throw new IllegalArgumentException("shortSide must not be negative");
+        }
+        this.shortSide = shortSide;
+        this.outputFile = outputFile;
+    }
+
+    public int getShortSide() {
+        return shortSide;
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * @return the rendition's width for a full resolution output of the given size, even as
+     * encoders want it
+     */
+    int getWidth(int fullWidth, int fullHeight) {
+        return scale(fullWidth, fullWidth, fullHeight);
+    }
+
+    int getHeight(int fullWidth, int fullHeight) {
+        return scale(fullHeight, fullWidth, fullHeight);
+    }
+
+    private int scale(int length, int fullWidth, int fullHeight) {
+        int fullShortSide = Math.min(fullWidth, fullHeight);
+        if (shortSide == 0 || shortSide >= fullShortSide) {
+            return length;
+        }
+        return Math.max(2, Math.round((float) length * shortSide / fullShortSide) & ~1);
+    }
+}
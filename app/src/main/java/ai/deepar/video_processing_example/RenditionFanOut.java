@@ -0,0 +1,284 @@
+package ai.deepar.video_processing_example;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies every frame rendered into {@link #getInputSurface()} to the input surfaces of several
+ * encoders, scaled to their sizes. DeepAR renders each frame once, at the size of the largest
+ * rendition; every further rendition only costs drawing a textured quad and encoding it.
+ * <p>
+ * The input is a {@link SurfaceTexture}, which holds a single frame, so the renderer has to wait
+ * with {@link #awaitFrame} until a frame has been copied before rendering the next one. Frames
+ * keep the timestamp they were rendered with, as if they had been rendered into each encoder
+ * directly.
+ */
+class RenditionFanOut {
+
+    private static final String TAG = RenditionFanOut.class.getSimpleName();
+
+    private static final String VERTEX_SHADER = ""
+            + "uniform mat4 uTexMatrix;\n"
+            + "attribute vec4 aPosition;\n"
+            + "attribute vec4 aTexCoord;\n"
+            + "varying vec2 vTexCoord;\n"
+            + "void main() {\n"
+            + "    gl_Position = aPosition;\n"
+            + "    vTexCoord = (uTexMatrix * aTexCoord).xy;\n"
+            + "}\n";
+    private static final String FRAGMENT_SHADER = ""
+            + "#extension GL_OES_EGL_image_external : require\n"
+            + "precision mediump float;\n"
+            + "varying vec2 vTexCoord;\n"
+            + "uniform samplerExternalOES sTexture;\n"
+            + "void main() {\n"
+            + "    gl_FragColor = texture2D(sTexture, vTexCoord);\n"
+            + "}\n";
+    // Full-viewport triangle strip and its texture coordinates.
+    private static final float[] POSITIONS = {-1, -1, 1, -1, -1, 1, 1, 1};
+    private static final float[] TEX_COORDS = {0, 0, 1, 0, 0, 1, 1, 1};
+
+    private final HandlerThread thread = new HandlerThread("rendition-fan-out");
+    private final Handler handler;
+    private final List<Target> targets = new ArrayList<>();
+    private final Semaphore copiedFrames = new Semaphore(0);
+    private final float[] texMatrix = new float[16];
+    private final FloatBuffer positions = createFloatBuffer(POSITIONS);
+    private final FloatBuffer texCoords = createFloatBuffer(TEX_COORDS);
+
+    private EglCore eglCore;
+    private int textureId;
+    private SurfaceTexture surfaceTexture;
+    private Surface inputSurface;
+    private int program;
+    private int positionLocation;
+    private int texCoordLocation;
+    private int texMatrixLocation;
+    private int missedFrames;
+
+    /**
+     * Blocks until the GL context and the input surface have been created.
+     *
+     * @param width  size frames are rendered at, normally that of the largest rendition
+     * @throws IllegalStateException if no GL context could be created
+     */
+    RenditionFanOut(int width, int height) {
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        try {
+            runOnThread(() -> setup(width, height));
+        } catch (IllegalStateException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Adds an encoder input surface frames are copied to. Must be called before the first frame
+     * is rendered.
+     */
+    void addTarget(Surface encoderInputSurface, int width, int height) {
+        runOnThread(() -> targets.add(new Target(eglCore.createWindowSurface(encoderInputSurface), width, height)));
+    }
+
+    /**
+     * @return the surface the frames are rendered into
+     */
+    Surface getInputSurface() {
+        return inputSurface;
+    }
+
+    /**
+     * Forgets frames copied so far, e.g. ones rendered while an effect was loaded. Called before
+     * the frame {@link #awaitFrame} is to wait for is rendered.
+     */
+    void expectFrame() {
+        copiedFrames.drainPermits();
+    }
+
+    /**
+     * Waits until a frame rendered into the input surface has been copied to every target.
+     *
+     * @return false if no frame arrived in time
+     */
+    boolean awaitFrame(long timeoutMs) {
+        try {
+            if (copiedFrames.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        missedFrames++;
+        Log.w(TAG, "awaitFrame: no frame after " + timeoutMs + " ms, " + missedFrames + " missed so far");
+        return false;
+    }
+
+    /**
+     * Releases the GL resources and blocks until they have been released, so no frame is being
+     * copied to the targets any more once this returns and their surfaces can be released. The
+     * renderer must no longer render into the input surface; the encoder input surfaces stay with
+     * their owner.
+     */
+    void release() {
+        try {
+            runOnThread(() -> {
+                if (eglCore == null) {
+                    return;
+                }
+                for (Target target : targets) {
+                    eglCore.releaseSurface(target.eglSurface);
+                }
+                targets.clear();
+                if (inputSurface != null) {
+                    inputSurface.release();
+                    surfaceTexture.release();
+                    GLES20.glDeleteTextures(1, new int[]{textureId}, 0);
+                    GLES20.glDeleteProgram(program);
+                }
+                eglCore.release();
+                eglCore = null;
+            });
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "release: could not release the GL resources", e);
+        }
+        thread.quitSafely();
+    }
+
+    private void setup(int width, int height) {
+        eglCore = new EglCore(true);
+        textureId = EglCore.createExternalTexture();
+        program = createProgram();
+        positionLocation = GLES20.glGetAttribLocation(program, "aPosition");
+        texCoordLocation = GLES20.glGetAttribLocation(program, "aTexCoord");
+        texMatrixLocation = GLES20.glGetUniformLocation(program, "uTexMatrix");
+
+        surfaceTexture = new SurfaceTexture(textureId);
+        surfaceTexture.setDefaultBufferSize(width, height);
+        surfaceTexture.setOnFrameAvailableListener(texture -> copyFrame(), handler);
+        inputSurface = new Surface(surfaceTexture);
+    }
+
+    private void copyFrame() {
+        if (eglCore == null) {
+            return;
+        }
+        surfaceTexture.updateTexImage();
+        surfaceTexture.getTransformMatrix(texMatrix);
+        long timestampNanos = surfaceTexture.getTimestamp();
+        if (timestampNanos == 0) {
+            timestampNanos = System.nanoTime();
+        }
+        for (Target target : targets) {
+            eglCore.makeCurrent(target.eglSurface);
+            GLES20.glViewport(0, 0, target.width, target.height);
+            draw();
+            eglCore.setPresentationTime(target.eglSurface, timestampNanos);
+            if (!eglCore.swapBuffers(target.eglSurface)) {
+                Log.w(TAG, "copyFrame: could not swap a " + target.width + "x" + target.height + " target");
+            }
+        }
+        copiedFrames.release();
+    }
+
+    private void draw() {
+        GLES20.glUseProgram(program);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+        GLES20.glUniformMatrix4fv(texMatrixLocation, 1, false, texMatrix, 0);
+        GLES20.glVertexAttribPointer(positionLocation, 2, GLES20.GL_FLOAT, false, 0, positions);
+        GLES20.glEnableVertexAttribArray(positionLocation);
+        GLES20.glVertexAttribPointer(texCoordLocation, 2, GLES20.GL_FLOAT, false, 0, texCoords);
+        GLES20.glEnableVertexAttribArray(texCoordLocation);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
+    private static int createProgram() {
+        int vertexShader = compileShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
+        int fragmentShader = compileShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glLinkProgram(program);
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            String log = GLES20.glGetProgramInfoLog(program);
+            GLES20.glDeleteProgram(program);
+            throw new IllegalStateException("Could not link program: " + log);
+        }
+        return program;
+    }
+
+    private static int compileShader(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            String log = GLES20.glGetShaderInfoLog(shader);
+            GLES20.glDeleteShader(shader);
+            throw new IllegalStateException("Could not compile shader: " + log);
+        }
+        return shader;
+    }
+
+    private static FloatBuffer createFloatBuffer(float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        buffer.put(values).position(0);
+        return buffer;
+    }
+
+    private void runOnThread(Runnable task) {
+        CountDownLatch done = new CountDownLatch(1);
+        RuntimeException[] error = new RuntimeException[1];
+        handler.post(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                error[0] = e;
+            }
+            done.countDown();
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the fan-out thread");
+        }
+        if (error[0] != null) {
+            throw error[0] instanceof IllegalStateException ? (IllegalStateException) error[0] : new IllegalStateException(error[0]);
+        }
+    }
+
+    private static final class Target {
+
+        final EGLSurface eglSurface;
+        final int width;
+        final int height;
+
+        Target(EGLSurface eglSurface, int width, int height) {
+            this.eglSurface = eglSurface;
+            this.width = width;
+            this.height = height;
+        }
+    }
+}
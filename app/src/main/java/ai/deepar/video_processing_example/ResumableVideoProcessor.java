@@ -0,0 +1,335 @@
+package ai.deepar.video_processing_example;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.core.util.Consumer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Processes a video in checkpointed parts, so that a job interrupted by process death or
+ * {@link #cancel()} continues where it stopped instead of starting from the first frame.
+ * <p>
+ * The source is cut at sync samples roughly every checkpoint interval. Each part is processed by
+ * its own {@link VideoProcessor} into a finalized MP4 of its own, so it starts with an encoder
+ * keyframe. Once a part is done, a checkpoint next to the output records the source time up to
+ * which frames have been muxed and the finished parts. Processing the same video with the same
+ * effect into the same output again reads the checkpoint, seeks the source to that time and
+ * appends the remaining parts. When all parts are done they are stitched into the output and
+ * the checkpoint is removed. At most one checkpoint interval of work is lost to a failure.
+ */
+public class ResumableVideoProcessor {
+
+    private static final String TAG = ResumableVideoProcessor.class.getSimpleName();
+
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_US = 10_000_000;
+
+    private static final String KEY_SOURCE = "source";
+    private static final String KEY_EFFECT = "effect";
+    private static final String KEY_ENCODER = "encoder";
+    private static final String KEY_COMPLETED_US = "completedUs";
+    private static final String KEY_PART_COUNT = "parts";
+    private static final String KEY_PART_START_US = "part.startUs.";
+
+    private final Context context;
+    private final Handler handler;
+    private final Handler mainHandler;
+    private final Consumer<Double> onStep;
+    private final Runnable onSuccess;
+    private Consumer<Exception> onFailure;
+    private long checkpointIntervalUs = DEFAULT_CHECKPOINT_INTERVAL_US;
+    private boolean pipelined;
+    private int readAheadDepth;
+    private EncoderProfile encoderProfile = EncoderProfile.LEGACY_AVC;
+    private volatile boolean cancelled;
+    private ProgressReporter.Listener progressListener;
+    private long progressIntervalMs = ProgressReporter.DEFAULT_INTERVAL_MS;
+
+    private Uri videoUri;
+    private String effectPath;
+    private File outputFile;
+    private File checkpointFile;
+    private SyncSampleIndex syncSamples;
+    private final List<Long> partStartTimesUs = new ArrayList<>();
+    private long completedUs;
+
+    // Progress of the whole job, updated on the main thread from the snapshots of the parts.
+    private ProgressReporter progressReporter;
+    private int progressPart = -1;
+    private long framesBeforePart;
+    private long partFramesDone;
+
+    /**
+     * @param handler handler of the thread the parts are processed on, one after another
+     */
+    public ResumableVideoProcessor(Context context, Handler handler, Consumer<Double> onStep, Runnable onSuccess) {
+        this.context = context;
+        this.handler = handler;
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.onStep = onStep;
+        this.onSuccess = onSuccess;
+    }
+
+    /**
+     * Sets the source duration covered by each part. Parts are cut at the first sync sample at or
+     * after the interval, so they are at least this long except for the last one.
+     */
+    public void setCheckpointInterval(long checkpointIntervalUs) {
+        this.checkpointIntervalUs = checkpointIntervalUs;
+    }
+
+    /**
+     * Processes each part in pipeline mode, see {@link VideoProcessor#setPipelineMode}.
+     */
+    public void setPipelineMode(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Reads samples ahead while processing each part, see {@link VideoProcessor#setReadAheadDepth}.
+     */
+    public void setReadAheadDepth(int depth) {
+        this.readAheadDepth = depth;
+    }
+
+    /**
+     * Posts progress snapshots of the whole job to the main thread, see
+     * {@link VideoProcessor#setProgressListener}. Frames are counted from where this run started.
+     */
+    public void setProgressListener(ProgressReporter.Listener listener, long intervalMs) {
+        this.progressListener = listener;
+        this.progressIntervalMs = intervalMs;
+    }
+
+    /**
+     * Encodes each part with the profile, see {@link VideoProcessor#setEncoderProfile}. A
+     * checkpoint written with another profile is not resumed.
+     */
+    public void setEncoderProfile(EncoderProfile encoderProfile) {
+        this.encoderProfile = encoderProfile;
+    }
+
+    /**
+     * Called on the main thread if a part or the final stitching fails. The checkpoint is kept.
+     */
+    public void setOnFailure(Consumer<Exception> onFailure) {
+        this.onFailure = onFailure;
+    }
+
+    /**
+     * Stops once the part in progress is done and checkpointed. Neither callback is called
+     * afterwards; processing the same video again resumes from the checkpoint.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public void processVideo(Uri videoUri, File outputFile, String effectPath) {
+        this.videoUri = videoUri;
+        this.outputFile = outputFile;
+        this.effectPath = effectPath;
+        this.checkpointFile = new File(outputFile.getPath() + ".checkpoint");
+        progressPart = -1;
+        framesBeforePart = 0;
+        partFramesDone = 0;
+        ProgressReporter.Listener listener = progressListener;
+        // Part snapshots already arrive at the interval, so every one of them is sampled.
+        progressReporter = new ProgressReporter(Runnable::run, 0, snapshot -> {
+            onStep.accept(snapshot.getPercent());
+            if (listener != null) {
+                listener.onProgress(snapshot);
+            }
+        });
+        handler.post(() -> {
+            try {
+                syncSamples = SyncSampleIndex.scan(context, videoUri);
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+                return;
+            }
+            if (!loadCheckpoint()) {
+                deleteParts();
+                partStartTimesUs.clear();
+                completedUs = syncSamples.floor(0);
+            } else {
+                Log.d(TAG, "processVideo: resuming at " + completedUs + "us after " + partStartTimesUs.size() + " parts");
+            }
+            processNextPart();
+        });
+    }
+
+    private void processNextPart() {
+        if (cancelled) {
+            Log.d(TAG, "processNextPart: cancelled at " + completedUs + "us");
+            return;
+        }
+        if (completedUs >= syncSamples.getDurationUs()) {
+            stitchParts();
+            return;
+        }
+        long startUs = completedUs;
+        long nextSyncUs = syncSamples.higher(startUs + checkpointIntervalUs - 1);
+        long endUs = nextSyncUs >= syncSamples.getDurationUs() ? Long.MAX_VALUE : nextSyncUs;
+        int part = partStartTimesUs.size();
+        Log.d(TAG, "processNextPart: part " + part + " [" + startUs + ", " + endUs + ")");
+
+        VideoProcessor videoProcessor = new VideoProcessor(context, handler, progress -> {
+        }, () -> handler.post(() -> onPartFinished(startUs, endUs)));
+        videoProcessor.setProgressListener(snapshot -> onPartProgress(part, startUs, endUs, snapshot), progressIntervalMs);
+        videoProcessor.setOnFailure(this::fail);
+        videoProcessor.setSourceRange(startUs, endUs);
+        videoProcessor.setEncoderProfile(encoderProfile);
+        // Audio is copied from the source once, while stitching.
+        videoProcessor.setAudioPassthrough(false);
+        if (pipelined) {
+            videoProcessor.setPipelineMode(VideoProcessor.DEFAULT_PACK_QUEUE_DEPTH, VideoProcessor.DEFAULT_RENDER_QUEUE_DEPTH);
+        }
+        videoProcessor.setReadAheadDepth(readAheadDepth);
+        videoProcessor.processVideo(videoUri, getPartFile(part), effectPath);
+    }
+
+    private void onPartFinished(long startUs, long endUs) {
+        partStartTimesUs.add(startUs);
+        completedUs = Math.min(endUs, syncSamples.getDurationUs());
+        try {
+            saveCheckpoint();
+        } catch (IOException e) {
+            // The part is kept; an interrupted job only redoes it.
+            Log.w(TAG, "onPartFinished: failed to write checkpoint", e);
+        }
+        processNextPart();
+    }
+
+    private void stitchParts() {
+        File stitchedFile = new File(outputFile.getPath() + ".tmp");
+        try {
+            VideoStitcher stitcher = new VideoStitcher(context, stitchedFile, videoUri);
+            try {
+                for (int i = 0; i < partStartTimesUs.size(); i++) {
+                    stitcher.appendSegment(getPartFile(i), partStartTimesUs.get(i));
+                }
+            } catch (IOException | RuntimeException e) {
+                stitcher.release();
+                throw e;
+            }
+            stitcher.finish();
+            if (!stitchedFile.renameTo(outputFile)) {
+                throw new IOException("Could not move " + stitchedFile + " to " + outputFile);
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            return;
+        }
+        deleteParts();
+        if (!checkpointFile.delete()) {
+            Log.w(TAG, "could not delete " + checkpointFile);
+        }
+        mainHandler.post(onSuccess);
+    }
+
+    /**
+     * Called on the main thread.
+     */
+    private void onPartProgress(int part, long startUs, long endUs, ProgressReporter.Snapshot snapshot) {
+        if (part != progressPart) {
+            framesBeforePart += partFramesDone;
+            progressPart = part;
+        }
+        partFramesDone = snapshot.getFramesDone();
+        progressReporter.update(getProgress(startUs, endUs, snapshot.getPercent()), framesBeforePart + partFramesDone);
+    }
+
+    private double getProgress(long partStartUs, long partEndUs, double partProgress) {
+        long firstUs = syncSamples.floor(0);
+        long totalUs = Math.max(1, syncSamples.getDurationUs() - firstUs);
+        long partUs = Math.min(partEndUs, syncSamples.getDurationUs()) - partStartUs;
+        return 100.0 * (partStartUs - firstUs + partUs * partProgress / 100.0) / totalUs;
+    }
+
+    private File getPartFile(int part) {
+        return new File(outputFile.getPath() + ".part" + part + ".mp4");
+    }
+
+    private void deleteParts() {
+        for (int i = 0; getPartFile(i).exists(); i++) {
+            if (!getPartFile(i).delete()) {
+                Log.w(TAG, "could not delete " + getPartFile(i));
+            }
+        }
+    }
+
+    /**
+     * @return false if there is no checkpoint for this video, effect and output, or its parts are
+     * missing
+     */
+    private boolean loadCheckpoint() {
+        if (!checkpointFile.exists()) {
+            return false;
+        }
+        Properties checkpoint = new Properties();
+        try (InputStream in = new FileInputStream(checkpointFile)) {
+            checkpoint.load(in);
+            if (!videoUri.toString().equals(checkpoint.getProperty(KEY_SOURCE))
+                    || !String.valueOf(effectPath).equals(checkpoint.getProperty(KEY_EFFECT))
+                    || !encoderProfile.describe().equals(checkpoint.getProperty(KEY_ENCODER))) {
+                Log.d(TAG, "loadCheckpoint: checkpoint belongs to another job");
+                return false;
+            }
+            int partCount = Integer.parseInt(checkpoint.getProperty(KEY_PART_COUNT));
+            partStartTimesUs.clear();
+            for (int i = 0; i < partCount; i++) {
+                if (!getPartFile(i).exists()) {
+                    Log.w(TAG, "loadCheckpoint: part " + i + " is missing");
+                    return false;
+                }
+                partStartTimesUs.add(Long.parseLong(checkpoint.getProperty(KEY_PART_START_US + i)));
+            }
+            completedUs = Long.parseLong(checkpoint.getProperty(KEY_COMPLETED_US));
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "loadCheckpoint: ignoring unreadable checkpoint", e);
+            return false;
+        }
+    }
+
+    /**
+     * Replaces the checkpoint atomically, so a crash leaves either the previous or the new one.
+     */
+    private void saveCheckpoint() throws IOException {
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty(KEY_SOURCE, videoUri.toString());
+        checkpoint.setProperty(KEY_EFFECT, String.valueOf(effectPath));
+        checkpoint.setProperty(KEY_ENCODER, encoderProfile.describe());
+        checkpoint.setProperty(KEY_COMPLETED_US, Long.toString(completedUs));
+        checkpoint.setProperty(KEY_PART_COUNT, Integer.toString(partStartTimesUs.size()));
+        for (int i = 0; i < partStartTimesUs.size(); i++) {
+            checkpoint.setProperty(KEY_PART_START_US + i, Long.toString(partStartTimesUs.get(i)));
+        }
+        File tempFile = new File(checkpointFile.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tempFile)) {
+            checkpoint.store(out, null);
+        }
+        if (!tempFile.renameTo(checkpointFile)) {
+            throw new IOException("Could not move " + tempFile + " to " + checkpointFile);
+        }
+    }
+
+    private void fail(Exception e) {
+        Log.e(TAG, "processing failed at " + completedUs + "us", e);
+        if (onFailure != null) {
+            mainHandler.post(() -> onFailure.accept(e));
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package ai.deepar.video_processing_example;
+
+import android.content.Context;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.core.util.Consumer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Processes a video as several keyframe-aligned segments in parallel. Each segment gets its own
+ * {@link VideoProcessor} (extractor, decoder, DeepAR instance, encoder and muxer) on its own
+ * thread. Once all segments are done they are stitched into a single MP4 in order. Segments keep
+ * the source timestamps, so the stitched output is continuous.
+ * <p>
+ * If a segment fails, the other segments are cancelled and the job fails as a whole.
+ */
+public class SegmentedVideoProcessor {
+
+    private static final String TAG = SegmentedVideoProcessor.class.getSimpleName();
+
+    private static final String VIDEO_MIME = "video/avc";
+
+    private final Context context;
+    private final Handler mainHandler;
+    private final Consumer<Double> onStep;
+    private final Runnable onSuccess;
+    private Consumer<Exception> onFailure;
+
+    private final List<HandlerThread> threads = new ArrayList<>();
+    private final List<VideoProcessor> segmentProcessors = new ArrayList<>();
+    private final List<File> segmentFiles = new ArrayList<>();
+    private final List<Long> segmentStartTimesUs = new ArrayList<>();
+    private double[] segmentProgress;
+    private double[] segmentWeights;
+    private int completedSegments;
+    private boolean failed;
+
+    public SegmentedVideoProcessor(Context context, Consumer<Double> onStep, Runnable onSuccess) {
+        this.context = context;
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.onStep = onStep;
+        this.onSuccess = onSuccess;
+    }
+
+    /**
+     * Called on the main thread if the video cannot be split, a segment fails or the segments
+     * cannot be stitched. Partial outputs are deleted.
+     */
+    public void setOnFailure(Consumer<Exception> onFailure) {
+        this.onFailure = onFailure;
+    }
+
+    /**
+     * @param maxSegments requested number of parallel segments; capped by the number of
+     *                    concurrent decoder and encoder instances the device supports
+     */
+    public void processVideo(Uri videoUri, File outputFile, String effectPath, int maxSegments) {
+        Handler stitchHandler = startThread("video-stitching");
+        stitchHandler.post(() -> {
+            List<Long> splitTimesUs;
+            try {
+                SyncSampleIndex syncSamples = SyncSampleIndex.scan(context, videoUri);
+                splitTimesUs = findSplitTimes(syncSamples, Math.min(maxSegments, getMaxConcurrentSessions(syncSamples)));
+            } catch (IOException | RuntimeException e) {
+                mainHandler.post(() -> fail(e));
+                return;
+            }
+            mainHandler.post(() -> startSegments(videoUri, outputFile, effectPath, splitTimesUs, stitchHandler));
+        });
+    }
+
+    private void startSegments(Uri videoUri, File outputFile, String effectPath, List<Long> splitTimesUs, Handler stitchHandler) {
+        int segmentCount = splitTimesUs.size() - 1;
+        Log.d(TAG, "processing " + segmentCount + " segments, split at " + splitTimesUs);
+        segmentProgress = new double[segmentCount];
+        segmentWeights = new double[segmentCount];
+        long totalUs = splitTimesUs.get(segmentCount) - splitTimesUs.get(0);
+        for (int i = 0; i < segmentCount; i++) {
+            final int segment = i;
+            long startUs = splitTimesUs.get(i);
+            long endUs = splitTimesUs.get(i + 1);
+            segmentWeights[i] = (double) (endUs - startUs) / totalUs;
+
+            File segmentFile = new File(outputFile.getParentFile(), outputFile.getName() + ".segment" + i + ".mp4");
+            segmentFiles.add(segmentFile);
+            segmentStartTimesUs.add(startUs);
+            VideoProcessor videoProcessor = new VideoProcessor(context, startThread("video-processing-" + i),
+                    progress -> onSegmentStep(segment, progress),
+                    () -> onSegmentFinished(videoUri, outputFile, stitchHandler));
+            videoProcessor.setOnFailure(this::fail);
+            segmentProcessors.add(videoProcessor);
+            videoProcessor.setSourceRange(startUs, i == segmentCount - 1 ? Long.MAX_VALUE : endUs);
+            // Audio is copied from the source once, while stitching.
+            videoProcessor.setAudioPassthrough(false);
+            videoProcessor.processVideo(videoUri, segmentFile, effectPath);
+        }
+    }
+
+    private void onSegmentStep(int segment, double progress) {
+        segmentProgress[segment] = progress;
+        double total = 0;
+        for (int i = 0; i < segmentProgress.length; i++) {
+            total += segmentProgress[i] * segmentWeights[i];
+        }
+        onStep.accept(total);
+    }
+
+    private void onSegmentFinished(Uri videoUri, File outputFile, Handler stitchHandler) {
+        completedSegments++;
+        if (failed || completedSegments < segmentFiles.size()) {
+            return;
+        }
+        stitchHandler.post(() -> {
+            try {
+                stitchSegments(videoUri, outputFile);
+            } catch (IOException | RuntimeException e) {
+                if (!outputFile.delete()) {
+                    Log.w(TAG, "could not delete " + outputFile);
+                }
+                mainHandler.post(() -> fail(e));
+                return;
+            } finally {
+                deleteSegmentFiles();
+            }
+            quitThreads();
+            mainHandler.post(onSuccess);
+        });
+    }
+
+    /**
+     * Ends the job on the first failure, cancelling the segments still running. Called on the
+     * main thread.
+     */
+    private void fail(Exception e) {
+        if (failed) {
+            return;
+        }
+        failed = true;
+        Log.e(TAG, "processing failed", e);
+        // Cancelled segments delete their own partial outputs; finished ones are deleted here.
+        for (VideoProcessor videoProcessor : segmentProcessors) {
+            videoProcessor.cancel();
+        }
+        deleteSegmentFiles();
+        quitThreads();
+        if (onFailure != null) {
+            onFailure.accept(e);
+        }
+    }
+
+    private void deleteSegmentFiles() {
+        for (File segmentFile : segmentFiles) {
+            if (segmentFile.exists() && !segmentFile.delete()) {
+                Log.w(TAG, "could not delete " + segmentFile);
+            }
+        }
+    }
+
+    private void quitThreads() {
+        for (HandlerThread thread : threads) {
+            thread.quitSafely();
+        }
+    }
+
+    private Handler startThread(String name) {
+        HandlerThread thread = new HandlerThread(name);
+        thread.start();
+        threads.add(thread);
+        return new Handler(thread.getLooper());
+    }
+
+    /**
+     * @return sync sample times splitting the video into up to {@code segmentCount} segments of
+     * similar duration, starting with the first sync sample and ending with the duration
+     */
+    private static List<Long> findSplitTimes(SyncSampleIndex syncSamples, int segmentCount) {
+        long durationUs = syncSamples.getDurationUs();
+        List<Long> splitTimesUs = new ArrayList<>();
+        splitTimesUs.add(syncSamples.floor(0));
+        for (int i = 1; i < segmentCount; i++) {
+            long closestUs = syncSamples.closest(durationUs * i / segmentCount);
+            if (closestUs > splitTimesUs.get(splitTimesUs.size() - 1)) {
+                splitTimesUs.add(closestUs);
+            }
+        }
+        splitTimesUs.add(Math.max(durationUs, splitTimesUs.get(splitTimesUs.size() - 1) + 1));
+        return splitTimesUs;
+    }
+
+    private void stitchSegments(Uri videoUri, File outputFile) throws IOException {
+        VideoStitcher stitcher = new VideoStitcher(context, outputFile, videoUri);
+        try {
+            for (int i = 0; i < segmentFiles.size(); i++) {
+                stitcher.appendSegment(segmentFiles.get(i), segmentStartTimesUs.get(i));
+            }
+        } catch (IOException | RuntimeException e) {
+            stitcher.release();
+            throw e;
+        }
+        stitcher.finish();
+    }
+
+    /**
+     * @return the smallest number of concurrent instances supported by the decoder and the
+     * encoder {@link MediaCodecPool} picks for the segments, at least 1
+     */
+    private static int getMaxConcurrentSessions(SyncSampleIndex syncSamples) {
+        CodecCapabilityCache capabilities = MediaCodecPool.getInstance().getCapabilities();
+        int width = syncSamples.getWidth();
+        int height = syncSamples.getHeight();
+        boolean rotated = syncSamples.getRotation() == 90 || syncSamples.getRotation() == 270;
+        int maxDecoders = capabilities.getMaxSupportedInstances(MediaFormat.createVideoFormat(syncSamples.getMime(), width, height), false);
+        int maxEncoders = capabilities.getMaxSupportedInstances(MediaFormat.createVideoFormat(VIDEO_MIME, rotated ? height : width, rotated ? width : height), true);
+        return Math.max(1, Math.min(maxDecoders, maxEncoders));
+    }
+}
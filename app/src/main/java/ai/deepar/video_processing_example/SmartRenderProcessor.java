@@ -0,0 +1,130 @@
+package ai.deepar.video_processing_example;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.core.util.Consumer;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Applies an effect to a sub-range of a video and re-encodes as little as possible. Only the GOPs
+ * overlapping [startUs, endUs] are decoded, rendered and encoded; everything before and after is
+ * copied from the source as compressed samples. Frames of the re-encoded GOPs outside the range
+ * are rendered without the effect.
+ * <p>
+ * Rotated sources are fully re-encoded, since rendered frames are upright while copied samples
+ * would rely on the rotation metadata. So are sources that are not H.264, the codec the rendered
+ * GOPs are encoded with: one track cannot hold samples of two codecs.
+ */
+public class SmartRenderProcessor {
+
+    private static final String TAG = SmartRenderProcessor.class.getSimpleName();
+
+    // Encoded by EncoderProfile.LEGACY_AVC.
+    private static final String SEGMENT_MIME = "video/avc";
+
+    private final Context context;
+    private final Handler handler;
+    private final Handler mainHandler;
+    private final Consumer<Double> onStep;
+    private final Runnable onSuccess;
+    private Consumer<Exception> onFailure;
+
+    public SmartRenderProcessor(Context context, Handler handler, Consumer<Double> onStep, Runnable onSuccess) {
+        this.context = context;
+        this.handler = handler;
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.onStep = onStep;
+        this.onSuccess = onSuccess;
+    }
+
+    /**
+     * Called on the main thread if the source cannot be read, or re-encoding or stitching fails.
+     */
+    public void setOnFailure(Consumer<Exception> onFailure) {
+        this.onFailure = onFailure;
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code startUs} is negative or after {@code endUs}
+     */
+    public void processRange(Uri videoUri, File outputFile, String effectPath, long startUs, long endUs) {
+        if (startUs < 0 || startUs > endUs) {
+            throw new IllegalArgumentException("Invalid range [" + startUs + ", " + endUs + "]");
+        }
+        handler.post(() -> {
+            SyncSampleIndex syncSamples;
+            try {
+                syncSamples = SyncSampleIndex.scan(context, videoUri);
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+                return;
+            }
+
+            if (syncSamples.getRotation() != 0 || !SEGMENT_MIME.equals(syncSamples.getMime())) {
+                Log.d(TAG, "processRange: " + syncSamples.getMime() + " source rotated by " + syncSamples.getRotation() + ", re-encoding the whole video");
+                VideoProcessor videoProcessor = new VideoProcessor(context, handler, onStep, onSuccess);
+                videoProcessor.setOnFailure(onFailure);
+                videoProcessor.setEffectRange(startUs, endUs);
+                videoProcessor.processVideo(videoUri, outputFile, effectPath);
+                return;
+            }
+
+            long firstSyncUs = syncSamples.floor(0);
+            long renderStartUs = syncSamples.floor(startUs);
+            long renderEndUs = syncSamples.higher(endUs);
+            Log.d(TAG, "processRange: re-encoding " + renderStartUs + "us to " + renderEndUs + "us, copying the rest");
+
+            File segmentFile = new File(outputFile.getParentFile(), outputFile.getName() + ".render.mp4");
+            VideoProcessor videoProcessor = new VideoProcessor(context, handler, onStep, () -> handler.post(() -> {
+                try {
+                    stitch(videoUri, outputFile, segmentFile, firstSyncUs, renderStartUs, renderEndUs);
+                } catch (IOException | RuntimeException e) {
+                    fail(e);
+                    return;
+                } finally {
+                    if (!segmentFile.delete()) {
+                        Log.w(TAG, "could not delete " + segmentFile);
+                    }
+                }
+                mainHandler.post(onSuccess);
+            }));
+            // VideoProcessor deletes the segment file if rendering fails.
+            videoProcessor.setOnFailure(onFailure);
+            videoProcessor.setEncoderProfile(EncoderProfile.LEGACY_AVC);
+            videoProcessor.setSourceRange(renderStartUs, renderEndUs);
+            videoProcessor.setEffectRange(startUs, endUs);
+            videoProcessor.setAudioPassthrough(false);
+            videoProcessor.processVideo(videoUri, segmentFile, effectPath);
+        });
+    }
+
+    private void stitch(Uri videoUri, File outputFile, File segmentFile, long firstSyncUs, long renderStartUs, long renderEndUs) throws IOException {
+        VideoStitcher stitcher = new VideoStitcher(context, outputFile, videoUri);
+        try {
+            if (renderStartUs > firstSyncUs) {
+                stitcher.appendSourceRange(videoUri, firstSyncUs, renderStartUs);
+            }
+            stitcher.appendSegment(segmentFile, renderStartUs);
+            if (renderEndUs != Long.MAX_VALUE) {
+                stitcher.appendSourceRange(videoUri, renderEndUs, Long.MAX_VALUE);
+            }
+        } catch (IOException | RuntimeException e) {
+            stitcher.release();
+            throw e;
+        }
+        stitcher.finish();
+    }
+
+    private void fail(Exception e) {
+        Log.e(TAG, "processRange: failed", e);
+        if (onFailure != null) {
+            mainHandler.post(() -> onFailure.accept(e));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package ai.deepar.video_processing_example;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue for handing items from exactly one producer thread to exactly one
+ * consumer thread. Neither {@link #offer(Object)} nor {@link #poll()} allocates.
+ */
+final class SpscQueue<T> {
+
+    private final Object[] items;
+    private final int mask;
+    private final int capacity;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    SpscQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.items = new Object[size];
+        this.mask = size - 1;
+        this.capacity = capacity;
+    }
+
+    boolean offer(T item) {
+        long currentTail = tail.get();
+        if (currentTail - head.get() >= capacity) {
+            return false;
+        }
+        items[(int) (currentTail & mask)] = item;
+        tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    T poll() {
+        long currentHead = head.get();
+        if (currentHead == tail.get()) {
+            return null;
+        }
+        int index = (int) (currentHead & mask);
+        T item = (T) items[index];
+        items[index] = null;
+        head.lazySet(currentHead + 1);
+        return item;
+    }
+
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+}
@@ -0,0 +1,163 @@
+package ai.deepar.video_processing_example;
+
+import android.content.Context;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Sync sample (keyframe) times of a video track, taken from the {@link Mp4Demuxer} sample index
+ * or, for files it cannot read, gathered by walking the extractor's sample table without reading
+ * any sample data.
+ */
+class SyncSampleIndex {
+
+    private static final String TAG = SyncSampleIndex.class.getSimpleName();
+    private static final String AVC_MIME = "video/avc";
+    private static final String VIDEO_MIME_PREFIX = "video/";
+
+    private final String mime;
+    private final long[] timesUs;
+    private final long durationUs;
+    private final int width;
+    private final int height;
+    private final int rotation;
+
+    SyncSampleIndex(String mime, long[] timesUs, long durationUs, int width, int height, int rotation) {
+        this.mime = mime;
+        this.timesUs = timesUs;
+        this.durationUs = durationUs;
+        this.width = width;
+        this.height = height;
+        this.rotation = rotation;
+    }
+
+    static SyncSampleIndex scan(Context context, Uri videoUri) throws IOException {
+        try {
+            return fromDemuxer(Mp4Demuxer.open(context, videoUri));
+        } catch (IOException e) {
+            Log.d(TAG, "scan: falling back to MediaExtractor: " + e.getMessage());
+        }
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(context, videoUri, null);
+            int videoTrackIndex = -1;
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.toLowerCase().startsWith(VIDEO_MIME_PREFIX)) {
+                    videoTrackIndex = i;
+                    break;
+                }
+            }
+            if (videoTrackIndex < 0) {
+                throw new IOException("video track not found");
+            }
+            extractor.selectTrack(videoTrackIndex);
+            MediaFormat format = extractor.getTrackFormat(videoTrackIndex);
+            int rotation = format.containsKey(MediaFormat.KEY_ROTATION) ? format.getInteger(MediaFormat.KEY_ROTATION) : 0;
+
+            long[] timesUs = new long[64];
+            int count = 0;
+            do {
+                if ((extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                    if (count == timesUs.length) {
+                        timesUs = Arrays.copyOf(timesUs, count * 2);
+                    }
+                    timesUs[count++] = extractor.getSampleTime();
+                }
+            } while (extractor.advance());
+            String mime = format.getString(MediaFormat.KEY_MIME).toLowerCase();
+            return new SyncSampleIndex(mime, Arrays.copyOf(timesUs, count), format.getLong(MediaFormat.KEY_DURATION),
+                    format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT), rotation);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    static SyncSampleIndex fromDemuxer(Mp4Demuxer demuxer) {
+        Mp4SampleIndex samples = demuxer.getSampleIndex();
+        long[] timesUs = new long[samples.getSyncSampleCount()];
+        for (int i = 0; i < timesUs.length; i++) {
+            timesUs[i] = samples.getPresentationTimeUs(samples.getSyncSample(i));
+        }
+        // The demuxer only reads H.264 tracks.
+        return new SyncSampleIndex(AVC_MIME, timesUs, demuxer.getDurationUs(), demuxer.getWidth(), demuxer.getHeight(), demuxer.getRotation());
+    }
+
+    /**
+     * @return MIME type of the video track, in lower case
+     */
+    String getMime() {
+        return mime;
+    }
+
+    int size() {
+        return timesUs.length;
+    }
+
+    long getTimeUs(int index) {
+        return timesUs[index];
+    }
+
+    long getDurationUs() {
+        return durationUs;
+    }
+
+    /**
+     * @return width of the coded frames, before rotation
+     */
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getRotation() {
+        return rotation;
+    }
+
+    /**
+     * @return the latest sync sample time at or before {@code timeUs}, or the first one
+     */
+    long floor(long timeUs) {
+        long result = timesUs.length > 0 ? timesUs[0] : 0;
+        for (long syncTimeUs : timesUs) {
+            if (syncTimeUs > timeUs) {
+                break;
+            }
+            result = syncTimeUs;
+        }
+        return result;
+    }
+
+    /**
+     * @return the earliest sync sample time after {@code timeUs}, or {@code Long.MAX_VALUE}
+     */
+    long higher(long timeUs) {
+        for (long syncTimeUs : timesUs) {
+            if (syncTimeUs > timeUs) {
+                return syncTimeUs;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the sync sample time closest to {@code timeUs}
+     */
+    long closest(long timeUs) {
+        long result = timesUs.length > 0 ? timesUs[0] : 0;
+        for (long syncTimeUs : timesUs) {
+            if (Math.abs(syncTimeUs - timeUs) < Math.abs(result - timeUs)) {
+                result = syncTimeUs;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,182 @@
+package ai.deepar.video_processing_example;
+
+/**
+ * Maps encoder output timestamps back to the presentation times of the source frames.
+ * <p>
+ * Every frame handed to the renderer is recorded together with the monotonic time at which it
+ * was submitted. Encoder input surfaces stamp frames with the same monotonic clock when they are
+ * queued, so an encoder output timestamp belongs to the latest frame submitted before it. This
+ * makes the lookup independent of output order (B-frames) and tolerant to frames that never reach
+ * the encoder. If the encoder timestamps turn out not to be on that clock, frames are matched in
+ * submission order instead.
+ * <p>
+ * Entries live in primitive ring buffers, so nothing is allocated per frame. All methods are
+ * synchronized, as frames are submitted and resolved on different threads.
+ */
+class TimestampTracker {
+
+    static final long UNKNOWN = Long.MIN_VALUE;
+
+    // Encoder timestamps further than this after the newest submission are not on our clock.
+    private static final long MAX_RENDER_LATENCY_US = 5_000_000L;
+
+    private static final int MODE_UNDETERMINED = 0;
+    private static final int MODE_CLOCK = 1;
+    private static final int MODE_SEQUENCE = 2;
+
+    private final int capacity;
+    private final int reorderWindow;
+    private final long[] sourceTimesUs;
+    private final long[] submitTimesUs;
+    private final boolean[] matched;
+
+    // Sequence numbers of the oldest pending and the next submitted frame.
+    private long head;
+    private long tail;
+    private long newestMatched = -1;
+    private int mode = MODE_UNDETERMINED;
+    private int droppedFrames;
+    private long lastSourceTimeUs = UNKNOWN;
+
+    /**
+     * @param capacity      maximum number of frames that can be pending at once; when exceeded the
+     *                      oldest pending frame is counted as dropped
+     * @param reorderWindow how many newer frames may be matched before an unmatched frame is
+     *                      considered dropped
+     */
+    TimestampTracker(int capacity, int reorderWindow) {
+        if (capacity < 1 || reorderWindow < 0) {
+            throw new IllegalArgumentException("Invalid capacity or reorder window");
+        }
+        this.capacity = capacity;
+        this.reorderWindow = reorderWindow;
+        this.sourceTimesUs = new long[capacity];
+        this.submitTimesUs = new long[capacity];
+        this.matched = new boolean[capacity];
+    }
+
+    synchronized void onFrameSubmitted(long sourceTimeUs, long submitTimeUs) {
+        if (tail - head == capacity) {
+            retireHead(!matched[slot(head)]);
+        }
+        int slot = slot(tail);
+        sourceTimesUs[slot] = sourceTimeUs;
+        submitTimesUs[slot] = submitTimeUs;
+        matched[slot] = false;
+        tail++;
+    }
+
+    /**
+     * @return the source presentation time of the frame the encoder output belongs to, or
+     * {@link #UNKNOWN} if it cannot be matched to a pending frame
+     */
+    synchronized long resolve(long encoderTimeUs) {
+        if (head == tail) {
+            return UNKNOWN;
+        }
+        if (mode == MODE_UNDETERMINED) {
+            boolean onClock = encoderTimeUs >= submitTimesUs[slot(head)]
+                    && encoderTimeUs <= submitTimesUs[slot(tail - 1)] + MAX_RENDER_LATENCY_US;
+            mode = onClock ? MODE_CLOCK : MODE_SEQUENCE;
+        }
+
+        long sequence = mode == MODE_CLOCK ? findSubmittedBefore(encoderTimeUs) : findFirstUnmatched();
+        if (sequence < 0 || matched[slot(sequence)]) {
+            return UNKNOWN;
+        }
+        matched[slot(sequence)] = true;
+        if (sequence > newestMatched) {
+            newestMatched = sequence;
+        }
+        long sourceTimeUs = sourceTimesUs[slot(sequence)];
+        retireSettled();
+        lastSourceTimeUs = sourceTimeUs;
+        return sourceTimeUs;
+    }
+
+    /**
+     * Counts every frame that is still pending as dropped. Called once the encoder has reached
+     * the end of stream.
+     *
+     * @return number of frames dropped by this call
+     */
+    synchronized int finish() {
+        int dropped = 0;
+        while (head < tail) {
+            if (!matched[slot(head)]) {
+                dropped++;
+            }
+            retireHead(!matched[slot(head)]);
+        }
+        return dropped;
+    }
+
+    synchronized void reset() {
+        head = 0;
+        tail = 0;
+        newestMatched = -1;
+        mode = MODE_UNDETERMINED;
+        droppedFrames = 0;
+        lastSourceTimeUs = UNKNOWN;
+    }
+
+    synchronized int getDroppedFrameCount() {
+        return droppedFrames;
+    }
+
+    synchronized int getPendingCount() {
+        return (int) (tail - head);
+    }
+
+    synchronized long getLastSourceTimeUs() {
+        return lastSourceTimeUs;
+    }
+
+    private long findSubmittedBefore(long encoderTimeUs) {
+        long low = head;
+        long high = tail - 1;
+        long result = -1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            if (submitTimesUs[slot(middle)] <= encoderTimeUs) {
+                result = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return result;
+    }
+
+    private long findFirstUnmatched() {
+        for (long sequence = head; sequence < tail; sequence++) {
+            if (!matched[slot(sequence)]) {
+                return sequence;
+            }
+        }
+        return -1;
+    }
+
+    private void retireSettled() {
+        while (head < tail) {
+            if (matched[slot(head)]) {
+                retireHead(false);
+            } else if (newestMatched - head > reorderWindow) {
+                retireHead(true);
+            } else {
+                break;
+            }
+        }
+    }
+
+    private void retireHead(boolean dropped) {
+        if (dropped) {
+            droppedFrames++;
+        }
+        head++;
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % capacity);
+    }
+}
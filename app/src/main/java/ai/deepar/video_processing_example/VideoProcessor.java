@@ -1,17 +1,15 @@
 package ai.deepar.video_processing_example;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.media.Image;
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import android.view.Surface;
 
@@ -19,17 +17,15 @@ import androidx.annotation.NonNull;
 import androidx.core.util.Consumer;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayDeque;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import ai.deepar.ar.ARErrorType;
-import ai.deepar.ar.AREventListener;
-import ai.deepar.ar.DeepAR;
 import ai.deepar.ar.DeepARImageFormat;
 
 public class VideoProcessor {
@@ -37,19 +33,32 @@ public class VideoProcessor {
     private static final String TAG = VideoProcessor.class.getSimpleName();
 
     private static final String VIDEO_MIME = "video/avc";
-    private static final float BPP = 0.15f;
-    private static final int I_FRAME_INTERVAL = 5;
+
+    public static final int DEFAULT_PACK_QUEUE_DEPTH = FramePipeline.DEFAULT_PACK_QUEUE_DEPTH;
+    public static final int DEFAULT_RENDER_QUEUE_DEPTH = FramePipeline.DEFAULT_RENDER_QUEUE_DEPTH;
+    public static final int DEFAULT_MAX_FRAMES_IN_FLIGHT = FramePipeline.DEFAULT_MAX_FRAMES_IN_FLIGHT;
+    public static final int DEFAULT_READ_AHEAD_DEPTH = 8;
+
+    // How long a renderer feeding several renditions waits for its frame to be copied.
+    private static final long RENDITION_FRAME_TIMEOUT_MS = 1000;
 
     private final Context context;
     private final Handler handler;
     private final Handler mainHandler;
     private final Consumer<Double> onStep;
     private final Runnable onSuccess;
+    private Consumer<Exception> onFailure;
+    // Set on the processing thread once the job has finished or failed; later events are ignored.
+    private volatile boolean ended;
 
     private MediaExtractor mediaExtractor;
+    private Mp4Demuxer mp4Demuxer;
+    private boolean mp4DemuxerEnabled;
+    // 0 to read samples on the processing thread.
+    private int readAheadDepth;
+    private ReadAheadFrameSource readAheadSource;
     private MediaCodec mediaDecoder;
-    private MediaCodec mediaEncoder;
-    private MediaMuxer mediaMuxer;
+    private MediaCodecFrameDecoder frameDecoder;
 
     private MediaFormat inputMediaFormat;
     private int width;
@@ -59,13 +68,54 @@ public class VideoProcessor {
     private int rotatedHeight;
     private float videoDurationUs;
     private float frameRate;
-    private int muxerTrackIndex;
-
-    private DeepAR deepAR;
-    private Surface encoderInputSurface;
-
-    private ByteBuffer buffer;
-    private final Queue<Long> timestampQueue = new ArrayDeque<>();
+    private int outputWidth;
+    private int outputHeight;
+    private float outputFrameRate;
+    private long rangeStartUs;
+    private long rangeEndUs = Long.MAX_VALUE;
+
+    private long effectStartUs;
+    private long effectEndUs = Long.MAX_VALUE;
+
+    private boolean audioPassthroughEnabled = true;
+
+    private float outputScale = 1;
+    private float targetFrameRate;
+
+    // 0 for a regular MP4 written by MediaMuxer.
+    private int fragmentFrames;
+    private FragmentedMp4Writer.Listener fragmentListener;
+
+    private EncoderProfile encoderProfile = EncoderProfile.LEGACY_AVC;
+    // Bits per pixel and frame of the source, or 0 if unknown.
+    private float sourceBitsPerPixel;
+
+    // One DeepAR renderer per effect, with one encoder and muxer per rendition. Every decoded
+    // frame is packed once, rendered once per effect and encoded once per rendition.
+    private List<OutputChain> outputChains = Collections.emptyList();
+    private final AtomicInteger initializedChains = new AtomicInteger();
+
+    // Scheduling and flow control between the stages, see FramePipeline.
+    private FramePipeline framePipeline;
+    private boolean pipelined;
+    private int packQueueDepth = DEFAULT_PACK_QUEUE_DEPTH;
+    private int renderQueueDepth = DEFAULT_RENDER_QUEUE_DEPTH;
+    private int maxFramesInFlight = DEFAULT_MAX_FRAMES_IN_FLIGHT;
+    private HandlerThread encoderThread;
+    private Handler encoderHandler;
+
+    private final DeepAREngineManager engineManager;
+    private final MediaCodecPool codecPool = MediaCodecPool.getInstance();
+
+    private final ProcessingMetrics metrics = new ProcessingMetrics();
+    private ProcessingMetrics.Listener metricsListener;
+    private long metricsIntervalNanos;
+    private long lastMetricsSnapshotNanos;
+    private volatile String lastReport;
+
+    private ProgressReporter progressReporter;
+    private ProgressReporter.Listener progressListener;
+    private long progressIntervalMs = ProgressReporter.DEFAULT_INTERVAL_MS;
 
     public VideoProcessor(Context context, Handler handler, Consumer<Double> onStep, Runnable onSuccess) {
         this.context = context;
@@ -73,21 +123,307 @@ public class VideoProcessor {
         this.mainHandler = new Handler(Looper.getMainLooper());
         this.onStep = onStep;
         this.onSuccess = onSuccess;
+        this.engineManager = DeepAREngineManager.getInstance(context);
+    }
+
+    /**
+     * Runs decoding, YUV packing, rendering and encoding on separate threads so that consecutive
+     * frames are processed in parallel. Must be called before {@link #processVideo}.
+     *
+     * @param packQueueDepth   number of decoded frames that may wait for packing
+     * @param renderQueueDepth number of packed frames that may wait for rendering
+     */
+    public void setPipelineMode(int packQueueDepth, int renderQueueDepth) {
+        if (packQueueDepth < 1 || renderQueueDepth < 1) {
+            throw new IllegalArgumentException("Queue depths must be positive");
+        }
+        this.pipelined = true;
+        this.packQueueDepth = packQueueDepth;
+        this.renderQueueDepth = renderQueueDepth;
+    }
+
+    /**
+     * Caps the number of frames that have been taken from the decoder but not yet emitted by the
+     * encoder. In pipeline mode this should be at least the sum of the stage queue depths plus
+     * two. Must be called before {@link #processVideo}.
+     */
+    public void setMaxFramesInFlight(int maxFramesInFlight) {
+        if (maxFramesInFlight < 1) {
+            throw new IllegalArgumentException("maxFramesInFlight must be positive");
+        }
+        this.maxFramesInFlight = maxFramesInFlight;
+    }
+
+    /**
+     * @return number of frames currently between the decoder output and the encoder output
+     */
+    public int getFramesInFlight() {
+        FramePipeline pipeline = framePipeline;
+        return pipeline == null ? 0 : pipeline.getFramesInFlight();
+    }
+
+    public int getPeakFramesInFlight() {
+        FramePipeline pipeline = framePipeline;
+        return pipeline == null ? 0 : pipeline.getPeakFramesInFlight();
+    }
+
+    /**
+     * @return number of frames handed to DeepAR that never came out of an encoder, summed over
+     * all outputs
+     */
+    public int getDroppedFrameCount() {
+        FramePipeline pipeline = framePipeline;
+        return pipeline == null ? 0 : pipeline.getDroppedFrameCount();
+    }
+
+    /**
+     * Called on the main thread if a job cannot be started, e.g. because the video cannot be read
+     * or has no supported video track, or if a codec fails while processing. Everything the job
+     * holds has been released and its partial outputs deleted by then.
+     */
+    public void setOnFailure(Consumer<Exception> onFailure) {
+        this.onFailure = onFailure;
+    }
+
+    /**
+     * Posts a live metrics snapshot to the main thread at most every {@code intervalMs} while a
+     * job is running, and the final report once it has finished.
+     */
+    public void setMetricsListener(ProcessingMetrics.Listener listener, long intervalMs) {
+        this.metricsListener = listener;
+        this.metricsIntervalNanos = intervalMs * 1_000_000L;
+    }
+
+    /**
+     * Posts progress snapshots with throughput and remaining time to the main thread, at most
+     * every {@code intervalMs} and with at most one snapshot pending at a time. The
+     * {@code onStep} callback is called at the same rate. Must be called before
+     * {@link #processVideo}.
+     */
+    public void setProgressListener(ProgressReporter.Listener listener, long intervalMs) {
+        this.progressListener = listener;
+        this.progressIntervalMs = intervalMs;
+    }
+
+    public ProcessingMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return JSON report of the last finished job, or null if no job has finished yet
+     */
+    public String getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Restricts processing to source frames in [startUs, endUs). Both bounds must be sync sample
+     * times (or 0 and {@code Long.MAX_VALUE}); output timestamps stay those of the source.
+     */
+    void setSourceRange(long startUs, long endUs) {
+        this.rangeStartUs = startUs;
+        this.rangeEndUs = endUs;
+    }
+
+    /**
+     * Applies the effect only to frames in [startUs, endUs]; other frames are rendered without
+     * it. Must be called before {@link #processVideo}.
+     */
+    public void setEffectRange(long startUs, long endUs) {
+        this.effectStartUs = startUs;
+        this.effectEndUs = endUs;
+    }
+
+    /**
+     * Produces a quick draft instead of a full quality export. Frames are rendered and encoded at
+     * {@code outputScale} times the source resolution, and only enough source frames for
+     * {@code targetFrameRate} are packed and rendered; the others are released right after
+     * decoding or not decoded at all. Kept frames keep their source timestamps, so the preview
+     * stays in sync with the audio. Must be called before {@link #processVideo}.
+     *
+     * @param outputScale     scale of the output resolution, in (0, 1]
+     * @param targetFrameRate output frame rate, or 0 to keep the source frame rate
+     */
+    public void setPreviewMode(float outputScale, float targetFrameRate) {
+        if (outputScale <= 0 || outputScale > 1 || targetFrameRate < 0) {
+            throw new IllegalArgumentException("Invalid preview settings");
+        }
+        this.outputScale = outputScale;
+        this.targetFrameRate = targetFrameRate;
+    }
+
+    /**
+     * Writes fragmented MP4 output with {@link FragmentedMp4Writer} instead of MediaMuxer. A new
+     * fragment is started at the first sync sample after {@code framesPerFragment} frames, and
+     * every finished fragment can be played or uploaded while processing continues. Audio is
+     * not passed through to fragmented output. Must be called before {@link #processVideo}.
+     *
+     * @param listener called on the main thread whenever a fragment has been written, with the
+     *                 size of the output file up to which it is complete; with several outputs it
+     *                 is called for each of them. May be null.
+     */
+    public void setFragmentedOutput(int framesPerFragment, FragmentedMp4Writer.Listener listener) {
+        if (framesPerFragment < 1) {
+            throw new IllegalArgumentException("Fragments need at least one frame");
+        }
+        this.fragmentFrames = framesPerFragment;
+        this.fragmentListener = listener;
+    }
+
+    /**
+     * Reads the source's video samples with {@link Mp4Demuxer} instead of MediaExtractor. The
+     * file is memory-mapped and its sample index is parsed once and cached, so seeking to a range
+     * and repeated jobs on the same file do not rescan it. Only non-fragmented MP4 files with an
+     * H.264 track are supported; others fail with {@link #setOnFailure}. Must be called before
+     * {@link #processVideo}.
+     */
+    public void setMp4DemuxerEnabled(boolean enabled) {
+        this.mp4DemuxerEnabled = enabled;
+    }
+
+    /**
+     * Reads up to {@code depth} compressed samples ahead on an I/O thread, so storage and content
+     * provider latency does not hold up decoding. 0 reads each sample on the processing thread
+     * when the decoder asks for it. Stalls are counted in {@link ProcessingMetrics}. Must be
+     * called before {@link #processVideo}.
+     */
+    public void setReadAheadDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("depth must not be negative");
+        }
+        this.readAheadDepth = depth;
+    }
+
+    /**
+     * Sets the codec, rate control and bitrate of the output. Defaults to
+     * {@link EncoderProfile#LEGACY_AVC}. Fragmented output is always H.264. Must be called before
+     * {@link #processVideo}.
+     */
+    public void setEncoderProfile(EncoderProfile encoderProfile) {
+        this.encoderProfile = encoderProfile;
+    }
+
+    /**
+     * Copies the source's audio tracks into the output without re-encoding them. Enabled by
+     * default.
+     */
+    public void setAudioPassthrough(boolean enabled) {
+        this.audioPassthroughEnabled = enabled;
+    }
+
+    /**
+     * Stops the job started last, releasing everything it holds and deleting its partial
+     * outputs. Neither callback is called afterwards.
+     */
+    public void cancel() {
+        handler.post(() -> {
+            if (!ended) {
+                Log.d(TAG, "cancel: stopping the job");
+                abort();
+            }
+        });
     }
 
     public void processVideo(Uri videoUri, File outputFile, String effectPath) {
+        startProcessing(videoUri, Collections.singletonList(effectPath), Collections.singletonList(Collections.singletonList(new Rendition(0, outputFile))));
+    }
+
+    /**
+     * Renders the video once and encodes it at several resolutions, e.g. 1080p, 720p and 480p for
+     * upload. Frames are decoded, packed and rendered by DeepAR once, at the size of the largest
+     * rendition, and then copied to one encoder and muxer per rendition, so each further
+     * rendition only adds its encoding. Each rendition's bitrate follows the encoder profile for
+     * its size, see {@link #setEncoderProfile}.
+     */
+    public void processVideo(Uri videoUri, String effectPath, List<Rendition> renditions) {
+        startProcessing(videoUri, Collections.singletonList(effectPath), Collections.singletonList(renditions));
+    }
+
+    /**
+     * Renders the video with several effects in a single pass. Frames are decoded and packed once
+     * and handed to one DeepAR instance, encoder and muxer per effect.
+     */
+    public void processVideo(Uri videoUri, List<Effect> effects, List<File> outputFiles) {
+        if (outputFiles.size() != effects.size()) {
+            throw new IllegalArgumentException("Expected one output file per effect");
+        }
+        List<String> effectPaths = new ArrayList<>();
+        List<List<Rendition>> renditions = new ArrayList<>();
+        for (int i = 0; i < effects.size(); i++) {
+            effectPaths.add(effects.get(i).getPath());
+            renditions.add(Collections.singletonList(new Rendition(0, outputFiles.get(i))));
+        }
+        startProcessing(videoUri, effectPaths, renditions);
+    }
+
+    /**
+     * @param renditions the renditions of each effect
+     */
+    private void startProcessing(Uri videoUri, List<String> effectPaths, List<List<Rendition>> renditions) {
+        if (effectPaths.isEmpty() || renditions.size() != effectPaths.size()) {
+            throw new IllegalArgumentException("Expected renditions for every effect");
+        }
+        for (List<Rendition> effectRenditions : renditions) {
+            if (effectRenditions.isEmpty()) {
+                throw new IllegalArgumentException("Expected at least one rendition per effect");
+            }
+        }
+        ProgressReporter.Listener listener = progressListener;
+        progressReporter = new ProgressReporter(mainHandler::post, progressIntervalMs, snapshot -> {
+            onStep.accept(snapshot.getPercent());
+            if (listener != null) {
+                listener.onProgress(snapshot);
+            }
+        });
         handler.post(() -> {
+            ended = false;
+            metrics.start();
+            lastMetricsSnapshotNanos = System.nanoTime();
+            initializedChains.set(0);
+            if (pipelined) {
+                encoderThread = new HandlerThread("video-encoding");
+                encoderThread.start();
+                encoderHandler = new Handler(encoderThread.getLooper());
+            } else {
+                encoderHandler = handler;
+            }
+            List<OutputChain> chains = new ArrayList<>();
+            FramePipeline pipeline = null;
             try {
-                setupMediaExtractor(videoUri);
+                if (mp4DemuxerEnabled) {
+                    setupMp4Demuxer(videoUri);
+                } else {
+                    setupMediaExtractor(videoUri);
+                }
+                sourceBitsPerPixel = encoderProfile.isContentAdaptive() ? estimateSourceBitsPerPixel(videoUri) : 0;
                 setupMediaDecoder();
-                setupMediaEncoder();
-                setupMediaMuxer(outputFile);
-            } catch (IOException e) {
-                Log.e(TAG, "processVideo: IOException occurred", e);
+                pipeline = setupFramePipeline();
+                for (int i = 0; i < effectPaths.size(); i++) {
+                    OutputChain chain = new OutputChain(effectPaths.get(i));
+                    chains.add(chain);
+                    for (Rendition rendition : renditions.get(i)) {
+                        EncoderOutput output = chain.addRendition(rendition);
+                        output.setupMediaEncoder();
+                        output.setupAudioPassthrough(videoUri);
+                        output.setupMediaMuxer(rendition.getOutputFile());
+                        pipeline.addOutput(chain, output, output);
+                    }
+                    chain.setupRenderSurface();
+                }
+            } catch (IOException | RuntimeException e) {
+                // Includes SecurityException for a content:// URI whose permission has expired.
+                Log.e(TAG, "processVideo: failed to set up processing", e);
+                // Releases whatever has been acquired so far; hardware codecs are scarce.
+                outputChains = chains;
+                framePipeline = pipeline;
+                fail(e);
                 return;
             }
-            buffer = ByteBuffer.allocateDirect(width * height * 3);
-            setupDeepAR(effectPath);
+            outputChains = chains;
+            framePipeline = pipeline;
+            for (OutputChain chain : chains) {
+                chain.setupDeepAR();
+            }
         });
     }
 
@@ -109,306 +445,588 @@ public class VideoProcessor {
         } catch (Exception e) {
             rotation = 0;
         }
-        rotatedWidth = rotation == 0 || rotation == 180 ? width : height;
-        rotatedHeight = rotation == 0 || rotation == 180 ? height : width;
         videoDurationUs = inputMediaFormat.getLong(MediaFormat.KEY_DURATION);
         try {
             frameRate = inputMediaFormat.getInteger(MediaFormat.KEY_FRAME_RATE);
         } catch (ClassCastException e) {
             frameRate = inputMediaFormat.getFloat(MediaFormat.KEY_FRAME_RATE);
         }
+        setupOutputSize();
+        if (rangeStartUs > 0) {
+            mediaExtractor.seekTo(rangeStartUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
     }
 
-    private void setupMediaDecoder() throws IOException {
-        MediaCodecList mediaCodecList = new MediaCodecList(MediaCodecList.ALL_CODECS);
-        Log.d(TAG, "supported decoders: " + getSupportedDecoderNames(mediaCodecList));
+    private void setupMp4Demuxer(Uri videoUri) throws IOException {
+        mp4Demuxer = Mp4Demuxer.open(context, videoUri);
+        width = mp4Demuxer.getWidth();
+        height = mp4Demuxer.getHeight();
+        rotation = mp4Demuxer.getRotation();
+        videoDurationUs = mp4Demuxer.getDurationUs();
+        frameRate = mp4Demuxer.getFrameRate();
+
+        // The decoder gets Annex B samples, so the parameter sets get start codes as well.
+        inputMediaFormat = MediaFormat.createVideoFormat(VIDEO_MIME, width, height);
+        inputMediaFormat.setByteBuffer("csd-0", withStartCode(mp4Demuxer.getSps()));
+        inputMediaFormat.setByteBuffer("csd-1", withStartCode(mp4Demuxer.getPps()));
+        inputMediaFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, mp4Demuxer.getMaxAnnexBSampleSize());
+        inputMediaFormat.setLong(MediaFormat.KEY_DURATION, mp4Demuxer.getDurationUs());
+        inputMediaFormat.setInteger(MediaFormat.KEY_ROTATION, rotation);
+        inputMediaFormat.setFloat(MediaFormat.KEY_FRAME_RATE, frameRate);
+        setupOutputSize();
+    }
 
-        String decoderName = mediaCodecList.findDecoderForFormat(inputMediaFormat);
-        mediaDecoder = MediaCodec.createByCodecName(decoderName);
-        mediaDecoder.configure(inputMediaFormat, null, null, 0);
-        mediaDecoder.setCallback(new MediaDecoderCallback(), handler);
+    /**
+     * Takes the source's video bitrate from the container, or else the bitrate of the whole file,
+     * which also counts audio and so errs on the generous side. Nothing is parsed beyond what
+     * setting up the source has already read.
+     *
+     * @return bits per pixel and frame, or 0 if unknown
+     */
+    private float estimateSourceBitsPerPixel(Uri videoUri) {
+        double pixelsPerSecond = (double) width * height * frameRate;
+        if (pixelsPerSecond <= 0 || videoDurationUs <= 0) {
+            return 0;
+        }
+        if (inputMediaFormat.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            return (float) (inputMediaFormat.getInteger(MediaFormat.KEY_BIT_RATE) / pixelsPerSecond);
+        }
+        long fileSize;
+        try (ParcelFileDescriptor fd = context.getContentResolver().openFileDescriptor(videoUri, "r")) {
+            fileSize = fd == null ? -1 : fd.getStatSize();
+        } catch (IOException | RuntimeException e) {
+            Log.d(TAG, "estimateSourceBitsPerPixel: " + e.getMessage());
+            return 0;
+        }
+        if (fileSize <= 0) {
+            return 0;
+        }
+        return (float) (fileSize * 8 / (videoDurationUs / 1e6) / pixelsPerSecond);
     }
 
-    private void setupMediaEncoder() throws IOException {
-        mediaEncoder = MediaCodec.createEncoderByType(VIDEO_MIME);
-        MediaFormat format = MediaFormat.createVideoFormat(VIDEO_MIME, rotatedWidth, rotatedHeight);
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, (int) (BPP * frameRate * width * height));
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, (int) frameRate);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
-        mediaEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mediaEncoder.setCallback(new MediaEncoderCallback(), handler);
+    private static ByteBuffer withStartCode(byte[] nalUnit) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + nalUnit.length);
+        buffer.putInt(1).put(nalUnit).flip();
+        return buffer;
     }
 
-    private void setupMediaMuxer(File outputFile) throws IOException {
-        mediaMuxer = new MediaMuxer(outputFile.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-        // Video track is added later (once encoder's output format has been fully configured).
+    private void setupOutputSize() {
+        rotatedWidth = rotation == 0 || rotation == 180 ? width : height;
+        rotatedHeight = rotation == 0 || rotation == 180 ? height : width;
+        // Encoders want even dimensions.
+        outputWidth = Math.max(2, Math.round(rotatedWidth * outputScale) & ~1);
+        outputHeight = Math.max(2, Math.round(rotatedHeight * outputScale) & ~1);
+        outputFrameRate = targetFrameRate > 0 ? Math.min(targetFrameRate, frameRate) : frameRate;
     }
 
-    private void setupDeepAR(String effectPath) {
-        deepAR = new DeepAR(context);
-        deepAR.setLicenseKey("your_license_key_goes_here");
-        deepAR.initialize(context, new AREventListener() {
-            @Override
-            public void screenshotTaken(Bitmap bitmap) {
-            }
+    private void setupMediaDecoder() throws IOException {
+        Log.d(TAG, "supported decoders: " + codecPool.getCapabilities().getDecoderNames(VIDEO_MIME));
 
-            @Override
-            public void videoRecordingStarted() {
-            }
+        // An alternative approach would be to set up media decoder with a Surface created from an
+        // external GL texture and call deepAR.receiveFrameExternalTexture() in the corresponding
+        // SurfaceTexture's OnFrameAvailableListener, which would avoid copying every frame.
+        // Frames get lost that way only because a SurfaceTexture holds a single image, which the
+        // next rendered buffer replaces; FramePacer paces the decoder so that cannot happen. The
+        // texture would however have to live in DeepAR's GL context, which DeepAR does not share,
+        // so we are using ByteBuffer output instead.
+        mediaDecoder = codecPool.acquireDecoder(inputMediaFormat);
+        frameDecoder = new MediaCodecFrameDecoder(mediaDecoder, handler, this::fail);
+        mediaDecoder.configure(inputMediaFormat, null, null, 0);
+    }
 
-            @Override
-            public void videoRecordingFinished() {
-            }
+    private FramePipeline setupFramePipeline() {
+        FrameSource frameSource = mp4Demuxer != null
+                ? new Mp4FrameSource(mp4Demuxer, rangeStartUs, rangeEndUs)
+                : new ExtractorFrameSource(mediaExtractor, rangeEndUs);
+        if (readAheadDepth > 0) {
+            int bufferCapacity = inputMediaFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                    ? inputMediaFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE)
+                    : width * height * 3 / 2;
+            // Starts reading while the renderers are being set up.
+            readAheadSource = new ReadAheadFrameSource(frameSource, readAheadDepth, bufferCapacity, metrics);
+            readAheadSource.start();
+            frameSource = readAheadSource;
+        }
+        FramePipeline pipeline = new FramePipeline(frameSource, frameDecoder, handler::post, metrics, new PipelineListener());
+        if (pipelined) {
+            pipeline.setPipelineMode(packQueueDepth, renderQueueDepth);
+        }
+        pipeline.setMaxFramesInFlight(maxFramesInFlight);
+        if (outputFrameRate < frameRate) {
+            FrameDecimator decimator = new FrameDecimator(rangeStartUs, (long) (1_000_000 / outputFrameRate), (long) (1_000_000 / frameRate));
+            pipeline.setFrameDecimation(decimator);
+            pipeline.setFrameDurationUs(decimator.getTargetIntervalUs());
+        } else {
+            pipeline.setFrameDurationUs((long) (1_000_000 / frameRate));
+        }
+        pipeline.setProgressRange(rangeStartUs, Math.min(rangeEndUs, videoDurationUs) - rangeStartUs);
+        return pipeline;
+    }
 
-            @Override
-            public void videoRecordingFailed() {
+    private int findVideoTrack(MediaExtractor mediaExtractor) {
+        for (int i = 0; i < mediaExtractor.getTrackCount(); i++) {
+            MediaFormat mediaFormat = mediaExtractor.getTrackFormat(i);
+            if (mediaFormat.getString(MediaFormat.KEY_MIME).equalsIgnoreCase(VIDEO_MIME)) {
+                return i;
             }
+        }
+        return -1;
+    }
 
-            @Override
-            public void videoRecordingPrepared() {
-            }
+    private ProcessingMetrics.Snapshot takeMetricsSnapshot() {
+        metrics.recordQueueDepth(ProcessingMetrics.QUEUE_FRAMES_IN_FLIGHT, framePipeline.getPeakFramesInFlight());
+        metrics.setFramesDropped(framePipeline.getDroppedFrameCount());
+        return metrics.snapshot();
+    }
 
-            @Override
-            public void shutdownFinished() {
-            }
+    /**
+     * @param finished false if the outputs are going to be deleted, so they need not be completed
+     */
+    private void cleanUp(boolean finished) {
+        if (readAheadSource != null) {
+            readAheadSource.release();
+            readAheadSource = null;
+        }
+        if (mediaExtractor != null) {
+            mediaExtractor.release();
+            mediaExtractor = null;
+        }
+        // The mapping is released with the buffer.
+        mp4Demuxer = null;
+        if (mediaDecoder != null) {
+            codecPool.recycle(mediaDecoder);
+            mediaDecoder = null;
+        }
+        for (OutputChain chain : outputChains) {
+            chain.release(finished);
+        }
+        inputMediaFormat = null;
+        if (framePipeline != null) {
+            framePipeline.release();
+        }
+        if (encoderThread != null) {
+            encoderThread.quitSafely();
+            encoderThread = null;
+        }
+    }
 
-            @Override
-            public void initialized() {
-                deepAR.changeLiveMode(false);
-                deepAR.switchEffect("mask", "file:///android_asset/" + effectPath);
+    /**
+     * Ends the job with an error: releases the codecs and everything else it holds, deletes the
+     * partial outputs and reports the failure. Must be called on the processing thread; does
+     * nothing if the job has already ended.
+     */
+    private void fail(Exception e) {
+        if (ended) {
+            return;
+        }
+        Log.e(TAG, "fail: ending the job", e);
+        abort();
+        if (onFailure != null) {
+            mainHandler.post(() -> onFailure.accept(e));
+        }
+    }
 
-                mediaEncoder.start();
-                mediaDecoder.start();
-            }
+    private void abort() {
+        ended = true;
+        cleanUp(false);
+        for (OutputChain chain : outputChains) {
+            chain.deleteOutputs();
+        }
+        outputChains = Collections.emptyList();
+    }
 
-            @Override
-            public void faceVisibilityChanged(boolean b) {
-            }
+    private class PipelineListener implements FramePipeline.Listener {
 
-            @Override
-            public void imageVisibilityChanged(String s, boolean b) {
-            }
+        @Override
+        public void onError(Exception e) {
+            fail(e);
+        }
 
-            @Override
-            public void frameAvailable(Image image) {
+        @Override
+        public void onProgress(double progress) {
+            progressReporter.update(progress, metrics.getFramesEncoded());
+
+            ProcessingMetrics.Listener listener = metricsListener;
+            long now = System.nanoTime();
+            if (listener != null && now - lastMetricsSnapshotNanos >= metricsIntervalNanos) {
+                lastMetricsSnapshotNanos = now;
+                ProcessingMetrics.Snapshot snapshot = takeMetricsSnapshot();
+                mainHandler.post(() -> listener.onSnapshot(snapshot));
             }
+        }
 
-            @Override
-            public void error(ARErrorType arErrorType, String s) {
+        @Override
+        public void onFinished() {
+            progressReporter.flush();
+            metrics.finish();
+            ProcessingMetrics.Snapshot report = takeMetricsSnapshot();
+            lastReport = report.toJson();
+            Log.d(TAG, "job report: " + lastReport);
+            ProcessingMetrics.Listener listener = metricsListener;
+            if (listener != null) {
+                mainHandler.post(() -> listener.onReport(report));
             }
+            handler.post(() -> {
+                if (ended) {
+                    return;
+                }
+                ended = true;
+                cleanUp(true);
+                mainHandler.post(onSuccess);
+            });
+        }
+    }
 
-            @Override
-            public void effectSwitched(String s) {
-            }
-        });
+    /**
+     * DeepAR renderer of one effect, feeding one encoder per rendition. With several renditions
+     * the engine renders into a {@link RenditionFanOut}, otherwise straight into the encoder.
+     */
+    private class OutputChain implements FrameRenderer {
+
+        private final String effectPath;
+        private String effectUri;
+        private boolean effectActive;
+        private DeepAREngineManager.Engine engine;
+
+        private final List<EncoderOutput> encoderOutputs = new ArrayList<>();
+        private RenditionFanOut fanOut;
+        private Surface renderSurface;
+        private int renderWidth;
+        private int renderHeight;
+
+        OutputChain(String effectPath) {
+            this.effectPath = effectPath;
+        }
 
-        encoderInputSurface = mediaEncoder.createInputSurface();
-        deepAR.useSingleThreadedMode(false); // Calls to receiveFrame will be blocking.
-        deepAR.setRenderSurface(encoderInputSurface, rotatedWidth, rotatedHeight);
-    }
+        private EncoderOutput addRendition(Rendition rendition) {
+            EncoderOutput output = new EncoderOutput(rendition.getWidth(outputWidth, outputHeight), rendition.getHeight(outputWidth, outputHeight));
+            encoderOutputs.add(output);
+            renderWidth = Math.max(renderWidth, output.width);
+            renderHeight = Math.max(renderHeight, output.height);
+            return output;
+        }
 
-    private int findVideoTrack(MediaExtractor mediaExtractor) {
-        for (int i = 0; i < mediaExtractor.getTrackCount(); i++) {
-            MediaFormat mediaFormat = mediaExtractor.getTrackFormat(i);
-            if (mediaFormat.getString(MediaFormat.KEY_MIME).equalsIgnoreCase(VIDEO_MIME)) {
-                return i;
+        /**
+         * Called once the encoders have been configured.
+         */
+        private void setupRenderSurface() {
+            if (encoderOutputs.size() == 1) {
+                renderSurface = encoderOutputs.get(0).createInputSurface();
+                return;
             }
+            fanOut = new RenditionFanOut(renderWidth, renderHeight);
+            for (EncoderOutput output : encoderOutputs) {
+                fanOut.addTarget(output.createInputSurface(), output.width, output.height);
+            }
+            renderSurface = fanOut.getInputSurface();
         }
-        return -1;
-    }
 
-    private List<String> getSupportedDecoderNames(MediaCodecList mediaCodecList) {
-        List<String> supportedDecoderNames = new ArrayList<>();
-        for (MediaCodecInfo codecInfo : mediaCodecList.getCodecInfos()) {
-            if (!codecInfo.isEncoder() && codecSupportsVideoMime(codecInfo)) {
-                supportedDecoderNames.add(codecInfo.getName());
-            }
+        private void setupDeepAR() {
+            effectUri = "file:///android_asset/" + effectPath;
+            boolean active = effectStartUs <= rangeStartUs && rangeStartUs <= effectEndUs;
+            // A new engine is handed over on DeepAR's thread; the job's state belongs to the
+            // processing thread, where cleanUp() and fail() change it.
+            engineManager.acquire(active ? effectUri : null, (engine, warm) -> handler.post(() -> {
+                if (ended || !outputChains.contains(this)) {
+                    // The job ended while the engine was being initialized.
+                    engineManager.recycle(engine);
+                    return;
+                }
+                this.engine = engine;
+                metrics.onEngineAcquired(warm);
+                engine.attach(renderSurface, renderWidth, renderHeight);
+                effectActive = active;
+                engine.switchEffect(active ? effectUri : null);
+
+                for (EncoderOutput output : encoderOutputs) {
+                    output.mediaEncoder.start();
+                }
+                if (initializedChains.incrementAndGet() == outputChains.size()) {
+                    framePipeline.start();
+                }
+            }));
         }
-        return supportedDecoderNames;
-    }
 
-    private boolean codecSupportsVideoMime(MediaCodecInfo codecInfo) {
-        for (String type : codecInfo.getSupportedTypes()) {
-            if (type.equalsIgnoreCase(VIDEO_MIME)) {
-                return true;
+        @Override
+        public void render(ByteBuffer buffer, int frameWidth, int frameHeight, int pixelStride, long presentationTimeUs) {
+            updateEffect(presentationTimeUs);
+            if (fanOut != null) {
+                fanOut.expectFrame();
             }
+            buffer.position(0);
+            engine.getDeepAR().receiveFrame(buffer, frameWidth, frameHeight, rotation, false, DeepARImageFormat.YUV_420_888, pixelStride);
+            awaitFanOut();
         }
-        return false;
-    }
 
-    private void processFrame(Image image) {
-        byte[] byteData;
-        ByteBuffer yBuffer = image.getPlanes()[0].getBuffer();
-        ByteBuffer uBuffer = image.getPlanes()[1].getBuffer();
-        ByteBuffer vBuffer = image.getPlanes()[2].getBuffer();
-
-        int ySize = yBuffer.remaining();
-        int uSize = uBuffer.remaining();
-        int vSize = vBuffer.remaining();
+        /**
+         * Waits until the frame has been copied to every rendition, so the next frame does not
+         * replace it in the fan-out's single-frame input.
+         */
+        private void awaitFanOut() {
+            if (fanOut != null) {
+                fanOut.awaitFrame(RENDITION_FRAME_TIMEOUT_MS);
+            }
+        }
 
-        byteData = new byte[ySize + uSize + vSize];
+        private void updateEffect(long presentationTimeUs) {
+            boolean active = effectStartUs <= presentationTimeUs && presentationTimeUs <= effectEndUs;
+            if (active != effectActive) {
+                effectActive = active;
+                engine.switchEffect(active ? effectUri : null);
+            }
+        }
 
-        int width = image.getWidth();
-        int yStride = image.getPlanes()[0].getRowStride();
-        int uStride = image.getPlanes()[1].getRowStride();
-        int vStride = image.getPlanes()[2].getRowStride();
-        int outputOffset = 0;
-        if (width == yStride) {
-            yBuffer.get(byteData, outputOffset, ySize);
-            outputOffset += ySize;
-        } else {
-            for (int inputOffset = 0; inputOffset < ySize; inputOffset += yStride) {
-                yBuffer.position(inputOffset);
-                yBuffer.get(byteData, outputOffset, Math.min(yBuffer.remaining(), width));
-                outputOffset += width;
+        private void releaseFanOut() {
+            if (fanOut != null) {
+                fanOut.release();
+                fanOut = null;
             }
         }
-        //U and V are swapped
-        if (width == vStride) {
-            vBuffer.get(byteData, outputOffset, vSize);
-            outputOffset += vSize;
-        } else {
-            for (int inputOffset = 0; inputOffset < vSize; inputOffset += vStride) {
-                vBuffer.position(inputOffset);
-                vBuffer.get(byteData, outputOffset, Math.min(vBuffer.remaining(), width));
-                outputOffset += width;
+
+        private void release(boolean finished) {
+            if (engine != null) {
+                engineManager.recycle(engine);
+                engine = null;
+            }
+            // Waits for the fan-out to stop drawing to the encoder input surfaces released below.
+            releaseFanOut();
+            for (EncoderOutput output : encoderOutputs) {
+                output.release(finished);
             }
         }
-        if (width == uStride) {
-            uBuffer.get(byteData, outputOffset, uSize);
-            outputOffset += uSize;
-        } else {
-            for (int inputOffset = 0; inputOffset < uSize; inputOffset += uStride) {
-                uBuffer.position(inputOffset);
-                uBuffer.get(byteData, outputOffset, Math.min(uBuffer.remaining(), width));
-                outputOffset += width;
+
+        /**
+         * Deletes the partial output files of a job that did not finish. Called after
+         * {@link #release}.
+         */
+        private void deleteOutputs() {
+            for (EncoderOutput output : encoderOutputs) {
+                output.deleteOutput();
             }
         }
+    }
 
-        buffer.order(ByteOrder.nativeOrder());
-        buffer.position(0);
-        buffer.put(byteData);
-        buffer.position(0);
+    /**
+     * Encoder and muxer of one rendition.
+     */
+    private class EncoderOutput implements FrameEncoder, FrameSink {
 
-        deepAR.receiveFrame(buffer, image.getWidth(), image.getHeight(), rotation, false, DeepARImageFormat.YUV_420_888, image.getPlanes()[1].getPixelStride());
+        private final int width;
+        private final int height;
 
-        // An alternative approach would be to set up media decoder with a Surface created from an
-        // external GL texture and call deepAR.receiveFrameExternalTexture() in the corresponding
-        // SurfaceTexture's OnFrameAvailableListener. This is usually the preferred way of feeding
-        // frames to DeepAR as it is quite efficient. However, MediaCodec seems to be dropping
-        // frames when configured with a Surface, so we are using ByteBuffer input instead.
-    }
+        private File outputFile;
+        private MediaCodec mediaEncoder;
+        private MediaMuxer mediaMuxer;
+        private FragmentedMp4Writer fragmentedWriter;
+        private int muxerTrackIndex;
+        private AudioPassthrough audioPassthrough;
+        private Surface encoderInputSurface;
 
-    private void cleanUp() {
-        mediaExtractor.release();
-        mediaDecoder.release();
-        mediaMuxer.release();
-        mediaEncoder.release();
-        inputMediaFormat = null;
-        timestampQueue.clear();
-        encoderInputSurface.release();
-        deepAR.setAREventListener(null);
-        deepAR.release();
-    }
+        private FrameEncoder.Callback encoderCallback;
+        private final MediaCodec.BufferInfo sampleInfo = new MediaCodec.BufferInfo();
 
-    private class MediaDecoderCallback extends MediaCodec.Callback {
+        EncoderOutput(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
 
-        @Override
-        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
-            ByteBuffer inputBuffer = codec.getInputBuffer(index);
-            if (inputBuffer == null) {
-                return;
+        private void setupMediaEncoder() throws IOException {
+            EncoderProfile.Selection selection = encoderProfile.select(codecPool.getCapabilities(), width, height, outputFrameRate, sourceBitsPerPixel, fragmentFrames > 0);
+            if (selection.getCodecName() == null) {
+                throw new IOException("No encoder for " + selection.getFormat());
             }
-
-            int size = mediaExtractor.readSampleData(inputBuffer, 0);
-            if (size < 0) {
-                codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                return;
+            mediaEncoder = codecPool.acquireEncoder(selection.getCodecName());
+            mediaEncoder.setCallback(new MediaEncoderCallback(), encoderHandler);
+            try {
+                mediaEncoder.configure(selection.getFormat(), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                // Advertised capabilities are not always accurate.
+                Log.w(TAG, "setupMediaEncoder: " + selection.getCodecName() + " rejected " + selection.getFormat() + ", falling back to AVC", e);
+                codecPool.recycle(mediaEncoder);
+                mediaEncoder = null;
+                MediaFormat format = EncoderProfile.createFallbackFormat(width, height, outputFrameRate);
+                mediaEncoder = codecPool.acquireEncoder(format);
+                mediaEncoder.setCallback(new MediaEncoderCallback(), encoderHandler);
+                mediaEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
             }
-
-            long presentationTime = mediaExtractor.getSampleTime();
-            boolean endOfStream = !mediaExtractor.advance();
-            codec.queueInputBuffer(index, 0, size, presentationTime, endOfStream ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
         }
 
-        @Override
-        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
-            if (info.flags == MediaCodec.BUFFER_FLAG_END_OF_STREAM) {
-                Log.d(TAG, "onOutputBufferAvailable: end of decoder stream; signalling end of stream to encoder");
-                mediaEncoder.signalEndOfInputStream();
+        private void setupAudioPassthrough(Uri videoUri) throws IOException {
+            audioPassthrough = null;
+            if (!audioPassthroughEnabled || fragmentFrames > 0) {
+                return;
+            }
+            AudioPassthrough passthrough = new AudioPassthrough(context, videoUri, rangeStartUs, rangeEndUs);
+            if (passthrough.hasAudio()) {
+                audioPassthrough = passthrough;
+            } else {
+                passthrough.release();
             }
+        }
 
-            Image image = codec.getOutputImage(index);
-            if (image == null) {
+        private void setupMediaMuxer(File outputFile) throws IOException {
+            this.outputFile = outputFile;
+            if (fragmentFrames > 0) {
+                FileChannel channel = new FileOutputStream(outputFile).getChannel();
+                try {
+                    fragmentedWriter = new FragmentedMp4Writer(channel, width, height, fragmentFrames);
+                } catch (IllegalArgumentException e) {
+                    channel.close();
+                    throw e;
+                }
+                FragmentedMp4Writer.Listener listener = fragmentListener;
+                if (listener != null) {
+                    fragmentedWriter.setListener((sequenceNumber, fileSize) ->
+                            mainHandler.post(() -> listener.onFragmentWritten(sequenceNumber, fileSize)));
+                }
                 return;
             }
-            processFrame(image);
-            image.close();
+            mediaMuxer = new MediaMuxer(outputFile.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            if (audioPassthrough != null) {
+                audioPassthrough.addTracks(mediaMuxer);
+            }
+            // Video track is added later (once encoder's output format has been fully configured).
+        }
 
-            timestampQueue.offer(info.presentationTimeUs);
-            codec.releaseOutputBuffer(index, true);
+        private Surface createInputSurface() {
+            encoderInputSurface = mediaEncoder.createInputSurface();
+            return encoderInputSurface;
         }
 
         @Override
-        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
-            Log.e(TAG, "onError", e);
+        public void setCallback(FrameEncoder.Callback callback) {
+            this.encoderCallback = callback;
         }
 
         @Override
-        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
-            // Do nothing.
+        public void signalEndOfInputStream() {
+            mediaEncoder.signalEndOfInputStream();
         }
-    }
 
-    private class MediaEncoderCallback extends MediaCodec.Callback {
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return mediaEncoder.getOutputBuffer(index);
+        }
 
         @Override
-        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
-            // Not called.
+        public void releaseOutputBuffer(int index) {
+            mediaEncoder.releaseOutputBuffer(index, false);
         }
 
+        /**
+         * Called on the encoder thread. A write that fails, e.g. because the disk is full, fails
+         * the job on the processing thread.
+         */
         @Override
-        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
-            ByteBuffer outputBuffer = codec.getOutputBuffer(index);
-            if (outputBuffer == null) {
+        public void writeSampleData(ByteBuffer buffer, int size, long presentationTimeUs, int flags) {
+            try {
+                if (fragmentedWriter != null) {
+                    fragmentedWriter.writeSampleData(buffer, size, presentationTimeUs, flags);
+                    return;
+                }
+                sampleInfo.set(buffer.position(), size, presentationTimeUs, flags);
+                synchronized (mediaMuxer) {
+                    mediaMuxer.writeSampleData(muxerTrackIndex, buffer, sampleInfo);
+                }
+            } catch (IllegalStateException | IllegalArgumentException e) {
+                // The fragmented writer wraps I/O errors.
+                Exception error = e.getCause() instanceof IOException ? (IOException) e.getCause() : e;
+                handler.post(() -> fail(error));
                 return;
             }
+            if (audioPassthrough != null) {
+                audioPassthrough.onVideoTime(presentationTimeUs);
+            }
+        }
 
-            if (info.flags != MediaCodec.BUFFER_FLAG_CODEC_CONFIG) {
-                Long timestamp = timestampQueue.poll();
-                if (timestamp == null) {
-                    throw new IllegalStateException("Encountered null timestamp but end of stream not yet reached");
+        /**
+         * Releases what has been set up so far; setup may have failed part way.
+         *
+         * @param finished false if the output is going to be deleted, in which case the remaining
+         *                 audio is not copied into it
+         */
+        private void release(boolean finished) {
+            if (audioPassthrough != null) {
+                if (finished) {
+                    audioPassthrough.finish();
                 } else {
-                    info.presentationTimeUs = timestamp;
+                    audioPassthrough.cancel();
+                }
+                audioPassthrough = null;
+            }
+            if (fragmentedWriter != null) {
+                if (!finished) {
+                    // The output is going to be deleted.
+                    fragmentedWriter.setListener(null);
                 }
+                try {
+                    fragmentedWriter.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "release: could not finish fragmented output", e);
+                }
+                fragmentedWriter = null;
+            } else if (mediaMuxer != null) {
+                try {
+                    mediaMuxer.release();
+                } catch (IllegalStateException e) {
+                    // Stopping a muxer that has no samples yet fails.
+                    Log.w(TAG, "release: could not finish output", e);
+                }
+                mediaMuxer = null;
+            }
+            if (mediaEncoder != null) {
+                codecPool.recycle(mediaEncoder);
+                mediaEncoder = null;
+            }
+            if (encoderInputSurface != null) {
+                encoderInputSurface.release();
+                encoderInputSurface = null;
+            }
+        }
+
+        private void deleteOutput() {
+            if (outputFile != null && outputFile.exists() && !outputFile.delete()) {
+                Log.w(TAG, "could not delete " + outputFile);
             }
+        }
 
-            mediaMuxer.writeSampleData(muxerTrackIndex, outputBuffer, info);
-            codec.releaseOutputBuffer(index, false);
+        private class MediaEncoderCallback extends MediaCodec.Callback {
 
-            double progress = (double) (info.presentationTimeUs * 1000L / videoDurationUs) / 10.0;
-            mainHandler.post(() -> onStep.accept(progress));
+            @Override
+            public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+                // Not called.
+            }
 
-            if (info.flags == MediaCodec.BUFFER_FLAG_END_OF_STREAM) {
-                handler.post(() -> {
-                    cleanUp();
-                    mainHandler.post(onSuccess);
-                });
+            @Override
+            public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+                encoderCallback.onOutputBufferAvailable(index, info.presentationTimeUs, info.flags, info.size);
             }
-        }
 
-        @Override
-        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
-            Log.e(TAG, "onError", e);
-        }
+            @Override
+            public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+                Log.e(TAG, "onError", e);
+                handler.post(() -> fail(e));
+            }
 
-        @Override
-        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
-            format.setInteger(MediaFormat.KEY_WIDTH, rotatedWidth);
-            format.setInteger(MediaFormat.KEY_HEIGHT, rotatedHeight);
-            muxerTrackIndex = mediaMuxer.addTrack(format);
-            mediaMuxer.start();
+            @Override
+            public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+                if (fragmentedWriter != null) {
+                    for (String key : new String[]{"csd-0", "csd-1"}) {
+                        ByteBuffer csd = format.getByteBuffer(key);
+                        if (csd != null) {
+                            fragmentedWriter.addParameterSets(csd, csd.remaining());
+                        }
+                    }
+                    return;
+                }
+                format.setInteger(MediaFormat.KEY_WIDTH, width);
+                format.setInteger(MediaFormat.KEY_HEIGHT, height);
+                muxerTrackIndex = mediaMuxer.addTrack(format);
+                mediaMuxer.start();
+                if (audioPassthrough != null) {
+                    audioPassthrough.start(mediaMuxer);
+                }
+            }
         }
     }
 }
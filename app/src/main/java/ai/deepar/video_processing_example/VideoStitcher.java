@@ -0,0 +1,204 @@
+package ai.deepar.video_processing_example;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Concatenates compressed video pieces into a single MP4 without re-encoding them, copying the
+ * audio of the original source alongside.
+ * <p>
+ * Pieces may come from different encoders, but must all use the codec of the first piece, whose
+ * sample description the output takes. When the parameter sets (csd-0/csd-1) of a later piece
+ * differ, they are sent in-band in front of its first sync sample, so the decoder switches over
+ * at the boundary.
+ */
+class VideoStitcher {
+
+    private static final String TAG = VideoStitcher.class.getSimpleName();
+
+    private static final String VIDEO_MIME_PREFIX = "video/";
+
+    private final Context context;
+    private final MediaMuxer muxer;
+    private final AudioPassthrough audioPassthrough;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+    private ByteBuffer buffer;
+    private String mime;
+    private ByteBuffer parameterSets;
+    private int trackIndex = -1;
+    private long lastTimeUs = -1;
+    private int sampleCount;
+
+    /**
+     * @param audioSourceUri source whose audio tracks are copied into the output, or null
+     */
+    VideoStitcher(Context context, File outputFile, Uri audioSourceUri) throws IOException {
+        this.context = context;
+        this.muxer = new MediaMuxer(outputFile.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        this.audioPassthrough = audioSourceUri == null ? null : new AudioPassthrough(context, audioSourceUri, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Copies the samples of the source's video track from the sync sample at {@code startUs} up
+     * to, but excluding, the sync sample at {@code endUs}. Timestamps are kept.
+     *
+     * @throws IllegalArgumentException if the piece uses another codec than the first one
+     */
+    void appendSourceRange(Uri sourceUri, long startUs, long endUs) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(context, sourceUri, null);
+            selectVideoTrack(extractor);
+            extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            copySamples(extractor, 0, endUs);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    /**
+     * Copies all video samples of a processed segment, shifting them so that the segment's first
+     * sample lands on {@code startUs}. The muxer that wrote the segment may have moved it to zero.
+     *
+     * @throws IllegalArgumentException if the segment uses another codec than the first piece
+     */
+    void appendSegment(File segmentFile, long startUs) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(segmentFile.getAbsolutePath());
+            selectVideoTrack(extractor);
+            copySamples(extractor, startUs - extractor.getSampleTime(), Long.MAX_VALUE);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    /**
+     * Copies the remaining audio and finalizes the output file.
+     */
+    void finish() {
+        try {
+            if (trackIndex >= 0) {
+                if (audioPassthrough != null) {
+                    audioPassthrough.copyRemaining(muxer);
+                }
+                muxer.stop();
+            }
+        } finally {
+            release();
+        }
+        Log.d(TAG, "finish: " + sampleCount + " video samples, last at " + lastTimeUs + "us");
+    }
+
+    void release() {
+        if (audioPassthrough != null) {
+            audioPassthrough.release();
+        }
+        muxer.release();
+    }
+
+    private void copySamples(MediaExtractor extractor, long offsetUs, long endUs) {
+        MediaFormat format = extractor.getTrackFormat(extractor.getSampleTrackIndex());
+        String pieceMime = format.getString(MediaFormat.KEY_MIME).toLowerCase();
+        ByteBuffer pieceParameterSets = getParameterSets(format);
+        boolean sendParameterSets = false;
+        if (trackIndex < 0) {
+            mime = pieceMime;
+            trackIndex = muxer.addTrack(format);
+            if (audioPassthrough != null) {
+                audioPassthrough.addTracks(muxer);
+            }
+            muxer.start();
+        } else if (!pieceMime.equals(mime)) {
+            // The track's sample description cannot describe samples of another codec.
+            throw new IllegalArgumentException("cannot append " + pieceMime + " samples to a " + mime + " track");
+        } else {
+            sendParameterSets = !pieceParameterSets.equals(parameterSets);
+        }
+        parameterSets = pieceParameterSets;
+        ensureBufferCapacity(getMaxSampleSize(format) + parameterSets.remaining());
+
+        while (true) {
+            long sampleTimeUs = extractor.getSampleTime();
+            if (sampleTimeUs < 0) {
+                break;
+            }
+            boolean sync = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+            if (sync && sampleTimeUs >= endUs) {
+                break;
+            }
+
+            buffer.clear();
+            int prefix = 0;
+            if (sync && sendParameterSets) {
+                buffer.put(parameterSets.duplicate());
+                prefix = parameterSets.remaining();
+                sendParameterSets = false;
+            }
+            int size = extractor.readSampleData(buffer, prefix);
+            if (size < 0) {
+                break;
+            }
+            long timeUs = sampleTimeUs + offsetUs;
+            info.set(0, prefix + size, timeUs, sync ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            muxer.writeSampleData(trackIndex, buffer, info);
+            if (audioPassthrough != null) {
+                audioPassthrough.copyUntil(muxer, timeUs);
+            }
+            lastTimeUs = Math.max(lastTimeUs, timeUs);
+            sampleCount++;
+            if (!extractor.advance()) {
+                break;
+            }
+        }
+    }
+
+    private void ensureBufferCapacity(int capacity) {
+        if (buffer == null || buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    private static ByteBuffer getParameterSets(MediaFormat format) {
+        ByteBuffer csd0 = format.getByteBuffer("csd-0");
+        ByteBuffer csd1 = format.getByteBuffer("csd-1");
+        int size = (csd0 == null ? 0 : csd0.remaining()) + (csd1 == null ? 0 : csd1.remaining());
+        ByteBuffer parameterSets = ByteBuffer.allocate(size);
+        if (csd0 != null) {
+            parameterSets.put(csd0.duplicate());
+        }
+        if (csd1 != null) {
+            parameterSets.put(csd1.duplicate());
+        }
+        parameterSets.flip();
+        return parameterSets;
+    }
+
+    private static int getMaxSampleSize(MediaFormat format) {
+        if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+            return format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+        }
+        return format.getInteger(MediaFormat.KEY_WIDTH) * format.getInteger(MediaFormat.KEY_HEIGHT);
+    }
+
+    private static void selectVideoTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.toLowerCase().startsWith(VIDEO_MIME_PREFIX)) {
+                extractor.selectTrack(i);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("video track not found");
+    }
+}
@@ -0,0 +1,210 @@
+package ai.deepar.video_processing_example;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Packs decoded YUV 4:2:0 frames into tightly sized direct buffers that can be handed to
+ * {@code DeepAR.receiveFrame}.
+ * <p>
+ * The plane layout is inspected only when it changes. For every layout a copy plan is computed
+ * once and then replayed for every frame, so packing a frame performs no heap allocation.
+ * Planar input is packed as Y, V, U (pixel stride 1). Input with interleaved chroma is packed as
+ * Y followed by VU pairs (pixel stride 2), see {@link #getOutputPixelStride()}.
+ */
+class YuvFramePacker {
+
+    private final int poolCapacity;
+    private final ArrayDeque<ByteBuffer> pool;
+    private int allocatedBuffers;
+
+    private int width = -1;
+    private int height = -1;
+    private int yRowStride;
+    private int uRowStride;
+    private int vRowStride;
+    private int uPixelStride;
+    private int vPixelStride;
+    private int yLimit;
+    private int uLimit;
+    private int vLimit;
+
+    private int frameSize;
+    private boolean interleaved;
+    private int chromaWidth;
+    private int chromaHeight;
+
+    // Copy plan: segment i copies segmentLength[i] bytes starting at segmentOffset[i] of plane
+    // segmentPlane[i] into the output buffer, in order.
+    private int segmentCount;
+    private int[] segmentPlane = new int[0];
+    private int[] segmentOffset = new int[0];
+    private int[] segmentLength = new int[0];
+
+    // Row scratch space used to interleave chroma samples, sized once per layout.
+    private byte[] uRow = new byte[0];
+    private byte[] vRow = new byte[0];
+    private byte[] vuRow = new byte[0];
+
+    YuvFramePacker(int poolCapacity) {
+        if (poolCapacity < 1) {
+            throw new IllegalArgumentException("poolCapacity must be positive");
+        }
+        this.poolCapacity = poolCapacity;
+        this.pool = new ArrayDeque<>(poolCapacity);
+    }
+
+    /**
+     * Copies the frame planes into a pooled buffer. The returned buffer is positioned at 0 and
+     * must be handed back with {@link #recycle(ByteBuffer)} once it has been consumed.
+     */
+    ByteBuffer pack(FramePlanes planes) {
+        ByteBuffer y = planes.getBuffer(0);
+        ByteBuffer u = planes.getBuffer(1);
+        ByteBuffer v = planes.getBuffer(2);
+        ensurePlan(planes.getWidth(), planes.getHeight(), planes, y, u, v);
+
+        ByteBuffer output = acquire();
+        output.clear();
+        for (int i = 0; i < segmentCount; i++) {
+            ByteBuffer source = segmentPlane[i] == 0 ? y : segmentPlane[i] == 1 ? u : v;
+            int offset = segmentOffset[i];
+            source.limit(offset + segmentLength[i]);
+            source.position(offset);
+            output.put(source);
+        }
+        y.clear();
+        u.clear();
+        v.clear();
+        if (interleaved) {
+            interleaveChroma(u, v, output);
+        }
+        output.flip();
+        return output;
+    }
+
+    void recycle(ByteBuffer buffer) {
+        if (buffer.capacity() == frameSize && pool.size() < poolCapacity) {
+            pool.offer(buffer);
+        } else {
+            allocatedBuffers--;
+        }
+    }
+
+    int getOutputPixelStride() {
+        return interleaved ? 2 : 1;
+    }
+
+    int getFrameSize() {
+        return frameSize;
+    }
+
+    private ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (allocatedBuffers >= poolCapacity) {
+            throw new IllegalStateException("All " + poolCapacity + " frame buffers are in use");
+        }
+        allocatedBuffers++;
+        return ByteBuffer.allocateDirect(frameSize).order(ByteOrder.nativeOrder());
+    }
+
+    private void ensurePlan(int width, int height, FramePlanes planes, ByteBuffer y, ByteBuffer u, ByteBuffer v) {
+        if (width == this.width && height == this.height
+                && planes.getRowStride(0) == yRowStride
+                && planes.getRowStride(1) == uRowStride
+                && planes.getRowStride(2) == vRowStride
+                && planes.getPixelStride(1) == uPixelStride
+                && planes.getPixelStride(2) == vPixelStride
+                && y.limit() == yLimit && u.limit() == uLimit && v.limit() == vLimit) {
+            return;
+        }
+
+        this.width = width;
+        this.height = height;
+        yRowStride = planes.getRowStride(0);
+        uRowStride = planes.getRowStride(1);
+        vRowStride = planes.getRowStride(2);
+        uPixelStride = planes.getPixelStride(1);
+        vPixelStride = planes.getPixelStride(2);
+        yLimit = y.limit();
+        uLimit = u.limit();
+        vLimit = v.limit();
+
+        chromaWidth = (width + 1) / 2;
+        chromaHeight = (height + 1) / 2;
+        int newFrameSize = width * height + 2 * chromaWidth * chromaHeight;
+        if (newFrameSize != frameSize) {
+            allocatedBuffers -= pool.size();
+            pool.clear();
+            frameSize = newFrameSize;
+        }
+
+        segmentCount = 0;
+        addPlane(0, yRowStride, width, height, yLimit);
+        interleaved = uPixelStride != 1 || vPixelStride != 1;
+        if (interleaved) {
+            // Chroma samples are interleaved row by row through the scratch arrays, which works
+            // regardless of whether U or V comes first in memory (NV12 vs NV21).
+            uRow = new byte[(chromaWidth - 1) * uPixelStride + 1];
+            vRow = new byte[(chromaWidth - 1) * vPixelStride + 1];
+            vuRow = new byte[2 * chromaWidth];
+        } else {
+            // U and V are swapped.
+            addPlane(2, vRowStride, chromaWidth, chromaHeight, vLimit);
+            addPlane(1, uRowStride, chromaWidth, chromaHeight, uLimit);
+        }
+    }
+
+    /**
+     * @return description of the current frame layout and copy plan, for logging
+     */
+    String describeLayout() {
+        return "frame layout " + width + "x" + height + ", row strides " + yRowStride + "/" + uRowStride + "/" + vRowStride
+                + ", pixel strides " + uPixelStride + "/" + vPixelStride + ", " + segmentCount + " segments, interleaved " + interleaved;
+    }
+
+    private void addPlane(int plane, int rowStride, int rowLength, int rows, int limit) {
+        if (rowStride == rowLength) {
+            addSegment(plane, 0, Math.min(rowLength * rows, limit));
+            return;
+        }
+        for (int row = 0; row < rows; row++) {
+            int offset = row * rowStride;
+            addSegment(plane, offset, Math.min(rowLength, limit - offset));
+        }
+    }
+
+    private void addSegment(int plane, int offset, int length) {
+        if (segmentCount == segmentPlane.length) {
+            int capacity = Math.max(16, segmentCount * 2);
+            segmentPlane = Arrays.copyOf(segmentPlane, capacity);
+            segmentOffset = Arrays.copyOf(segmentOffset, capacity);
+            segmentLength = Arrays.copyOf(segmentLength, capacity);
+        }
+        segmentPlane[segmentCount] = plane;
+        segmentOffset[segmentCount] = offset;
+        segmentLength[segmentCount] = length;
+        segmentCount++;
+    }
+
+    private void interleaveChroma(ByteBuffer u, ByteBuffer v, ByteBuffer output) {
+        for (int row = 0; row < chromaHeight; row++) {
+            u.position(row * uRowStride);
+            u.get(uRow, 0, Math.min(uRow.length, u.remaining()));
+            v.position(row * vRowStride);
+            v.get(vRow, 0, Math.min(vRow.length, v.remaining()));
+            for (int column = 0, out = 0; column < chromaWidth; column++) {
+                vuRow[out++] = vRow[column * vPixelStride];
+                vuRow[out++] = uRow[column * uPixelStride];
+            }
+            output.put(vuRow);
+        }
+        u.clear();
+        v.clear();
+    }
+}
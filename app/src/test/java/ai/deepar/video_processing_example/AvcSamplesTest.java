@@ -0,0 +1,43 @@
+package ai.deepar.video_processing_example;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AvcSamplesTest {
+
+    @Test
+    public void detectsNonReferenceSlices() {
+        // SEI followed by a non-reference slice.
+        assertTrue(isNonReference(0, 0, 0, 1, 0x06, 5, 0, 0, 1, 0x01, 0x9a, 0x22));
+    }
+
+    @Test
+    public void rejectsReferenceSlices() {
+        assertFalse(isNonReference(0, 0, 0, 1, 0x41, 0x9a, 0x22));
+        assertFalse(isNonReference(0, 0, 1, 0x65, 0x88, 0x80));
+        // Second slice of the access unit is a reference slice.
+        assertFalse(isNonReference(0, 0, 1, 0x01, 0x9a, 0, 0, 1, 0x21, 0x9a));
+    }
+
+    @Test
+    public void rejectsSamplesWithoutStartCodes() {
+        // Length-prefixed NAL unit.
+        assertFalse(isNonReference(0, 0, 0, 3, 0x01, 0x9a, 0x22));
+        assertFalse(isNonReference());
+    }
+
+    private static boolean isNonReference(int... bytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 8);
+        buffer.position(4);
+        for (int b : bytes) {
+            buffer.put((byte) b);
+        }
+        buffer.limit(buffer.position());
+        buffer.position(4);
+        return AvcSamples.isNonReference(buffer, bytes.length);
+    }
+}
@@ -0,0 +1,16 @@
+package ai.deepar.video_processing_example;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class EffectThumbnailLoaderTest {
+
+    @Test
+    public void downsamplesToTheCellSize() {
+        assertEquals(1, EffectThumbnailLoader.calculateInSampleSize(512, 512, 540));
+        assertEquals(1, EffectThumbnailLoader.calculateInSampleSize(1024, 1024, 540));
+        assertEquals(2, EffectThumbnailLoader.calculateInSampleSize(1024, 1024, 300));
+        assertEquals(4, EffectThumbnailLoader.calculateInSampleSize(2048, 1024, 200));
+    }
+}
@@ -0,0 +1,57 @@
+package ai.deepar.video_processing_example;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EncoderProfileTest {
+
+    private static final EncoderProfile ADAPTIVE = EncoderProfile.CONTENT_ADAPTIVE;
+
+    @Test
+    public void legacyProfileKeepsFixedBitsPerPixel() {
+        assertEquals((int) (0.15f * 30 * 1280 * 720), EncoderProfile.LEGACY_AVC.getBitRate(false, 1280, 720, 30, 0.01f));
+    }
+
+    @Test
+    public void adaptiveBitRateMatchesLegacyAt720pWithoutSourceCap() {
+        assertEquals(EncoderProfile.LEGACY_AVC.getBitRate(false, 1280, 720, 30, 0), ADAPTIVE.getBitRate(false, 1280, 720, 30, 0), 1);
+    }
+
+    @Test
+    public void spendsFewerBitsPerPixelOnLargerFrames() {
+        double bitsPerPixel1080p = ADAPTIVE.getBitRate(false, 1920, 1080, 30, 0) / (1920.0 * 1080 * 30);
+        double bitsPerPixel480p = ADAPTIVE.getBitRate(false, 854, 480, 30, 0) / (854.0 * 480 * 30);
+        assertTrue(bitsPerPixel1080p < 0.15);
+        assertTrue(bitsPerPixel480p > 0.15);
+    }
+
+    @Test
+    public void scalesWithFrameRate() {
+        assertEquals(2.0, ADAPTIVE.getBitRate(false, 1280, 720, 60, 0) / (double) ADAPTIVE.getBitRate(false, 1280, 720, 30, 0), 0.001);
+    }
+
+    @Test
+    public void capsBitRateBySourceWithHeadroom() {
+        // A source at 0.05 bits per pixel only gets 25% more.
+        assertEquals(0.0625 * 1280 * 720 * 30, ADAPTIVE.getBitRate(false, 1280, 720, 30, 0.05f), 100);
+        // Richer sources do not raise the bitrate.
+        assertEquals(ADAPTIVE.getBitRate(false, 1280, 720, 30, 0), ADAPTIVE.getBitRate(false, 1280, 720, 30, 1f));
+        // Nearly static sources still get a minimum.
+        assertEquals(0.03 * 1280 * 720 * 30, ADAPTIVE.getBitRate(false, 1280, 720, 30, 0.001f), 100);
+    }
+
+    @Test
+    public void needsLessForHevc() {
+        assertEquals(0.6, ADAPTIVE.getBitRate(true, 1920, 1080, 30, 0) / (double) ADAPTIVE.getBitRate(false, 1920, 1080, 30, 0), 0.001);
+    }
+
+    @Test
+    public void describesProfilesDifferently() {
+        assertNotEquals(EncoderProfile.LEGACY_AVC.describe(), ADAPTIVE.describe());
+        assertNotEquals(new EncoderProfile(false, true, true).describe(), ADAPTIVE.describe());
+        assertEquals(new EncoderProfile(true, true, true).describe(), ADAPTIVE.describe());
+    }
+}
@@ -0,0 +1,236 @@
+package ai.deepar.video_processing_example;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FragmentedMp4WriterTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final long FRAME_DURATION_US = 33_333;
+    private static final int FRAME_TICKS = 3000;
+
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1e, (byte) 0xda, 0x02, (byte) 0x80, (byte) 0xbf, (byte) 0xe5};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    private final List<File> files = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void writesInitSegmentThenFragmentsStartingWithSyncSamples() throws IOException {
+        ByteBuffer file = write(10, 3, 4, null);
+
+        List<Mp4Box> boxes = Mp4Box.parse(file);
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat"), Mp4Box.types(boxes));
+        assertEquals(Arrays.asList("mvhd", "trak", "mvex"), Mp4Box.types(boxes.get(1).children));
+
+        int frame = 0;
+        int[] fragmentSizes = {6, 4};
+        for (int fragment = 0; fragment < fragmentSizes.length; fragment++) {
+            Mp4Box moof = boxes.get(2 + 2 * fragment);
+            assertEquals(fragment + 1, moof.find("mfhd").payload.getInt(4));
+            assertEquals(frame * FRAME_TICKS, moof.find("traf/tfdt").payload.getLong(4));
+
+            ByteBuffer trun = moof.find("traf/trun").payload;
+            assertEquals(0x01000f01, trun.getInt(0));
+            assertEquals(fragmentSizes[fragment], trun.getInt(4));
+            int dataPosition = moof.offset + trun.getInt(8);
+            assertEquals(boxes.get(3 + 2 * fragment).offset + 8, dataPosition);
+            for (int i = 0; i < fragmentSizes[fragment]; i++, frame++) {
+                int entry = 12 + 16 * i;
+                assertEquals(FRAME_TICKS, trun.getInt(entry));
+                int size = trun.getInt(entry + 4);
+                assertEquals(frame % 3 == 0 ? 0x02000000 : 0x01010000, trun.getInt(entry + 8));
+                assertEquals(0, trun.getInt(entry + 12));
+
+                byte[] nal = sliceNal(frame, frame % 3 == 0);
+                assertEquals(4 + nal.length, size);
+                assertEquals(nal.length, file.getInt(dataPosition));
+                assertArrayEquals(nal, bytes(file, dataPosition + 4, nal.length));
+                dataPosition += size;
+            }
+        }
+        assertEquals(10, frame);
+    }
+
+    @Test
+    public void describesTheTrack() throws IOException {
+        ByteBuffer file = write(2, 1, 1, null);
+        Mp4Box moov = Mp4Box.parse(file).get(1);
+
+        ByteBuffer tkhd = moov.find("trak/tkhd").payload;
+        assertEquals(WIDTH << 16, tkhd.getInt(76));
+        assertEquals(HEIGHT << 16, tkhd.getInt(80));
+        assertEquals(FragmentedMp4Writer.TIMESCALE, moov.find("trak/mdia/mdhd").payload.getInt(12));
+
+        ByteBuffer stsd = moov.find("trak/mdia/minf/stbl/stsd").payload;
+        assertEquals(1, stsd.getInt(4));
+        List<Mp4Box> entries = Mp4Box.parse(slice(stsd, 8));
+        assertEquals("avc1", entries.get(0).type);
+        ByteBuffer avc1 = entries.get(0).payload;
+        assertEquals(WIDTH, avc1.getShort(24));
+        assertEquals(HEIGHT, avc1.getShort(26));
+
+        List<Mp4Box> avc1Children = Mp4Box.parse(slice(avc1, 78));
+        assertEquals("avcC", avc1Children.get(0).type);
+        ByteBuffer avcC = avc1Children.get(0).payload;
+        assertArrayEquals(new byte[]{1, 0x42, (byte) 0xc0, 0x1e, (byte) 0xff, (byte) 0xe1}, bytes(avcC, 0, 6));
+        assertEquals(SPS.length, avcC.getShort(6));
+        assertArrayEquals(SPS, bytes(avcC, 8, SPS.length));
+        assertEquals(1, avcC.get(8 + SPS.length));
+        assertEquals(PPS.length, avcC.getShort(9 + SPS.length));
+        assertArrayEquals(PPS, bytes(avcC, 11 + SPS.length, PPS.length));
+    }
+
+    @Test
+    public void storesCompositionOffsetsOfReorderedSamples() throws IOException {
+        File output = newFile();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(new FileOutputStream(output).getChannel(), WIDTH, HEIGHT, 30);
+        writeCodecConfig(writer);
+        int[] presentationOrder = {0, 3, 1, 2};
+        for (int i = 0; i < presentationOrder.length; i++) {
+            writeFrame(writer, presentationOrder[i], i == 0);
+        }
+        writer.close();
+
+        ByteBuffer trun = Mp4Box.parse(read(output)).get(2).find("traf/trun").payload;
+        assertEquals(4, trun.getInt(4));
+        int[] expectedOffsets = {0, 2 * FRAME_TICKS, -FRAME_TICKS, -FRAME_TICKS};
+        for (int i = 0; i < 4; i++) {
+            assertEquals(FRAME_TICKS, trun.getInt(12 + 16 * i));
+            assertEquals(expectedOffsets[i], trun.getInt(12 + 16 * i + 12));
+        }
+    }
+
+    @Test
+    public void convertsEveryNalUnitOfASample() throws IOException {
+        File output = newFile();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(new FileOutputStream(output).getChannel(), WIDTH, HEIGHT, 30);
+        writeCodecConfig(writer);
+        // SEI behind a 4-byte start code, then a slice behind a 3-byte start code.
+        byte[] sample = {0, 0, 0, 1, 0x06, 0x05, 0x11, 0, 0, 1, 0x65, (byte) 0x88, (byte) 0x84};
+        writer.writeSampleData(ByteBuffer.wrap(sample), sample.length, 0, FramePipeline.FLAG_KEY_FRAME);
+        writer.close();
+
+        List<Mp4Box> boxes = Mp4Box.parse(read(output));
+        ByteBuffer mdat = boxes.get(3).payload;
+        assertArrayEquals(new byte[]{0, 0, 0, 3, 0x06, 0x05, 0x11, 0, 0, 0, 3, 0x65, (byte) 0x88, (byte) 0x84}, bytes(mdat, 0, mdat.limit()));
+    }
+
+    @Test
+    public void reportsEachFragmentOnceItIsOnDisk() throws IOException {
+        List<Long> fileSizes = new ArrayList<>();
+        ByteBuffer file = write(9, 3, 3, (sequenceNumber, fileSize) -> {
+            assertEquals(fileSizes.size() + 1, sequenceNumber);
+            fileSizes.add(fileSize);
+        });
+
+        List<Mp4Box> boxes = Mp4Box.parse(file);
+        assertEquals(3, fileSizes.size());
+        for (int i = 0; i < fileSizes.size(); i++) {
+            Mp4Box mdat = boxes.get(3 + 2 * i);
+            assertEquals(mdat.offset + mdat.size, (long) fileSizes.get(i));
+        }
+        assertEquals(file.limit(), (long) fileSizes.get(2));
+    }
+
+    /**
+     * Snapshot of the writer's own output, not an independent reference: it catches unintended
+     * changes to the layout. Regenerate it when the layout changes on purpose, after checking the
+     * new file with an external tool.
+     */
+    @Test
+    public void matchesSnapshot() throws IOException {
+        ByteBuffer file = write(10, 3, 4, null);
+
+        byte[] snapshot;
+        try (InputStream in = getClass().getResourceAsStream("/fmp4/snapshot_10_frames.mp4")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                out.write(chunk, 0, read);
+            }
+            snapshot = out.toByteArray();
+        }
+        assertArrayEquals(snapshot, bytes(file, 0, file.limit()));
+    }
+
+    private ByteBuffer write(int frameCount, int syncInterval, int fragmentFrames, FragmentedMp4Writer.Listener listener) throws IOException {
+        File output = newFile();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(new FileOutputStream(output).getChannel(), WIDTH, HEIGHT, fragmentFrames);
+        writer.setListener(listener);
+        writeCodecConfig(writer);
+        for (int frame = 0; frame < frameCount; frame++) {
+            writeFrame(writer, frame, frame % syncInterval == 0);
+        }
+        writer.close();
+        return read(output);
+    }
+
+    private static void writeCodecConfig(FragmentedMp4Writer writer) {
+        ByteBuffer config = ByteBuffer.allocate(8 + SPS.length + PPS.length);
+        config.putInt(1).put(SPS).putInt(1).put(PPS).flip();
+        writer.writeSampleData(config, config.remaining(), 0, FramePipeline.FLAG_CODEC_CONFIG);
+    }
+
+    private static void writeFrame(FragmentedMp4Writer writer, int frame, boolean sync) {
+        byte[] nal = sliceNal(frame, sync);
+        ByteBuffer sample = ByteBuffer.allocate(4 + nal.length);
+        sample.putInt(1).put(nal).flip();
+        writer.writeSampleData(sample, sample.remaining(), frame * FRAME_DURATION_US, sync ? FramePipeline.FLAG_KEY_FRAME : 0);
+    }
+
+    private static byte[] sliceNal(int frame, boolean sync) {
+        byte[] nal = new byte[8 + frame];
+        nal[0] = (byte) (sync ? 0x65 : 0x41);
+        for (int i = 1; i < nal.length; i++) {
+            nal[i] = (byte) (0x80 | (frame + i));
+        }
+        return nal;
+    }
+
+    private File newFile() throws IOException {
+        File file = File.createTempFile("fragmented", ".mp4");
+        files.add(file);
+        return file;
+    }
+
+    private static ByteBuffer read(File file) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        return slice.slice();
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return bytes;
+    }
+}
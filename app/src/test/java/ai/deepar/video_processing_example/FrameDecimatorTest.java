@@ -0,0 +1,69 @@
+package ai.deepar.video_processing_example;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameDecimatorTest {
+
+    private static final long SOURCE_FRAME_US = 33_333;
+
+    @Test
+    public void halvesTheFrameRate() {
+        FrameDecimator decimator = new FrameDecimator(0, 2 * SOURCE_FRAME_US, SOURCE_FRAME_US);
+        List<Long> kept = keptFrames(decimator, 0, 10);
+
+        assertEquals(5, kept.size());
+        for (int i = 0; i < kept.size(); i++) {
+            assertEquals(2 * i * SOURCE_FRAME_US, (long) kept.get(i));
+        }
+    }
+
+    @Test
+    public void keepsCloseToTheTargetRate() {
+        FrameDecimator decimator = new FrameDecimator(0, 1_000_000 / 24, SOURCE_FRAME_US);
+        List<Long> kept = keptFrames(decimator, 0, 300);
+
+        assertEquals(240, kept.size(), 1);
+        for (int i = 1; i < kept.size(); i++) {
+            assertTrue(kept.get(i) - kept.get(i - 1) <= 2 * SOURCE_FRAME_US);
+        }
+    }
+
+    @Test
+    public void alwaysKeepsTheFirstFrame() {
+        long originUs = 10 * SOURCE_FRAME_US;
+        FrameDecimator decimator = new FrameDecimator(originUs, 3 * SOURCE_FRAME_US, SOURCE_FRAME_US);
+
+        assertEquals(originUs, (long) keptFrames(decimator, 10, 1).get(0));
+        assertEquals(4, keptFrames(decimator, 10, 10).size());
+    }
+
+    @Test
+    public void doesNotDependOnOrder() {
+        FrameDecimator decimator = new FrameDecimator(0, 1_000_000 / 15, SOURCE_FRAME_US);
+        List<Long> forward = keptFrames(decimator, 0, 60);
+        List<Long> backward = new ArrayList<>();
+        for (int frame = 59; frame >= 0; frame--) {
+            if (decimator.shouldKeep(frame * SOURCE_FRAME_US)) {
+                backward.add(0, frame * SOURCE_FRAME_US);
+            }
+        }
+        assertEquals(forward, backward);
+    }
+
+    private static List<Long> keptFrames(FrameDecimator decimator, int firstFrame, int frameCount) {
+        List<Long> kept = new ArrayList<>();
+        for (int frame = firstFrame; frame < firstFrame + frameCount; frame++) {
+            long timeUs = frame * SOURCE_FRAME_US;
+            if (decimator.shouldKeep(timeUs)) {
+                kept.add(timeUs);
+            }
+        }
+        return kept;
+    }
+}
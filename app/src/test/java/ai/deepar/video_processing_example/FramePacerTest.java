@@ -0,0 +1,160 @@
+package ai.deepar.video_processing_example;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FramePacerTest {
+
+    private final List<String> events = new ArrayList<>();
+    private boolean renderSynchronously;
+
+    private final FramePacer pacer = new FramePacer(new FramePacer.Target() {
+        @Override
+        public void releaseToSurface(int index) {
+            events.add("surface " + index);
+        }
+
+        @Override
+        public void releaseWithoutRendering(int index) {
+            events.add("release " + index);
+        }
+
+        @Override
+        public void renderFrame(long presentationTimeUs) {
+            events.add("render " + presentationTimeUs);
+            if (renderSynchronously) {
+                pacer.onFrameRendered();
+            }
+        }
+
+        @Override
+        public void onEndOfStream() {
+            events.add("eos");
+        }
+    });
+
+    @Test
+    public void releasesOneBufferAtATime() {
+        pacer.queue(0, 0, 0, 1);
+        pacer.queue(1, 100, 0, 1);
+        pacer.queue(2, 200, 0, 1);
+        assertEquals(Arrays.asList("surface 0"), events);
+        assertEquals(FramePacer.State.AWAITING_FRAME, pacer.getState());
+        assertEquals(2, pacer.getQueuedBufferCount());
+
+        pacer.onFrameAvailable();
+        assertEquals(FramePacer.State.RENDERING, pacer.getState());
+        pacer.onFrameRendered();
+        assertEquals(Arrays.asList("surface 0", "render 0", "surface 1"), events);
+    }
+
+    @Test
+    public void waitsForTheFrameBeforeReleasingTheNextBuffer() {
+        pacer.queue(0, 0, 0, 1);
+        pacer.onFrameAvailable();
+        // Rendering takes a while; the decoder keeps delivering.
+        pacer.queue(1, 100, 0, 1);
+        pacer.queue(2, 200, 0, 1);
+        assertEquals(Arrays.asList("surface 0", "render 0"), events);
+
+        pacer.onFrameRendered();
+        pacer.queue(3, 300, 0, 1);
+        assertEquals(Arrays.asList("surface 0", "render 0", "surface 1"), events);
+    }
+
+    @Test
+    public void rendersEveryFrameInOrder() {
+        renderSynchronously = true;
+        for (int i = 0; i < 20; i++) {
+            pacer.queue(i % 4, i * 100L, 0, 1);
+            if (i % 3 == 2) {
+                // Frames arrive in bursts.
+                while (pacer.getState() == FramePacer.State.AWAITING_FRAME) {
+                    pacer.onFrameAvailable();
+                }
+            }
+        }
+        while (pacer.getState() == FramePacer.State.AWAITING_FRAME) {
+            pacer.onFrameAvailable();
+        }
+
+        List<String> rendered = new ArrayList<>();
+        for (String event : events) {
+            if (event.startsWith("render")) {
+                rendered.add(event);
+            }
+        }
+        assertEquals(20, rendered.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("render " + i * 100, rendered.get(i));
+        }
+        assertEquals(FramePacer.State.IDLE, pacer.getState());
+    }
+
+    @Test
+    public void releasesEmptyBuffersWithoutRendering() {
+        pacer.queue(0, 0, 0, 0);
+        pacer.queue(1, 100, 0, 1);
+        pacer.queue(2, 200, 0, 0);
+        assertEquals(Arrays.asList("release 0", "surface 1"), events);
+
+        pacer.onFrameAvailable();
+        pacer.onFrameRendered();
+        assertEquals(Arrays.asList("release 0", "surface 1", "render 100", "release 2"), events);
+        assertEquals(FramePacer.State.IDLE, pacer.getState());
+    }
+
+    @Test
+    public void endsTheStreamAfterTheLastFrameIsRendered() {
+        pacer.queue(0, 0, 0, 1);
+        pacer.queue(1, 100, FramePipeline.FLAG_END_OF_STREAM, 1);
+        pacer.onFrameAvailable();
+        pacer.onFrameRendered();
+        pacer.onFrameAvailable();
+        assertEquals(Arrays.asList("surface 0", "render 0", "surface 1", "render 100"), events);
+
+        pacer.onFrameRendered();
+        assertEquals("eos", events.get(events.size() - 1));
+        assertEquals(FramePacer.State.ENDED, pacer.getState());
+    }
+
+    @Test
+    public void endsTheStreamOnAnEmptyEndOfStreamBuffer() {
+        pacer.queue(0, 0, 0, 1);
+        pacer.queue(1, 0, FramePipeline.FLAG_END_OF_STREAM, 0);
+        assertEquals(Arrays.asList("surface 0"), events);
+
+        pacer.onFrameAvailable();
+        pacer.onFrameRendered();
+        assertEquals(Arrays.asList("surface 0", "render 0", "release 1", "eos"), events);
+        assertEquals(FramePacer.State.ENDED, pacer.getState());
+    }
+
+    @Test
+    public void ignoresUnexpectedFrames() {
+        pacer.onFrameAvailable();
+        pacer.queue(0, 0, 0, 1);
+        pacer.onFrameAvailable();
+        pacer.onFrameAvailable();
+        assertEquals(Arrays.asList("surface 0", "render 0"), events);
+        assertEquals(2, pacer.getIgnoredFrameCount());
+        assertEquals(FramePacer.State.RENDERING, pacer.getState());
+    }
+
+    @Test
+    public void rejectsRenderedWithoutAFrame() {
+        try {
+            pacer.onFrameRendered();
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(events.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package ai.deepar.video_processing_example;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FramePipelineTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    private final ExecutorService decoderThread = Executors.newSingleThreadExecutor();
+    private final ExecutorService encoderThread = Executors.newSingleThreadExecutor();
+    private final List<SimulatedFrameDecoder> decoders = new ArrayList<>();
+    private final List<SimulatedFrameEncoder> encoders = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (SimulatedFrameDecoder decoder : decoders) {
+            decoder.shutdown();
+        }
+        for (SimulatedFrameEncoder encoder : encoders) {
+            encoder.shutdown();
+        }
+        decoderThread.shutdownNow();
+        encoderThread.shutdownNow();
+    }
+
+    @Test
+    public void deliversAllFramesInOrder() throws InterruptedException {
+        Run run = new Run(30);
+        SimulatedFrameSink sink = run.addOutput(SimulatedStageProfile.of(500, 2), SimulatedStageProfile.of(500, 4), false);
+        run.execute();
+
+        assertEquals(sourceTimes(30), sink.getSampleTimesUs());
+        assertEquals(0, run.pipeline.getDroppedFrameCount());
+        assertEquals(1, run.finishedCalls.get());
+        assertEquals(0, run.pipeline.getFramesInFlight());
+    }
+
+    @Test
+    public void deliversAllFramesInPipelineMode() throws InterruptedException {
+        Run run = new Run(30);
+        run.pipeline.setPipelineMode(2, 2);
+        SimulatedFrameSink sink = run.addOutput(SimulatedStageProfile.of(500, 2), SimulatedStageProfile.of(500, 4), false);
+        run.execute();
+
+        assertEquals(sourceTimes(30), sink.getSampleTimesUs());
+        assertEquals(1, run.finishedCalls.get());
+    }
+
+    @Test
+    public void keepsSourceTimestampsOfReorderedOutput() throws InterruptedException {
+        Run run = new Run(31);
+        SimulatedFrameSink sink = run.addOutput(SimulatedStageProfile.of(200, 2), SimulatedStageProfile.of(200, 4), true);
+        run.execute();
+
+        List<Long> sampleTimes = sink.getSampleTimesUs();
+        assertEquals(SimulatedFrameSource.FRAME_DURATION_US, (long) sampleTimes.get(0));
+        assertEquals(0, (long) sampleTimes.get(1));
+        Collections.sort(sampleTimes);
+        assertEquals(sourceTimes(31), sampleTimes);
+        assertEquals(0, run.pipeline.getDroppedFrameCount());
+    }
+
+    @Test
+    public void capsFramesInFlight() throws InterruptedException {
+        Run run = new Run(40);
+        run.pipeline.setMaxFramesInFlight(3);
+        SimulatedFrameSink sink = run.addOutput(SimulatedStageProfile.of(0, 2), SimulatedStageProfile.of(2_000, 8), false);
+        run.execute();
+
+        assertEquals(40, sink.getSampleTimesUs().size());
+        assertTrue(run.pipeline.getPeakFramesInFlight() <= 3);
+        assertEquals(3, run.pipeline.getPeakFramesInFlight());
+    }
+
+    @Test
+    public void countsFramesDroppedByTheEncoder() throws InterruptedException {
+        Run run = new Run(100);
+        SimulatedStageProfile encoderProfile = new SimulatedStageProfile(100, 50, 0.05, 4, 42);
+        SimulatedFrameSink sink = run.addOutput(SimulatedStageProfile.of(100, 2), encoderProfile, false);
+        run.execute();
+
+        int written = sink.getSampleTimesUs().size();
+        assertTrue(written < 100);
+        assertEquals(100, written + run.pipeline.getDroppedFrameCount());
+        assertEquals(0, run.pipeline.getFramesInFlight());
+    }
+
+    @Test
+    public void feedsEveryOutput() throws InterruptedException {
+        Run run = new Run(30);
+        run.pipeline.setPipelineMode(2, 2);
+        SimulatedFrameSink fast = run.addOutput(SimulatedStageProfile.of(200, 2), SimulatedStageProfile.of(200, 4), false);
+        SimulatedFrameSink slow = run.addOutput(SimulatedStageProfile.of(1_000, 2), SimulatedStageProfile.of(3_000, 4), true);
+        run.execute();
+
+        assertEquals(sourceTimes(30), fast.getSampleTimesUs());
+        List<Long> slowTimes = slow.getSampleTimesUs();
+        Collections.sort(slowTimes);
+        assertEquals(sourceTimes(30), slowTimes);
+        assertEquals(1, run.finishedCalls.get());
+        assertEquals(100.0, run.lastProgress, 5.0);
+    }
+
+    @Test
+    public void throughputIsBoundByTheSlowestStage() throws InterruptedException {
+        int frames = 60;
+        long renderLatencyUs = 4_000;
+        Run run = new Run(frames);
+        run.pipeline.setPipelineMode(2, 2);
+        run.addOutput(SimulatedStageProfile.of(renderLatencyUs, 2), SimulatedStageProfile.of(1_000, 4), false);
+        long elapsedNanos = run.execute();
+
+        double fps = frames * 1e9 / elapsedNanos;
+        double bottleneckFps = 1e6 / renderLatencyUs;
+        assertTrue("fps " + fps, fps <= bottleneckFps * 1.05);
+        assertTrue("fps " + fps, fps >= bottleneckFps * 0.25);
+    }
+
+    @Test
+    public void skipsDecimatedFramesBeforePacking() throws InterruptedException {
+        Run run = new Run(30);
+        run.pipeline.setPipelineMode(2, 2);
+        run.pipeline.setFrameDecimation(new FrameDecimator(0, 2 * SimulatedFrameSource.FRAME_DURATION_US, SimulatedFrameSource.FRAME_DURATION_US));
+        SimulatedFrameSink sink = run.addOutput(SimulatedStageProfile.of(200, 2), SimulatedStageProfile.of(200, 4), false);
+        run.execute();
+
+        List<Long> expected = new ArrayList<>();
+        for (long timeUs : sourceTimes(30)) {
+            if (timeUs % (2 * SimulatedFrameSource.FRAME_DURATION_US) == 0) {
+                expected.add(timeUs);
+            }
+        }
+        assertEquals(expected, sink.getSampleTimesUs());
+        assertEquals(0, run.pipeline.getDroppedFrameCount());
+        assertEquals(0, run.pipeline.getFramesInFlight());
+        ProcessingMetrics.Snapshot snapshot = run.metrics.snapshot();
+        assertEquals(15, snapshot.getFramesSkipped());
+        assertEquals(15, snapshot.getFramesEncoded());
+    }
+
+    @Test
+    public void rendersOnceForEveryRendition() throws InterruptedException {
+        Run run = new Run(30);
+        run.pipeline.setPipelineMode(2, 2);
+        SimulatedFrameEncoder full = run.addEncoder(SimulatedStageProfile.of(1_000, 4), true);
+        SimulatedFrameEncoder medium = run.addEncoder(SimulatedStageProfile.of(500, 4), false);
+        SimulatedFrameEncoder small = run.addEncoder(SimulatedStageProfile.of(200, 4), false);
+        SimulatedFrameRenderer renderer = new SimulatedFrameRenderer(SimulatedStageProfile.of(2_000, 2), full, medium, small);
+        List<SimulatedFrameSink> sinks = new ArrayList<>();
+        for (SimulatedFrameEncoder encoder : new SimulatedFrameEncoder[]{full, medium, small}) {
+            SimulatedFrameSink sink = new SimulatedFrameSink(SimulatedStageProfile.of(0, 0));
+            run.pipeline.addOutput(renderer, encoder, sink);
+            sinks.add(sink);
+        }
+        run.execute();
+
+        assertEquals(30, renderer.getRenderedFrameCount());
+        for (SimulatedFrameSink sink : sinks) {
+            List<Long> sampleTimes = sink.getSampleTimesUs();
+            Collections.sort(sampleTimes);
+            assertEquals(sourceTimes(30), sampleTimes);
+        }
+        assertEquals(0, run.pipeline.getDroppedFrameCount());
+        assertEquals(30, run.metrics.snapshot().getFramesEncoded());
+        assertEquals(1, run.finishedCalls.get());
+    }
+
+    @Test
+    public void reportsSourceErrorsInsteadOfFinishing() throws InterruptedException {
+        IllegalStateException error = new IllegalStateException("read failed");
+        Run run = new Run(new SimulatedFrameSource(30, SimulatedStageProfile.of(0, 0)) {
+            @Override
+            public int readSampleData(ByteBuffer buffer) {
+                if (getSampleTime() == 10 * FRAME_DURATION_US) {
+                    throw error;
+                }
+                return super.readSampleData(buffer);
+            }
+        }, 30);
+        SimulatedFrameSink sink = run.addOutput(SimulatedStageProfile.of(200, 2), SimulatedStageProfile.of(200, 4), false);
+        for (SimulatedFrameEncoder encoder : encoders) {
+            encoder.start();
+        }
+        run.pipeline.start();
+
+        assertTrue("no error reported", run.failed.await(10, TimeUnit.SECONDS));
+        assertSame(error, run.error);
+        Thread.sleep(50);
+        assertEquals(0, run.finishedCalls.get());
+        assertTrue(sink.getSampleTimesUs().size() <= 10);
+        run.pipeline.release();
+    }
+
+    private static List<Long> sourceTimes(int frameCount) {
+        List<Long> times = new ArrayList<>();
+        for (int i = 0; i < frameCount; i++) {
+            times.add(i * SimulatedFrameSource.FRAME_DURATION_US);
+        }
+        return times;
+    }
+
+    private class Run implements FramePipeline.Listener {
+
+        final FramePipeline pipeline;
+        final ProcessingMetrics metrics = new ProcessingMetrics();
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicInteger finishedCalls = new AtomicInteger();
+        final CountDownLatch failed = new CountDownLatch(1);
+        volatile Exception error;
+        volatile double lastProgress;
+
+        Run(int frameCount) {
+            this(new SimulatedFrameSource(frameCount, SimulatedStageProfile.of(0, 0)), frameCount);
+        }
+
+        Run(FrameSource source, int frameCount) {
+            SimulatedFrameDecoder decoder = new SimulatedFrameDecoder(SimulatedStageProfile.of(200, 4), WIDTH, HEIGHT, decoderThread);
+            decoders.add(decoder);
+            pipeline = new FramePipeline(source, decoder, decoderThread, metrics, this);
+            pipeline.setFrameDurationUs(SimulatedFrameSource.FRAME_DURATION_US);
+            pipeline.setProgressRange(0, (frameCount - 1) * SimulatedFrameSource.FRAME_DURATION_US);
+        }
+
+        SimulatedFrameEncoder addEncoder(SimulatedStageProfile encoderProfile, boolean reorder) {
+            SimulatedFrameEncoder encoder = new SimulatedFrameEncoder(encoderProfile, encoderThread, reorder);
+            encoders.add(encoder);
+            return encoder;
+        }
+
+        SimulatedFrameSink addOutput(SimulatedStageProfile renderProfile, SimulatedStageProfile encoderProfile, boolean reorder) {
+            SimulatedFrameEncoder encoder = addEncoder(encoderProfile, reorder);
+            SimulatedFrameSink sink = new SimulatedFrameSink(SimulatedStageProfile.of(0, 0));
+            pipeline.addOutput(new SimulatedFrameRenderer(renderProfile, encoder), encoder, sink);
+            return sink;
+        }
+
+        /**
+         * @return time from start until every output has finished, in nanoseconds
+         */
+        long execute() throws InterruptedException {
+            long startNanos = System.nanoTime();
+            for (SimulatedFrameEncoder encoder : encoders) {
+                encoder.start();
+            }
+            pipeline.start();
+            assertTrue("pipeline did not finish", finished.await(10, TimeUnit.SECONDS));
+            long elapsedNanos = System.nanoTime() - startNanos;
+            pipeline.release();
+            return elapsedNanos;
+        }
+
+        @Override
+        public void onProgress(double progress) {
+            lastProgress = progress;
+        }
+
+        @Override
+        public void onFinished() {
+            finishedCalls.incrementAndGet();
+            finished.countDown();
+        }
+
+        @Override
+        public void onError(Exception e) {
+            error = e;
+            failed.countDown();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package ai.deepar.video_processing_example;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    @Test
+    public void reportsZeroWhenEmpty() {
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanNanos());
+        assertEquals(0, histogram.getMaxNanos());
+        assertEquals(0, histogram.getPercentileNanos(50));
+        assertEquals(0, histogram.getPercentileNanos(100));
+    }
+
+    @Test
+    public void bucketsByPowersOfTwo() {
+        // 0 | 1 | 2, 3 | 4..7 | ... | 4096..8191
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(2);
+        histogram.record(3);
+        histogram.record(4);
+        histogram.record(7);
+        histogram.record(5000);
+
+        assertEquals(0, histogram.getPercentileNanos(14));
+        assertEquals(1, histogram.getPercentileNanos(28));
+        assertEquals(3, histogram.getPercentileNanos(29));
+        assertEquals(3, histogram.getPercentileNanos(57));
+        assertEquals(7, histogram.getPercentileNanos(58));
+        assertEquals(7, histogram.getPercentileNanos(85));
+        // The last bucket reaches 8191, but nothing above the maximum was recorded.
+        assertEquals(5000, histogram.getPercentileNanos(86));
+        assertEquals(5000, histogram.getPercentileNanos(100));
+    }
+
+    @Test
+    public void reportsTheUpperBoundOfThePercentilesBucket() {
+        for (int i = 0; i < 90; i++) {
+            histogram.record(100);
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.record(10_000);
+        }
+        histogram.record(1_000_000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals((90 * 100 + 9 * 10_000 + 1_000_000) / 100, histogram.getMeanNanos());
+        assertEquals(1_000_000, histogram.getMaxNanos());
+        // 100 is in [64, 128), 10000 in [8192, 16384).
+        assertEquals(127, histogram.getPercentileNanos(50));
+        assertEquals(127, histogram.getPercentileNanos(90));
+        assertEquals(16383, histogram.getPercentileNanos(91));
+        assertEquals(16383, histogram.getPercentileNanos(99));
+        assertEquals(1_000_000, histogram.getPercentileNanos(99.9));
+    }
+
+    @Test
+    public void countsNegativeLatenciesAsZero() {
+        histogram.record(-5);
+        histogram.record(8);
+
+        assertEquals(2, histogram.getCount());
+        assertEquals(4, histogram.getMeanNanos());
+        assertEquals(0, histogram.getPercentileNanos(50));
+        assertEquals(8, histogram.getPercentileNanos(100));
+    }
+
+    @Test
+    public void resetForgetsEverySample() {
+        histogram.record(1_000);
+        histogram.record(1_000_000);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxNanos());
+        assertEquals(0, histogram.getPercentileNanos(100));
+
+        histogram.record(3);
+        assertEquals(3, histogram.getMeanNanos());
+        assertEquals(3, histogram.getPercentileNanos(50));
+    }
+}
@@ -0,0 +1,81 @@
+package ai.deepar.video_processing_example;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Minimal ISO BMFF box parser for checking written files.
+ */
+class Mp4Box {
+
+    private static final List<String> CONTAINERS = Arrays.asList("moov", "trak", "mdia", "minf", "dinf", "stbl", "mvex", "moof", "traf");
+
+    final String type;
+    final int offset;
+    final int size;
+    final ByteBuffer payload;
+    final List<Mp4Box> children = new ArrayList<>();
+
+    private Mp4Box(String type, int offset, int size, ByteBuffer payload) {
+        this.type = type;
+        this.offset = offset;
+        this.size = size;
+        this.payload = payload;
+    }
+
+    static List<Mp4Box> parse(ByteBuffer file) {
+        return parse(file, 0, file.limit());
+    }
+
+    private static List<Mp4Box> parse(ByteBuffer file, int start, int end) {
+        List<Mp4Box> boxes = new ArrayList<>();
+        int position = start;
+        while (position < end) {
+            int size = file.getInt(position);
+            if (size < 8 || position + size > end) {
+                throw new AssertionError("bad box size " + size + " at " + position);
+            }
+            byte[] type = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                type[i] = file.get(position + 4 + i);
+            }
+            ByteBuffer payload = file.duplicate();
+            payload.limit(position + size).position(position + 8);
+            Mp4Box box = new Mp4Box(new String(type), position, size, payload.slice());
+            if (CONTAINERS.contains(box.type)) {
+                box.children.addAll(parse(file, position + 8, position + size));
+            }
+            boxes.add(box);
+            position += size;
+        }
+        return boxes;
+    }
+
+    Mp4Box find(String path) {
+        Mp4Box box = this;
+        for (String type : path.split("/")) {
+            Mp4Box next = null;
+            for (Mp4Box child : box.children) {
+                if (child.type.equals(type)) {
+                    next = child;
+                    break;
+                }
+            }
+            if (next == null) {
+                throw new AssertionError("no " + path + " in " + this.type);
+            }
+            box = next;
+        }
+        return box;
+    }
+
+    static List<String> types(List<Mp4Box> boxes) {
+        List<String> types = new ArrayList<>();
+        for (Mp4Box box : boxes) {
+            types.add(box.type);
+        }
+        return types;
+    }
+}
@@ -0,0 +1,370 @@
+package ai.deepar.video_processing_example;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Mp4DemuxerTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int TIMESCALE = 30_000;
+    private static final int SAMPLE_DELTA = 1000;
+
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1e, (byte) 0xda, 0x02, (byte) 0x80, (byte) 0xbf, (byte) 0xe5};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    // I P B I P B in decode order, presented as I B P I B P.
+    private static final int[] COMPOSITION_OFFSETS = {1000, 2000, 0, 1000, 2000, 0};
+    private static final long[] PRESENTATION_TIMES_US = {0, 66_666, 33_333, 100_000, 166_666, 133_333};
+    private static final int[] SYNC_SAMPLES = {0, 3};
+    // Two samples in each of the first two chunks, then one per chunk.
+    private static final int[] CHUNK_SIZES = {2, 2, 1, 1};
+    private static final int CHUNK_GAP = 3;
+
+    private final List<File> files = new ArrayList<>();
+    private final List<RandomAccessFile> openFiles = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException {
+        Mp4Demuxer.clearCache();
+        for (RandomAccessFile file : openFiles) {
+            file.close();
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void parsesTrackAndSampleTable() throws IOException {
+        TestFile file = buildFile(false);
+        Mp4Demuxer demuxer = open(file, null);
+
+        assertEquals(WIDTH, demuxer.getWidth());
+        assertEquals(HEIGHT, demuxer.getHeight());
+        assertEquals(90, demuxer.getRotation());
+        assertEquals(200_000, demuxer.getDurationUs());
+        assertEquals(30, demuxer.getFrameRate(), 0.01f);
+        assertArrayEquals(SPS, demuxer.getSps());
+        assertArrayEquals(PPS, demuxer.getPps());
+
+        Mp4SampleIndex index = demuxer.getSampleIndex();
+        assertEquals(file.samples.size(), index.size());
+        int maxSize = 0;
+        for (int i = 0; i < index.size(); i++) {
+            assertEquals(file.offsets.get(i).longValue(), index.getOffset(i));
+            assertEquals(file.samples.get(i).length, index.getSize(i));
+            assertEquals(PRESENTATION_TIMES_US[i], index.getPresentationTimeUs(i));
+            assertEquals(i == 0 || i == 3, index.isSync(i));
+            maxSize = Math.max(maxSize, file.samples.get(i).length);
+        }
+        assertEquals(maxSize, index.getMaxSampleSize());
+        assertEquals(2, index.getSyncSampleCount());
+        assertEquals(3, index.getSyncSample(1));
+    }
+
+    @Test
+    public void readsSixtyFourBitChunkOffsets() throws IOException {
+        TestFile file = buildFile(true);
+        Mp4SampleIndex index = open(file, null).getSampleIndex();
+
+        for (int i = 0; i < index.size(); i++) {
+            assertEquals(file.offsets.get(i).longValue(), index.getOffset(i));
+        }
+    }
+
+    @Test
+    public void servesSamplesAsSlicesOfTheMapping() throws IOException {
+        TestFile file = buildFile(false);
+        Mp4Demuxer demuxer = open(file, null);
+
+        // Out of decode order on purpose.
+        for (int i : new int[]{4, 0, 5, 2}) {
+            ByteBuffer sample = demuxer.getSample(i);
+            assertTrue(sample.isDirect());
+            assertTrue(sample.isReadOnly());
+            assertEquals(0, sample.position());
+            assertArrayEquals(file.samples.get(i), remaining(sample));
+        }
+    }
+
+    @Test
+    public void convertsSamplesToAnnexB() throws IOException {
+        TestFile file = buildFile(false);
+        Mp4Demuxer demuxer = open(file, null);
+        ByteBuffer buffer = ByteBuffer.allocate(demuxer.getMaxAnnexBSampleSize());
+
+        int size = demuxer.readSampleAnnexB(0, buffer);
+        buffer.flip();
+        assertEquals(buffer.remaining(), size);
+        assertArrayEquals(new byte[]{0, 0, 0, 1, 0x06, 0x05, 0, 0, 0, 1, 0x65, 0}, remaining(buffer));
+
+        buffer.clear();
+        demuxer.readSampleAnnexB(4, buffer);
+        buffer.flip();
+        assertArrayEquals(new byte[]{0, 0, 0, 1, 0x41, 4, (byte) 0x80}, remaining(buffer));
+    }
+
+    @Test
+    public void findsTheSyncSampleAtOrBeforeATime() throws IOException {
+        Mp4SampleIndex index = open(buildFile(false), null).getSampleIndex();
+
+        assertEquals(0, index.findSyncSample(0));
+        assertEquals(0, index.findSyncSample(99_999));
+        assertEquals(3, index.findSyncSample(100_000));
+        assertEquals(3, index.findSyncSample(Long.MAX_VALUE));
+        assertEquals(0, index.findSyncSample(-1));
+    }
+
+    @Test
+    public void frameSourceReadsARangeBetweenSyncSamples() throws IOException {
+        Mp4Demuxer demuxer = open(buildFile(false), null);
+
+        assertArrayEquals(new long[]{0, 66_666, 33_333}, readTimes(new Mp4FrameSource(demuxer, 0, 100_000)));
+        assertArrayEquals(new long[]{100_000, 166_666, 133_333}, readTimes(new Mp4FrameSource(demuxer, 120_000, Long.MAX_VALUE)));
+        assertArrayEquals(PRESENTATION_TIMES_US, readTimes(new Mp4FrameSource(demuxer, 0, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void cachesTheParsedTrackPerKey() throws IOException {
+        TestFile file = buildFile(false);
+
+        Mp4SampleIndex first = open(file, "video:1").getSampleIndex();
+        assertSame(first, open(file, "video:1").getSampleIndex());
+        assertNotSame(first, open(file, "video:2").getSampleIndex());
+        assertNotSame(first, open(file, null).getSampleIndex());
+    }
+
+    @Test
+    public void parsesACachedFileAgainOnceItHasChanged() throws IOException {
+        TestFile file = buildFile(false);
+        Mp4SampleIndex first = open(file, "video:1").getSampleIndex();
+
+        // Same key and size, but every sample lasts twice as long.
+        setInt(file, "stts", 12, 2 * SAMPLE_DELTA);
+        Mp4SampleIndex second = open(file, "video:1").getSampleIndex();
+        assertNotSame(first, second);
+        assertEquals(2 * PRESENTATION_TIMES_US[3], second.getPresentationTimeUs(3), 1);
+    }
+
+    @Test
+    public void rejectsMalformedTablesWithIOException() {
+        TestFile noTimescale = buildFile(false);
+        setInt(noTimescale, "mdhd", 12, 0);
+        TestFile tooManySamples = buildFile(false);
+        setInt(tooManySamples, "stsz", 8, Integer.MAX_VALUE);
+        for (TestFile file : new TestFile[]{noTimescale, tooManySamples}) {
+            try {
+                open(file, null);
+                fail();
+            } catch (IOException e) {
+                assertFalse(e.getMessage().isEmpty());
+            }
+        }
+    }
+
+    @Test
+    public void rejectsFilesWithoutSampleTable() throws IOException {
+        TestFile file = new TestFile();
+        file.bytes = concat(box("ftyp", ascii("isom"), new byte[4]), box("mdat", new byte[16]));
+        try {
+            open(file, null);
+            fail();
+        } catch (IOException e) {
+            assertFalse(e.getMessage().isEmpty());
+        }
+    }
+
+    private static long[] readTimes(FrameSource source) {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        List<Long> times = new ArrayList<>();
+        do {
+            assertTrue(source.readSampleData(buffer) > 0);
+            times.add(source.getSampleTime());
+        } while (source.advance());
+        long[] result = new long[times.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = times.get(i);
+        }
+        return result;
+    }
+
+    private Mp4Demuxer open(TestFile testFile, String cacheKey) throws IOException {
+        File file = File.createTempFile("demuxer", ".mp4");
+        files.add(file);
+        Files.write(file.toPath(), testFile.bytes);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        openFiles.add(randomAccessFile);
+        return Mp4Demuxer.open(randomAccessFile.getChannel(), cacheKey);
+    }
+
+    private static TestFile buildFile(boolean use64BitOffsets) {
+        TestFile file = new TestFile();
+        for (int i = 0; i < COMPOSITION_OFFSETS.length; i++) {
+            boolean sync = i == 0 || i == 3;
+            ByteBuffer sample = ByteBuffer.allocate(16);
+            if (i == 0) {
+                sample.putShort((short) 2).put((byte) 0x06).put((byte) 0x05);
+            }
+            if (sync) {
+                sample.putShort((short) 2).put((byte) 0x65).put((byte) i);
+            } else {
+                sample.putShort((short) 3).put((byte) 0x41).put((byte) i).put((byte) 0x80);
+            }
+            sample.flip();
+            file.samples.add(remaining(sample));
+        }
+
+        byte[] ftyp = box("ftyp", ascii("isom"), new byte[4], ascii("isom"));
+        ByteArrayOutputStream mdatPayload = new ByteArrayOutputStream();
+        List<Long> chunkOffsets = new ArrayList<>();
+        int sample = 0;
+        for (int chunkSize : CHUNK_SIZES) {
+            mdatPayload.write(new byte[CHUNK_GAP], 0, CHUNK_GAP);
+            long offset = ftyp.length + 8 + mdatPayload.size();
+            chunkOffsets.add(offset);
+            for (int i = 0; i < chunkSize; i++, sample++) {
+                file.offsets.add(offset);
+                byte[] data = file.samples.get(sample);
+                mdatPayload.write(data, 0, data.length);
+                offset += data.length;
+            }
+        }
+        byte[] mdat = box("mdat", mdatPayload.toByteArray());
+
+        ByteBuffer stsz = ByteBuffer.allocate(12 + 4 * file.samples.size());
+        stsz.putInt(0).putInt(0).putInt(file.samples.size());
+        for (byte[] data : file.samples) {
+            stsz.putInt(data.length);
+        }
+        ByteBuffer stsc = ByteBuffer.allocate(8 + 12 * 2);
+        stsc.putInt(0).putInt(2).putInt(1).putInt(2).putInt(1).putInt(3).putInt(1).putInt(1);
+        ByteBuffer chunkOffsetTable = ByteBuffer.allocate(8 + (use64BitOffsets ? 8 : 4) * chunkOffsets.size());
+        chunkOffsetTable.putInt(0).putInt(chunkOffsets.size());
+        for (long offset : chunkOffsets) {
+            if (use64BitOffsets) {
+                chunkOffsetTable.putLong(offset);
+            } else {
+                chunkOffsetTable.putInt((int) offset);
+            }
+        }
+        ByteBuffer stts = ByteBuffer.allocate(16);
+        stts.putInt(0).putInt(1).putInt(file.samples.size()).putInt(SAMPLE_DELTA);
+        ByteBuffer ctts = ByteBuffer.allocate(8 + 8 * COMPOSITION_OFFSETS.length);
+        ctts.putInt(0).putInt(COMPOSITION_OFFSETS.length);
+        for (int offset : COMPOSITION_OFFSETS) {
+            ctts.putInt(1).putInt(offset);
+        }
+        ByteBuffer stss = ByteBuffer.allocate(8 + 4 * SYNC_SAMPLES.length);
+        stss.putInt(0).putInt(SYNC_SAMPLES.length);
+        for (int syncSample : SYNC_SAMPLES) {
+            stss.putInt(syncSample + 1);
+        }
+
+        // 2-byte NAL unit lengths, to exercise the start code conversion.
+        ByteBuffer avcC = ByteBuffer.allocate(11 + SPS.length + PPS.length);
+        avcC.put((byte) 1).put(SPS[1]).put(SPS[2]).put(SPS[3]).put((byte) 0xfd).put((byte) 0xe1)
+                .putShort((short) SPS.length).put(SPS).put((byte) 1).putShort((short) PPS.length).put(PPS);
+        ByteBuffer avc1 = ByteBuffer.allocate(78);
+        avc1.position(24);
+        avc1.putShort((short) WIDTH).putShort((short) HEIGHT);
+        byte[] stsd = concat(intBytes(0), intBytes(1), box("avc1", avc1.array(), box("avcC", avcC.array())));
+
+        byte[] stbl = box("stbl",
+                box("stsd", stsd),
+                box("stts", stts.array()),
+                box("ctts", ctts.array()),
+                box("stss", stss.array()),
+                box("stsc", stsc.array()),
+                box("stsz", stsz.array()),
+                box(use64BitOffsets ? "co64" : "stco", chunkOffsetTable.array()));
+
+        ByteBuffer mdhd = ByteBuffer.allocate(24);
+        mdhd.putInt(0).putInt(0).putInt(0).putInt(TIMESCALE).putInt(SAMPLE_DELTA * file.samples.size());
+        ByteBuffer hdlr = ByteBuffer.allocate(25);
+        hdlr.putInt(0).putInt(0).put(ascii("vide"));
+        ByteBuffer tkhd = ByteBuffer.allocate(84);
+        tkhd.position(40);
+        // Rotated by 90 degrees.
+        tkhd.putInt(0).putInt(0x00010000).putInt(0).putInt(-0x00010000).putInt(0).putInt(0).putInt(0).putInt(0).putInt(0x40000000);
+        tkhd.putInt(HEIGHT << 16).putInt(WIDTH << 16);
+        // The presentation starts one frame into the media timeline.
+        ByteBuffer elst = ByteBuffer.allocate(20);
+        elst.putInt(0).putInt(1).putInt(SAMPLE_DELTA * file.samples.size()).putInt(SAMPLE_DELTA).putInt(0x00010000);
+
+        byte[] trak = box("trak",
+                box("tkhd", tkhd.array()),
+                box("edts", box("elst", elst.array())),
+                box("mdia",
+                        box("mdhd", mdhd.array()),
+                        box("hdlr", hdlr.array()),
+                        box("minf", stbl)));
+        file.bytes = concat(ftyp, mdat, box("moov", box("mvhd", new byte[100]), trak));
+        return file;
+    }
+
+    /**
+     * Overwrites an int in the payload of the first box of the type.
+     */
+    private static void setInt(TestFile file, String type, int payloadOffset, int value) {
+        byte[] fourCc = ascii(type);
+        for (int i = 0; i + 4 <= file.bytes.length; i++) {
+            if (file.bytes[i] == fourCc[0] && file.bytes[i + 1] == fourCc[1] && file.bytes[i + 2] == fourCc[2] && file.bytes[i + 3] == fourCc[3]) {
+                ByteBuffer.wrap(file.bytes).putInt(i + 4 + payloadOffset, value);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("No " + type + " box");
+    }
+
+    private static byte[] box(String type, byte[]... payloads) {
+        byte[] payload = concat(payloads);
+        return concat(intBytes(8 + payload.length), ascii(type), payload);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] intBytes(int value) {
+        return ByteBuffer.allocate(4).putInt(value).array();
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] remaining(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static class TestFile {
+        final List<byte[]> samples = new ArrayList<>();
+        final List<Long> offsets = new ArrayList<>();
+        byte[] bytes;
+    }
+}
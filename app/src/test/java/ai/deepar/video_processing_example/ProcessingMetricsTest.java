@@ -0,0 +1,89 @@
+package ai.deepar.video_processing_example;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessingMetricsTest {
+
+    private static final String IDLE_STAGE = "{\"count\":0,\"meanUs\":0,\"p50Us\":0,\"p99Us\":0,\"maxUs\":0}";
+    private static final String ZERO_STAGE = "{\"count\":1,\"meanUs\":0,\"p50Us\":0,\"p99Us\":0,\"maxUs\":0}";
+
+    @Test
+    public void reportsStagesAndCountersAsJson() {
+        // Never started, so nothing in the report depends on the clock.
+        ProcessingMetrics metrics = new ProcessingMetrics();
+        for (int i = 0; i < 98; i++) {
+            metrics.recordLatency(ProcessingMetrics.STAGE_PACK, 3_000);
+        }
+        metrics.recordLatency(ProcessingMetrics.STAGE_PACK, 600_000);
+        metrics.recordLatency(ProcessingMetrics.STAGE_PACK, 2_000_000);
+        metrics.recordLatency(ProcessingMetrics.STAGE_RENDER, 0);
+        metrics.recordLatency(ProcessingMetrics.STAGE_READ, -5);
+        metrics.recordQueueDepth(ProcessingMetrics.QUEUE_RENDER, 3);
+        metrics.recordQueueDepth(ProcessingMetrics.QUEUE_RENDER, 7);
+        metrics.recordQueueDepth(ProcessingMetrics.QUEUE_RENDER, 2);
+        metrics.onFrameDecoded();
+        metrics.onFrameDecoded();
+        metrics.onFramesEncoded(2);
+        metrics.setFramesDropped(1);
+        metrics.onEngineAcquired(true);
+        metrics.onBytesMuxed(4096);
+
+        ProcessingMetrics.Snapshot snapshot = metrics.snapshot();
+
+        // Pack: 3000 ns is in [2048, 4096), 600000 ns in [524288, 1048576).
+        assertEquals(28_940, snapshot.getStageMeanNanos(ProcessingMetrics.STAGE_PACK));
+        assertEquals(1_048_575, snapshot.getStageP99Nanos(ProcessingMetrics.STAGE_PACK));
+        assertEquals(7, snapshot.getPeakQueueDepth(ProcessingMetrics.QUEUE_RENDER));
+        assertEquals("{\"finished\":false,\"elapsedMs\":0"
+                + ",\"framesDecoded\":2,\"framesRendered\":0,\"framesEncoded\":2"
+                + ",\"framesDropped\":1,\"framesSkipped\":0,\"bytesMuxed\":4096"
+                + ",\"timeToFirstFrameMs\":-1,\"warmEngines\":1,\"coldEngines\":0"
+                + ",\"readAheadUnderruns\":0,\"readAheadFullStalls\":0,\"fps\":0.00"
+                + ",\"stages\":{"
+                + "\"extract\":" + IDLE_STAGE
+                + ",\"decoderOutput\":" + IDLE_STAGE
+                + ",\"pack\":{\"count\":100,\"meanUs\":28,\"p50Us\":4,\"p99Us\":1048,\"maxUs\":2000}"
+                + ",\"render\":" + ZERO_STAGE
+                + ",\"encoderDrain\":" + IDLE_STAGE
+                + ",\"mux\":" + IDLE_STAGE
+                + ",\"read\":" + ZERO_STAGE
+                + "},\"peakQueueDepths\":{"
+                + "\"pack\":0,\"render\":7,\"framesInFlight\":0,\"pendingDecoderOutput\":0,\"readAhead\":0"
+                + "}}", snapshot.toJson());
+    }
+
+    @Test
+    public void reportsRateAndTimesInMilliseconds() {
+        ProcessingMetrics.Snapshot snapshot = new ProcessingMetrics.Snapshot(
+                ProcessingMetrics.STAGE_NAMES.length, ProcessingMetrics.QUEUE_NAMES.length);
+        snapshot.finished = true;
+        snapshot.elapsedNanos = 2_000_999_999L;
+        snapshot.framesEncoded = 61;
+        snapshot.timeToFirstFrameNanos = 150_400_000L;
+
+        assertEquals(30.48, snapshot.getFps(), 0.01);
+        assertEquals(150, snapshot.getTimeToFirstFrameMs());
+        String json = snapshot.toJson();
+        assertTrue(json, json.startsWith("{\"finished\":true,\"elapsedMs\":2000,"));
+        assertTrue(json, json.contains(",\"timeToFirstFrameMs\":150,"));
+        assertTrue(json, json.contains(",\"fps\":30.48,"));
+    }
+
+    @Test
+    public void startClearsThePreviousJob() {
+        ProcessingMetrics metrics = new ProcessingMetrics();
+        metrics.recordLatency(ProcessingMetrics.STAGE_MUX, 1_000);
+        metrics.recordQueueDepth(ProcessingMetrics.QUEUE_PACK, 4);
+        metrics.onFramesEncoded(10);
+        metrics.start();
+
+        ProcessingMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(0, snapshot.getStageMeanNanos(ProcessingMetrics.STAGE_MUX));
+        assertEquals(0, snapshot.getPeakQueueDepth(ProcessingMetrics.QUEUE_PACK));
+        assertEquals(0, snapshot.getFramesEncoded());
+        assertEquals(-1, snapshot.getTimeToFirstFrameMs());
+    }
+}
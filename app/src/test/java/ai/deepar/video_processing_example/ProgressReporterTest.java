@@ -0,0 +1,113 @@
+package ai.deepar.video_processing_example;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProgressReporterTest {
+
+    private static final long MS = 1_000_000;
+
+    // Stands in for the main thread's message queue.
+    private final Queue<Runnable> pending = new ArrayDeque<>();
+    private final List<ProgressReporter.Snapshot> delivered = new ArrayList<>();
+    private final ProgressReporter reporter = new ProgressReporter(pending::add, 100, delivered::add);
+
+    @Test
+    public void keepsAtMostOneDeliveryPending() {
+        for (int frame = 1; frame <= 1000; frame++) {
+            reporter.update(frame / 10.0, frame, frame * MS);
+        }
+        assertEquals(1, pending.size());
+
+        // The delivery reports the last sample, not the one it was scheduled for.
+        runPending();
+        assertEquals(1, delivered.size());
+        ProgressReporter.Snapshot snapshot = delivered.get(0);
+        assertEquals(901, snapshot.getFramesDone());
+        assertEquals(90.1, snapshot.getPercent(), 0);
+    }
+
+    @Test
+    public void samplesAtMostOncePerInterval() {
+        // 240 fps for one second, with the main thread keeping up.
+        for (int frame = 0; frame < 240; frame++) {
+            reporter.update(frame / 2.4, frame, frame * 1_000_000_000L / 240);
+            runPending();
+        }
+        assertEquals(10, delivered.size());
+    }
+
+    @Test
+    public void estimatesRateAndRemainingTime() {
+        ProgressReporter.Snapshot snapshot = feed(0, 1, 60, 1);
+        assertEquals(0, delivered.get(0).getFramesPerSecond(), 0);
+        assertEquals(-1, delivered.get(0).getEtaMs());
+
+        // 60 fps, one percent per second.
+        assertEquals(60, snapshot.getFramesPerSecond(), 0.01);
+        assertEquals(99_000, snapshot.getEtaMs(), 10);
+    }
+
+    @Test
+    public void smoothsRateChanges() {
+        feed(0, 10, 60, 1);
+        ProgressReporter.Snapshot afterOneSample = feed(10_100, 0.1, 30, 1);
+        assertTrue(afterOneSample.getFramesPerSecond() < 60);
+        assertTrue(afterOneSample.getFramesPerSecond() > 55);
+
+        ProgressReporter.Snapshot settled = feed(10_200, 20, 30, 1);
+        assertEquals(30, settled.getFramesPerSecond(), 0.1);
+    }
+
+    @Test
+    public void flushPublishesTheLatestUpdate() {
+        reporter.update(10, 10, 0);
+        reporter.update(100, 100, 50 * MS);
+        runPending();
+        assertEquals(10.0, last().getPercent(), 0);
+
+        reporter.flush(60 * MS);
+        runPending();
+        assertEquals(100.0, last().getPercent(), 0);
+        assertEquals(2, delivered.size());
+
+        reporter.flush(70 * MS);
+        runPending();
+        assertEquals(2, delivered.size());
+    }
+
+    /**
+     * Feeds frames at a constant rate, starting at {@code startMs}, and delivers every snapshot.
+     *
+     * @return the last snapshot delivered
+     */
+    private ProgressReporter.Snapshot feed(long startMs, double seconds, int framesPerSecond, double percentPerSecond) {
+        long frames = delivered.isEmpty() ? 0 : last().getFramesDone();
+        double percent = delivered.isEmpty() ? 0 : last().getPercent();
+        int frameCount = (int) (seconds * framesPerSecond);
+        for (int i = 0; i <= frameCount; i++) {
+            long timeNanos = startMs * MS + i * 1_000_000_000L / framesPerSecond;
+            reporter.update(percent + percentPerSecond * i / framesPerSecond, frames + i, timeNanos);
+            runPending();
+        }
+        return last();
+    }
+
+    private ProgressReporter.Snapshot last() {
+        return delivered.get(delivered.size() - 1);
+    }
+
+    private void runPending() {
+        Runnable runnable;
+        while ((runnable = pending.poll()) != null) {
+            runnable.run();
+        }
+    }
+}
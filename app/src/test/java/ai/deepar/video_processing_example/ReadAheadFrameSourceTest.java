@@ -0,0 +1,190 @@
+package ai.deepar.video_processing_example;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReadAheadFrameSourceTest {
+
+    private final ProcessingMetrics metrics = new ProcessingMetrics();
+    private ReadAheadFrameSource readAhead;
+
+    @After
+    public void tearDown() {
+        if (readAhead != null) {
+            readAhead.release();
+        }
+    }
+
+    @Test
+    public void passesOnEverySampleInOrder() {
+        start(new SimulatedFrameSource(50, SimulatedStageProfile.of(0, 0)), 4, 16);
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        for (int frame = 0; frame < 50; frame++) {
+            assertEquals(4, readAhead.readSampleData(buffer));
+            assertEquals(0, buffer.position());
+            assertEquals(frame, buffer.getInt(0));
+            assertEquals(frame * SimulatedFrameSource.FRAME_DURATION_US, readAhead.getSampleTime());
+            assertEquals(frame < 49, readAhead.advance());
+        }
+        assertEquals(-1, readAhead.readSampleData(buffer));
+        assertEquals(-1, readAhead.getSampleTime());
+        assertFalse(readAhead.advance());
+    }
+
+    @Test
+    public void carriesSampleFlags() {
+        start(new SimulatedFrameSource(25, SimulatedStageProfile.of(0, 0)), 4, 16);
+        for (int frame = 0; frame < 25; frame++) {
+            int expected = frame % SimulatedFrameSource.SYNC_INTERVAL == 0 ? FramePipeline.FLAG_KEY_FRAME : 0;
+            assertEquals("frame " + frame, expected, readAhead.getSampleFlags());
+            readAhead.advance();
+        }
+    }
+
+    @Test
+    public void rethrowsReadErrorsToTheConsumer() {
+        IllegalStateException error = new IllegalStateException("read failed");
+        start(new SizedFrameSource(new int[]{10, 10, 10, 10}, 2, error), 4, 16);
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(10, readAhead.readSampleData(buffer));
+            assertTrue(readAhead.advance());
+        }
+        try {
+            readAhead.readSampleData(buffer);
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(error, e);
+        }
+        try {
+            readAhead.advance();
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(error, e);
+        }
+    }
+
+    @Test
+    public void rereadsTheCurrentSample() {
+        start(new SimulatedFrameSource(3, SimulatedStageProfile.of(0, 0)), 2, 16);
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        readAhead.readSampleData(buffer);
+        buffer.clear();
+        assertEquals(4, readAhead.readSampleData(buffer));
+        assertEquals(0, buffer.getInt(0));
+        readAhead.advance();
+        readAhead.readSampleData(buffer);
+        assertEquals(1, buffer.getInt(0));
+    }
+
+    @Test
+    public void endsAnEmptySource() {
+        start(new SimulatedFrameSource(0, SimulatedStageProfile.of(0, 0)), 2, 16);
+        assertEquals(-1, readAhead.readSampleData(ByteBuffer.allocate(16)));
+    }
+
+    @Test
+    public void growsBuffersForLargeSamples() {
+        start(new SizedFrameSource(new int[]{10, 100, 1000}), 2, 16);
+        ByteBuffer buffer = ByteBuffer.allocate(1000);
+        for (int expectedSize : new int[]{10, 100, 1000}) {
+            assertEquals(expectedSize, readAhead.readSampleData(buffer));
+            assertEquals(expectedSize, buffer.limit());
+            assertEquals((byte) expectedSize, buffer.get(expectedSize - 1));
+            readAhead.advance();
+        }
+    }
+
+    @Test
+    public void countsUnderrunsWhenReadingIsSlow() {
+        start(new SimulatedFrameSource(10, SimulatedStageProfile.of(2_000, 0)), 4, 16);
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        for (int frame = 0; frame < 10; frame++) {
+            readAhead.readSampleData(buffer);
+            readAhead.advance();
+        }
+        assertTrue(readAhead.getUnderrunCount() >= 5);
+        assertEquals(readAhead.getUnderrunCount(), metrics.snapshot().getReadAheadUnderruns());
+    }
+
+    @Test
+    public void countsFullStallsWhenDecodingIsSlow() throws InterruptedException {
+        start(new SimulatedFrameSource(10, SimulatedStageProfile.of(0, 0)), 2, 16);
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        for (int frame = 0; frame < 10; frame++) {
+            Thread.sleep(2);
+            readAhead.readSampleData(buffer);
+            readAhead.advance();
+        }
+        assertEquals(0, readAhead.getUnderrunCount());
+        assertTrue(readAhead.getFullStallCount() >= 5);
+        assertEquals(readAhead.getFullStallCount(), metrics.snapshot().getReadAheadFullStalls());
+    }
+
+    private void start(FrameSource source, int depth, int bufferCapacity) {
+        readAhead = new ReadAheadFrameSource(source, depth, bufferCapacity, metrics);
+        readAhead.start();
+    }
+
+    /**
+     * Samples of the given sizes, filled with their size.
+     */
+    private static class SizedFrameSource implements FrameSource {
+
+        private final int[] sizes;
+        private final int failingSample;
+        private final RuntimeException error;
+        private int sample;
+
+        SizedFrameSource(int[] sizes) {
+            this(sizes, -1, null);
+        }
+
+        /**
+         * @param failingSample index of the sample whose read throws {@code error}
+         */
+        SizedFrameSource(int[] sizes, int failingSample, RuntimeException error) {
+            this.sizes = sizes;
+            this.failingSample = failingSample;
+            this.error = error;
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer) {
+            if (sample == failingSample) {
+                throw error;
+            }
+            if (sample >= sizes.length) {
+                return -1;
+            }
+            for (int i = 0; i < sizes[sample]; i++) {
+                buffer.put((byte) sizes[sample]);
+            }
+            return sizes[sample];
+        }
+
+        @Override
+        public long getSampleTime() {
+            return sample;
+        }
+
+        @Override
+        public int getSampleFlags() {
+            return 0;
+        }
+
+        @Override
+        public boolean advance() {
+            sample++;
+            return sample < sizes.length;
+        }
+    }
+}
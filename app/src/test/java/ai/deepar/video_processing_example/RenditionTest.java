@@ -0,0 +1,40 @@
+package ai.deepar.video_processing_example;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+
+public class RenditionTest {
+
+    private static final File FILE = new File("out.mp4");
+
+    @Test
+    public void scalesTheShortSide() {
+        Rendition rendition = new Rendition(720, FILE);
+        assertEquals(1280, rendition.getWidth(1920, 1080));
+        assertEquals(720, rendition.getHeight(1920, 1080));
+        // Portrait.
+        assertEquals(720, rendition.getWidth(1080, 1920));
+        assertEquals(1280, rendition.getHeight(1080, 1920));
+    }
+
+    @Test
+    public void keepsDimensionsEven() {
+        Rendition rendition = new Rendition(480, FILE);
+        // 1920 * 480 / 1080 = 853.3
+        assertEquals(852, rendition.getWidth(1920, 1080));
+        assertEquals(480, rendition.getHeight(1920, 1080));
+    }
+
+    @Test
+    public void neverScalesUp() {
+        Rendition rendition = new Rendition(1080, FILE);
+        assertEquals(1280, rendition.getWidth(1280, 720));
+        assertEquals(720, rendition.getHeight(1280, 720));
+        Rendition full = new Rendition(0, FILE);
+        assertEquals(1920, full.getWidth(1920, 1080));
+        assertEquals(1080, full.getHeight(1920, 1080));
+    }
+}
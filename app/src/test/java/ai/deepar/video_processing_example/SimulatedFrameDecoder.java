@@ -0,0 +1,110 @@
+package ai.deepar.video_processing_example;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Decoder with a fixed number of input and output buffers, decoding on its own thread. Output
+ * buffers that are not released stall decoding, and with it the return of input buffers.
+ */
+class SimulatedFrameDecoder implements FrameDecoder {
+
+    private final SimulatedStageProfile profile;
+    private final Executor callbackExecutor;
+    private final ByteBuffer[] inputBuffers;
+    private final SimulatedFramePlanes[] outputFrames;
+    private final BlockingQueue<long[]> queuedInput = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Integer> freeOutputBuffers;
+    private final Thread thread = new Thread(this::decode, "simulated-decoder");
+    private Callback callback;
+
+    /**
+     * @param profile          decode cost; the buffer count applies to input and output buffers
+     * @param callbackExecutor single-threaded executor the callbacks are delivered on
+     */
+    SimulatedFrameDecoder(SimulatedStageProfile profile, int width, int height, Executor callbackExecutor) {
+        this.profile = profile;
+        this.callbackExecutor = callbackExecutor;
+        this.inputBuffers = new ByteBuffer[profile.bufferCount];
+        this.outputFrames = new SimulatedFramePlanes[profile.bufferCount];
+        this.freeOutputBuffers = new ArrayBlockingQueue<>(profile.bufferCount);
+        for (int i = 0; i < profile.bufferCount; i++) {
+            inputBuffers[i] = ByteBuffer.allocate(1024);
+            outputFrames[i] = new SimulatedFramePlanes(width, height);
+            freeOutputBuffers.add(i);
+        }
+        thread.setDaemon(true);
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public void start() {
+        thread.start();
+        for (int i = 0; i < inputBuffers.length; i++) {
+            int index = i;
+            callbackExecutor.execute(() -> callback.onInputBufferAvailable(index));
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return inputBuffers[index];
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int size, long presentationTimeUs, int flags) {
+        queuedInput.add(new long[]{index, size, presentationTimeUs, flags});
+    }
+
+    @Override
+    public FramePlanes getOutputFrame(int index) {
+        return outputFrames[index];
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        freeOutputBuffers.add(index);
+    }
+
+    void shutdown() {
+        thread.interrupt();
+    }
+
+    private void decode() {
+        try {
+            while (true) {
+                long[] input = queuedInput.take();
+                int inputIndex = (int) input[0];
+                int size = (int) input[1];
+                long presentationTimeUs = input[2];
+                int flags = (int) input[3];
+                boolean endOfStream = (flags & FramePipeline.FLAG_END_OF_STREAM) != 0;
+                if (size > 0) {
+                    profile.work();
+                }
+                if (size > 0 && !endOfStream && profile.shouldDrop()) {
+                    callbackExecutor.execute(() -> callback.onInputBufferAvailable(inputIndex));
+                    continue;
+                }
+                int outputIndex = freeOutputBuffers.take();
+                int outputSize = size > 0 ? 1 : 0;
+                callbackExecutor.execute(() -> {
+                    callback.onInputBufferAvailable(inputIndex);
+                    callback.onOutputBufferAvailable(outputIndex, presentationTimeUs, flags, outputSize);
+                });
+                if (endOfStream) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Shut down.
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package ai.deepar.video_processing_example;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Surface-input encoder encoding on its own thread. Output timestamps are the submit times
+ * passed to {@link #queueFrame(long)}. With reordering enabled every pair of frames is emitted in
+ * swapped order, as with B-frames.
+ */
+class SimulatedFrameEncoder implements FrameEncoder {
+
+    private static final long END_OF_STREAM = Long.MIN_VALUE;
+    private static final int SAMPLE_SIZE = 64;
+    private static final int KEY_FRAME_INTERVAL = 30;
+
+    private final SimulatedStageProfile profile;
+    private final Executor callbackExecutor;
+    private final boolean reorder;
+    private final BlockingQueue<Long> inputFrames;
+    private final BlockingQueue<Integer> freeOutputBuffers;
+    private final ByteBuffer[] outputBuffers;
+    private final Thread thread = new Thread(this::encode, "simulated-encoder");
+    private Callback callback;
+    private int encodedFrames;
+
+    /**
+     * @param profile          encode cost; the buffer count applies to input and output buffers
+     * @param callbackExecutor single-threaded executor the callbacks are delivered on
+     */
+    SimulatedFrameEncoder(SimulatedStageProfile profile, Executor callbackExecutor, boolean reorder) {
+        this.profile = profile;
+        this.callbackExecutor = callbackExecutor;
+        this.reorder = reorder;
+        this.inputFrames = new ArrayBlockingQueue<>(profile.bufferCount + 1);
+        this.freeOutputBuffers = new ArrayBlockingQueue<>(profile.bufferCount);
+        this.outputBuffers = new ByteBuffer[profile.bufferCount];
+        for (int i = 0; i < profile.bufferCount; i++) {
+            outputBuffers[i] = ByteBuffer.allocate(SAMPLE_SIZE);
+            freeOutputBuffers.add(i);
+        }
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void shutdown() {
+        thread.interrupt();
+    }
+
+    /**
+     * Called by the renderer; blocks while all input buffers are taken.
+     */
+    void queueFrame(long submitTimeUs) {
+        try {
+            inputFrames.put(submitTimeUs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        queueFrame(END_OF_STREAM);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        ByteBuffer buffer = outputBuffers[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        freeOutputBuffers.add(index);
+    }
+
+    private void encode() {
+        try {
+            emit(0, FramePipeline.FLAG_CODEC_CONFIG, 16);
+            long held = END_OF_STREAM;
+            while (true) {
+                long submitTimeUs = inputFrames.take();
+                if (submitTimeUs == END_OF_STREAM) {
+                    if (held != END_OF_STREAM) {
+                        emitFrame(held);
+                    }
+                    emit(0, FramePipeline.FLAG_END_OF_STREAM, 0);
+                    return;
+                }
+                profile.work();
+                if (profile.shouldDrop()) {
+                    continue;
+                }
+                if (!reorder) {
+                    emitFrame(submitTimeUs);
+                } else if (held == END_OF_STREAM) {
+                    held = submitTimeUs;
+                } else {
+                    emitFrame(submitTimeUs);
+                    emitFrame(held);
+                    held = END_OF_STREAM;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Shut down.
+        }
+    }
+
+    private void emitFrame(long presentationTimeUs) throws InterruptedException {
+        int flags = encodedFrames % KEY_FRAME_INTERVAL == 0 ? FramePipeline.FLAG_KEY_FRAME : 0;
+        encodedFrames++;
+        emit(presentationTimeUs, flags, SAMPLE_SIZE);
+    }
+
+    private void emit(long presentationTimeUs, int flags, int size) throws InterruptedException {
+        int index = freeOutputBuffers.take();
+        callbackExecutor.execute(() -> callback.onOutputBufferAvailable(index, presentationTimeUs, flags, size));
+    }
+}
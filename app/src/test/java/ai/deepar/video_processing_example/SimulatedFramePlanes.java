@@ -0,0 +1,46 @@
+package ai.deepar.video_processing_example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * I420 frame planes without row padding.
+ */
+class SimulatedFramePlanes implements FramePlanes {
+
+    private final int width;
+    private final int height;
+    private final ByteBuffer[] buffers = new ByteBuffer[3];
+
+    SimulatedFramePlanes(int width, int height) {
+        this.width = width;
+        this.height = height;
+        buffers[0] = ByteBuffer.allocateDirect(width * height);
+        buffers[1] = ByteBuffer.allocateDirect(width * height / 4);
+        buffers[2] = ByteBuffer.allocateDirect(width * height / 4);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public ByteBuffer getBuffer(int plane) {
+        return buffers[plane];
+    }
+
+    @Override
+    public int getRowStride(int plane) {
+        return plane == 0 ? width : width / 2;
+    }
+
+    @Override
+    public int getPixelStride(int plane) {
+        return 1;
+    }
+}
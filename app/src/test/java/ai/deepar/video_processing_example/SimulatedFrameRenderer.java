@@ -0,0 +1,38 @@
+package ai.deepar.video_processing_example;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renderer that spends the profile's latency per frame and then submits the frame to its
+ * encoders, stamped with the monotonic clock like an encoder input surface would.
+ */
+class SimulatedFrameRenderer implements FrameRenderer {
+
+    private final SimulatedStageProfile profile;
+    private final SimulatedFrameEncoder[] encoders;
+    private final AtomicInteger renderedFrames = new AtomicInteger();
+
+    SimulatedFrameRenderer(SimulatedStageProfile profile, SimulatedFrameEncoder... encoders) {
+        this.profile = profile;
+        this.encoders = encoders;
+    }
+
+    @Override
+    public void render(ByteBuffer buffer, int width, int height, int pixelStride, long presentationTimeUs) {
+        renderFrame();
+    }
+
+    int getRenderedFrameCount() {
+        return renderedFrames.get();
+    }
+
+    private void renderFrame() {
+        profile.work();
+        renderedFrames.incrementAndGet();
+        long timeUs = System.nanoTime() / 1000;
+        for (SimulatedFrameEncoder encoder : encoders) {
+            encoder.queueFrame(timeUs);
+        }
+    }
+}
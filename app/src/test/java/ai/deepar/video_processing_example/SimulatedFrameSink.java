@@ -0,0 +1,36 @@
+package ai.deepar.video_processing_example;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the timestamps of the video samples written to it.
+ */
+class SimulatedFrameSink implements FrameSink {
+
+    private final SimulatedStageProfile profile;
+    private final List<Long> sampleTimesUs = new ArrayList<>();
+    private long bytesWritten;
+
+    SimulatedFrameSink(SimulatedStageProfile profile) {
+        this.profile = profile;
+    }
+
+    @Override
+    public synchronized void writeSampleData(ByteBuffer buffer, int size, long presentationTimeUs, int flags) {
+        profile.work();
+        bytesWritten += size;
+        if ((flags & FramePipeline.FLAG_CODEC_CONFIG) == 0) {
+            sampleTimesUs.add(presentationTimeUs);
+        }
+    }
+
+    synchronized List<Long> getSampleTimesUs() {
+        return new ArrayList<>(sampleTimesUs);
+    }
+
+    synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+}
@@ -0,0 +1,45 @@
+package ai.deepar.video_processing_example;
+
+import java.nio.ByteBuffer;
+
+class SimulatedFrameSource implements FrameSource {
+
+    static final long FRAME_DURATION_US = 33_333;
+    static final int SYNC_INTERVAL = 10;
+
+    private final int frameCount;
+    private final SimulatedStageProfile profile;
+    private int frame;
+
+    SimulatedFrameSource(int frameCount, SimulatedStageProfile profile) {
+        this.frameCount = frameCount;
+        this.profile = profile;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer) {
+        if (frame >= frameCount) {
+            return -1;
+        }
+        profile.work();
+        buffer.clear();
+        buffer.putInt(frame);
+        return buffer.position();
+    }
+
+    @Override
+    public long getSampleTime() {
+        return frame * FRAME_DURATION_US;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return frame % SYNC_INTERVAL == 0 ? FramePipeline.FLAG_KEY_FRAME : 0;
+    }
+
+    @Override
+    public boolean advance() {
+        frame++;
+        return frame < frameCount;
+    }
+}
@@ -0,0 +1,56 @@
+package ai.deepar.video_processing_example;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Cost model of a simulated pipeline stage: per-frame latency with uniform jitter, the share of
+ * frames it drops and how many buffers it owns.
+ */
+class SimulatedStageProfile {
+
+    final long latencyUs;
+    final long jitterUs;
+    final double dropRate;
+    final int bufferCount;
+
+    private final Random random;
+
+    SimulatedStageProfile(long latencyUs, long jitterUs, double dropRate, int bufferCount, long seed) {
+        this.latencyUs = latencyUs;
+        this.jitterUs = jitterUs;
+        this.dropRate = dropRate;
+        this.bufferCount = bufferCount;
+        this.random = new Random(seed);
+    }
+
+    static SimulatedStageProfile of(long latencyUs, int bufferCount) {
+        return new SimulatedStageProfile(latencyUs, 0, 0, bufferCount, 0);
+    }
+
+    /**
+     * Spends one frame's worth of latency on the calling thread.
+     */
+    void work() {
+        long latency = latencyUs;
+        if (jitterUs > 0) {
+            synchronized (random) {
+                latency += (long) ((random.nextDouble() * 2 - 1) * jitterUs);
+            }
+        }
+        long deadline = System.nanoTime() + Math.max(0, latency) * 1000;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    boolean shouldDrop() {
+        if (dropRate <= 0) {
+            return false;
+        }
+        synchronized (random) {
+            return random.nextDouble() < dropRate;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package ai.deepar.video_processing_example;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TimestampTrackerTest {
+
+    @Test
+    public void resolvesFramesInOrder() {
+        TimestampTracker tracker = new TimestampTracker(8, 2);
+        tracker.onFrameSubmitted(0, 1_000);
+        tracker.onFrameSubmitted(33_333, 2_000);
+        tracker.onFrameSubmitted(66_666, 3_000);
+
+        assertEquals(0, tracker.resolve(1_500));
+        assertEquals(33_333, tracker.resolve(2_500));
+        assertEquals(66_666, tracker.resolve(3_500));
+        assertEquals(0, tracker.getPendingCount());
+        assertEquals(0, tracker.getDroppedFrameCount());
+    }
+
+    @Test
+    public void resolvesReorderedOutput() {
+        TimestampTracker tracker = new TimestampTracker(8, 2);
+        tracker.onFrameSubmitted(0, 1_000);
+        tracker.onFrameSubmitted(33_333, 2_000);
+        tracker.onFrameSubmitted(66_666, 3_000);
+
+        assertEquals(0, tracker.resolve(1_100));
+        assertEquals(66_666, tracker.resolve(3_100));
+        assertEquals(33_333, tracker.resolve(2_100));
+        assertEquals(0, tracker.getDroppedFrameCount());
+    }
+
+    @Test
+    public void countsDroppedFrames() {
+        TimestampTracker tracker = new TimestampTracker(8, 1);
+        for (int i = 0; i < 5; i++) {
+            tracker.onFrameSubmitted(i * 10_000L, 1_000L * (i + 1));
+        }
+
+        assertEquals(0, tracker.resolve(1_100));
+        // Frame 1 never reaches the encoder.
+        assertEquals(20_000, tracker.resolve(3_100));
+        assertEquals(30_000, tracker.resolve(4_100));
+        assertEquals(1, tracker.getDroppedFrameCount());
+        assertEquals(40_000, tracker.resolve(5_100));
+        assertEquals(0, tracker.finish());
+    }
+
+    @Test
+    public void finishCountsPendingFramesAsDropped() {
+        TimestampTracker tracker = new TimestampTracker(8, 4);
+        tracker.onFrameSubmitted(0, 1_000);
+        tracker.onFrameSubmitted(10_000, 2_000);
+        tracker.onFrameSubmitted(20_000, 3_000);
+
+        assertEquals(0, tracker.resolve(1_100));
+        assertEquals(2, tracker.finish());
+        assertEquals(2, tracker.getDroppedFrameCount());
+    }
+
+    @Test
+    public void fallsBackToSubmissionOrderForForeignClock() {
+        TimestampTracker tracker = new TimestampTracker(8, 2);
+        tracker.onFrameSubmitted(0, 1_000_000_000L);
+        tracker.onFrameSubmitted(33_333, 1_000_001_000L);
+
+        assertEquals(0, tracker.resolve(5));
+        assertEquals(33_333, tracker.resolve(6));
+    }
+
+    @Test
+    public void unknownTimestampForDuplicateOutput() {
+        TimestampTracker tracker = new TimestampTracker(8, 2);
+        tracker.onFrameSubmitted(0, 1_000);
+        tracker.onFrameSubmitted(10_000, 2_000);
+
+        assertEquals(0, tracker.resolve(1_100));
+        assertEquals(TimestampTracker.UNKNOWN, tracker.resolve(900));
+    }
+
+    @Test
+    public void overflowDropsOldestFrame() {
+        TimestampTracker tracker = new TimestampTracker(2, 2);
+        tracker.onFrameSubmitted(0, 1_000);
+        tracker.onFrameSubmitted(10_000, 2_000);
+        tracker.onFrameSubmitted(20_000, 3_000);
+
+        assertEquals(1, tracker.getDroppedFrameCount());
+        assertEquals(2, tracker.getPendingCount());
+        assertEquals(10_000, tracker.resolve(2_100));
+    }
+}
@@ -0,0 +1,236 @@
+package ai.deepar.video_processing_example;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class YuvFramePackerTest {
+
+    // Odd, so the chroma planes round up and the last column and row have no partner.
+    private static final int WIDTH = 33;
+    private static final int HEIGHT = 17;
+    private static final int ROW_STRIDE = 64;
+    private static final byte PADDING = (byte) 0xee;
+
+    @Test
+    public void packsPaddedI420AsYThenVThenU() {
+        YuvFramePacker packer = new YuvFramePacker(2);
+        ByteBuffer packed = packer.pack(LayoutPlanes.i420(WIDTH, HEIGHT, ROW_STRIDE));
+
+        assertEquals(1, packer.getOutputPixelStride());
+        assertArrayEquals(expectedPlanar(WIDTH, HEIGHT), toArray(packed));
+    }
+
+    @Test
+    public void packsNv12AsYThenVuPairs() {
+        YuvFramePacker packer = new YuvFramePacker(2);
+        ByteBuffer packed = packer.pack(LayoutPlanes.semiPlanar(WIDTH, HEIGHT, ROW_STRIDE, false));
+
+        assertEquals(2, packer.getOutputPixelStride());
+        assertArrayEquals(expectedInterleaved(WIDTH, HEIGHT), toArray(packed));
+    }
+
+    @Test
+    public void packsNv21AsYThenVuPairs() {
+        YuvFramePacker packer = new YuvFramePacker(2);
+        ByteBuffer packed = packer.pack(LayoutPlanes.semiPlanar(WIDTH, HEIGHT, ROW_STRIDE, true));
+
+        assertEquals(2, packer.getOutputPixelStride());
+        assertArrayEquals(expectedInterleaved(WIDTH, HEIGHT), toArray(packed));
+    }
+
+    @Test
+    public void packsTightPlanesInOneCopyPerPlane() {
+        YuvFramePacker packer = new YuvFramePacker(2);
+        ByteBuffer packed = packer.pack(LayoutPlanes.i420(WIDTH, HEIGHT, WIDTH));
+
+        assertArrayEquals(expectedPlanar(WIDTH, HEIGHT), toArray(packed));
+    }
+
+    @Test
+    public void replansWhenTheLayoutChanges() {
+        YuvFramePacker packer = new YuvFramePacker(2);
+        packer.recycle(packer.pack(LayoutPlanes.i420(WIDTH, HEIGHT, ROW_STRIDE)));
+        ByteBuffer nv12 = packer.pack(LayoutPlanes.semiPlanar(WIDTH, HEIGHT, ROW_STRIDE, false));
+        assertArrayEquals(expectedInterleaved(WIDTH, HEIGHT), toArray(nv12));
+        packer.recycle(nv12);
+
+        ByteBuffer smaller = packer.pack(LayoutPlanes.semiPlanar(WIDTH - 2, HEIGHT - 2, ROW_STRIDE, true));
+        assertArrayEquals(expectedInterleaved(WIDTH - 2, HEIGHT - 2), toArray(smaller));
+        assertEquals(smaller.remaining(), packer.getFrameSize());
+    }
+
+    private static byte[] expectedPlanar(int width, int height) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        ByteBuffer expected = ByteBuffer.allocate(width * height + 2 * chromaWidth * chromaHeight);
+        putLuma(expected, width, height);
+        for (int row = 0; row < chromaHeight; row++) {
+            for (int column = 0; column < chromaWidth; column++) {
+                expected.put(v(row, column));
+            }
+        }
+        for (int row = 0; row < chromaHeight; row++) {
+            for (int column = 0; column < chromaWidth; column++) {
+                expected.put(u(row, column));
+            }
+        }
+        return expected.array();
+    }
+
+    private static byte[] expectedInterleaved(int width, int height) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        ByteBuffer expected = ByteBuffer.allocate(width * height + 2 * chromaWidth * chromaHeight);
+        putLuma(expected, width, height);
+        for (int row = 0; row < chromaHeight; row++) {
+            for (int column = 0; column < chromaWidth; column++) {
+                expected.put(v(row, column)).put(u(row, column));
+            }
+        }
+        return expected.array();
+    }
+
+    private static void putLuma(ByteBuffer expected, int width, int height) {
+        for (int row = 0; row < height; row++) {
+            for (int column = 0; column < width; column++) {
+                expected.put(y(row, column));
+            }
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte y(int row, int column) {
+        return (byte) (row * 7 + column);
+    }
+
+    private static byte u(int row, int column) {
+        return (byte) (64 + row * 5 + column);
+    }
+
+    private static byte v(int row, int column) {
+        return (byte) (192 - row * 3 - column);
+    }
+
+    /**
+     * Planes laid out the way decoders deliver YUV_420_888 images: rows padded to a stride, with
+     * the buffer ending right after the last sample rather than after the last row's padding.
+     */
+    private static final class LayoutPlanes implements FramePlanes {
+
+        private final int width;
+        private final int height;
+        private final ByteBuffer[] buffers = new ByteBuffer[3];
+        private final int[] rowStrides = new int[3];
+        private final int[] pixelStrides = {1, 1, 1};
+
+        private LayoutPlanes(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        static LayoutPlanes i420(int width, int height, int rowStride) {
+            LayoutPlanes planes = new LayoutPlanes(width, height);
+            int chromaWidth = (width + 1) / 2;
+            int chromaHeight = (height + 1) / 2;
+            int chromaRowStride = (rowStride + 1) / 2;
+            planes.setLuma(rowStride);
+            planes.rowStrides[1] = chromaRowStride;
+            planes.rowStrides[2] = chromaRowStride;
+            planes.buffers[1] = padded(chromaRowStride * (chromaHeight - 1) + chromaWidth);
+            planes.buffers[2] = padded(chromaRowStride * (chromaHeight - 1) + chromaWidth);
+            for (int row = 0; row < chromaHeight; row++) {
+                for (int column = 0; column < chromaWidth; column++) {
+                    planes.buffers[1].put(row * chromaRowStride + column, u(row, column));
+                    planes.buffers[2].put(row * chromaRowStride + column, v(row, column));
+                }
+            }
+            return planes;
+        }
+
+        /**
+         * @param vFirst true for NV21, false for NV12
+         */
+        static LayoutPlanes semiPlanar(int width, int height, int rowStride, boolean vFirst) {
+            LayoutPlanes planes = new LayoutPlanes(width, height);
+            int chromaWidth = (width + 1) / 2;
+            int chromaHeight = (height + 1) / 2;
+            planes.setLuma(rowStride);
+            // Both chroma planes view the same interleaved memory, one byte apart.
+            ByteBuffer chroma = padded(rowStride * (chromaHeight - 1) + 2 * chromaWidth);
+            for (int row = 0; row < chromaHeight; row++) {
+                for (int column = 0; column < chromaWidth; column++) {
+                    int offset = row * rowStride + 2 * column;
+                    chroma.put(offset, vFirst ? v(row, column) : u(row, column));
+                    chroma.put(offset + 1, vFirst ? u(row, column) : v(row, column));
+                }
+            }
+            int length = chroma.capacity() - 1;
+            planes.buffers[vFirst ? 2 : 1] = slice(chroma, 0, length);
+            planes.buffers[vFirst ? 1 : 2] = slice(chroma, 1, length);
+            for (int plane = 1; plane < 3; plane++) {
+                planes.rowStrides[plane] = rowStride;
+                planes.pixelStrides[plane] = 2;
+            }
+            return planes;
+        }
+
+        private void setLuma(int rowStride) {
+            rowStrides[0] = rowStride;
+            buffers[0] = padded(rowStride * (height - 1) + width);
+            for (int row = 0; row < height; row++) {
+                for (int column = 0; column < width; column++) {
+                    buffers[0].put(row * rowStride + column, y(row, column));
+                }
+            }
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public ByteBuffer getBuffer(int plane) {
+            return buffers[plane];
+        }
+
+        @Override
+        public int getRowStride(int plane) {
+            return rowStrides[plane];
+        }
+
+        @Override
+        public int getPixelStride(int plane) {
+            return pixelStrides[plane];
+        }
+
+        private static ByteBuffer padded(int size) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+            for (int i = 0; i < size; i++) {
+                buffer.put(i, PADDING);
+            }
+            return buffer;
+        }
+
+        private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(offset);
+            duplicate.limit(offset + length);
+            return duplicate.slice();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package ai.deepar.video_processing_example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frame planes laid out the way common decoders deliver YUV_420_888 images.
+ */
+class SyntheticFramePlanes implements FramePlanes {
+
+    static final String I420_PADDED = "I420_PADDED";
+    static final String NV12 = "NV12";
+    static final String NV21 = "NV21";
+
+    // Decoders commonly align row strides to 64 bytes.
+    private static final int ROW_ALIGNMENT = 64;
+
+    private final int width;
+    private final int height;
+    private final ByteBuffer[] buffers = new ByteBuffer[3];
+    private final int[] rowStrides = new int[3];
+    private final int[] pixelStrides = new int[3];
+
+    SyntheticFramePlanes(String layout, int width, int height) {
+        this.width = width;
+        this.height = height;
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+
+        rowStrides[0] = align(width);
+        buffers[0] = filled(rowStrides[0] * height);
+        switch (layout) {
+            case I420_PADDED:
+                for (int plane = 1; plane < 3; plane++) {
+                    rowStrides[plane] = align(chromaWidth);
+                    pixelStrides[plane] = 1;
+                    buffers[plane] = filled(rowStrides[plane] * chromaHeight);
+                }
+                break;
+            case NV12:
+            case NV21:
+                // Both chroma planes view the same interleaved memory, offset by one byte.
+                int rowStride = align(2 * chromaWidth);
+                ByteBuffer chroma = filled(rowStride * chromaHeight);
+                int first = layout.equals(NV12) ? 1 : 2;
+                int second = layout.equals(NV12) ? 2 : 1;
+                buffers[first] = slice(chroma, 0, rowStride * chromaHeight - 1);
+                buffers[second] = slice(chroma, 1, rowStride * chromaHeight - 1);
+                rowStrides[1] = rowStrides[2] = rowStride;
+                pixelStrides[1] = pixelStrides[2] = 2;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown layout " + layout);
+        }
+        pixelStrides[0] = 1;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public ByteBuffer getBuffer(int plane) {
+        return buffers[plane];
+    }
+
+    @Override
+    public int getRowStride(int plane) {
+        return rowStrides[plane];
+    }
+
+    @Override
+    public int getPixelStride(int plane) {
+        return pixelStrides[plane];
+    }
+
+    private static int align(int bytes) {
+        return (bytes + ROW_ALIGNMENT - 1) / ROW_ALIGNMENT * ROW_ALIGNMENT;
+    }
+
+    private static ByteBuffer filled(int size) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < size; i++) {
+            buffer.put(i, (byte) i);
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice();
+    }
+}
@@ -0,0 +1,55 @@
+package ai.deepar.video_processing_example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame bookkeeping done on the encoder callback: timestamp resolution and progress.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimestampBenchmark {
+
+    private static final long FRAME_DURATION_US = 33_333;
+    private static final long SUBMIT_INTERVAL_US = 10_000;
+    private static final float DURATION_US = 60_000_000f;
+
+    private TimestampTracker tracker;
+    private long frame;
+
+    @Setup
+    public void setUp() {
+        tracker = new TimestampTracker(2 * 8 + 4, 4);
+        frame = 0;
+    }
+
+    /**
+     * Submits a frame and resolves one, with every pair of frames emitted in swapped order as an
+     * encoder using B-frames would.
+     */
+    @Benchmark
+    public long submitAndResolve() {
+        tracker.onFrameSubmitted(frame * FRAME_DURATION_US, frame * SUBMIT_INTERVAL_US);
+        long resolved = TimestampTracker.UNKNOWN;
+        if ((frame & 1) == 1) {
+            resolved = tracker.resolve(frame * SUBMIT_INTERVAL_US + 1);
+            resolved += tracker.resolve((frame - 1) * SUBMIT_INTERVAL_US + 1);
+        }
+        frame++;
+        return resolved;
+    }
+
+    @Benchmark
+    public double progress() {
+        frame++;
+        return ProcessingProgress.percent(frame * FRAME_DURATION_US % 60_000_000L, 0, DURATION_US);
+    }
+}
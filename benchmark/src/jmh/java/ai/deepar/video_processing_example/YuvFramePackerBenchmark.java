@@ -0,0 +1,43 @@
+package ai.deepar.video_processing_example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class YuvFramePackerBenchmark {
+
+    @Param({SyntheticFramePlanes.I420_PADDED, SyntheticFramePlanes.NV12, SyntheticFramePlanes.NV21})
+    public String layout;
+
+    @Param({"854x480", "1280x720", "1920x1080", "3840x2160"})
+    public String resolution;
+
+    private SyntheticFramePlanes planes;
+    private YuvFramePacker packer;
+
+    @Setup
+    public void setUp() {
+        String[] size = resolution.split("x");
+        planes = new SyntheticFramePlanes(layout, Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+        packer = new YuvFramePacker(1);
+    }
+
+    @Benchmark
+    public byte pack() {
+        ByteBuffer buffer = packer.pack(planes);
+        byte last = buffer.get(buffer.limit() - 1);
+        packer.recycle(buffer);
+        return last;
+    }
+}